@@ -0,0 +1,51 @@
+package com.haward.blog.cluster;
+
+import com.haward.blog.event.RemoteChangeEvent;
+import com.haward.blog.model.Comment;
+import com.haward.blog.model.User;
+import com.haward.blog.repository.CommentRepository;
+import com.haward.blog.repository.UserRepository;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * CacheInvalidator drops from the Hibernate second-level cache what the other backend instances have written.
+ * Writes of this instance go through Hibernate, which updates the cache itself, but Hibernate does not see
+ * the writes of the other instances: they are read from the change log (see ChangeLog).
+ */
+@Component
+public class CacheInvalidator {
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory; // to reach the cache regions
+
+    /**
+     * Drop the cached copies of an entity written by another instance, and the cached queries of its table
+     *
+     * @param event Remote change event
+     */
+    @EventListener
+    public void onRemoteChange(RemoteChangeEvent event) {
+        Cache cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+        switch (event.getType()) {
+            case ChangeLog.COMMENT_CREATED:
+                cache.evictQueryRegion(CommentRepository.COMMENT_QUERIES);
+                break;
+            case ChangeLog.COMMENT_DELETED:
+                cache.evictEntityData(Comment.class, event.getEntityId());
+                cache.evictQueryRegion(CommentRepository.COMMENT_QUERIES);
+                break;
+            case ChangeLog.USER_SAVED:
+                cache.evictEntityData(User.class, event.getEntityId());
+                cache.evictQueryRegion(UserRepository.USER_QUERIES);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.haward.blog.cluster;
+
+import com.haward.blog.event.RemoteChangeEvent;
+import com.haward.blog.id.SnowflakeIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ChangeLog tells the other backend instances about the writes of this instance, through table 'change_log'
+ * of the application DB.
+ *
+ * A write is recorded as a row (type, entity id, node id) in the transaction of the write, so only the committed
+ * writes are seen. Every instance reads the rows of the other nodes on a schedule (app.cluster.poll-interval)
+ * and publishes each of them once as a RemoteChangeEvent, i.e. to drop a deleted comment from its caches or
+ * to push a new post to its event subscribers.
+ *
+ * Row ids are time ordered (see SnowflakeIdGenerator) but rows are not committed in id order, so the rows above
+ * a watermark are read, and the watermark stays app.cluster.lag behind the time of the last read (same as the
+ * catch-up of SearchIndex). Rows older than app.cluster.retention are deleted.
+ */
+@Component
+public class ChangeLog {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeLog.class);
+
+    public static final String POST_CREATED = "post-created";
+    public static final String COMMENT_CREATED = "comment-created";
+    public static final String COMMENT_DELETED = "comment-deleted";
+    public static final String USER_SAVED = "user-saved";
+
+    private static final int READ_BATCH_SIZE = 500;
+
+    private static final String CREATE = "CREATE TABLE IF NOT EXISTS change_log (id BIGINT NOT NULL PRIMARY KEY,"
+            + " type VARCHAR(32) NOT NULL, entity_id BIGINT NOT NULL, node_id INT NOT NULL)";
+
+    private static final String INSERT = "INSERT INTO change_log (id, type, entity_id, node_id) VALUES (?, ?, ?, ?)";
+
+    private static final String READ = "SELECT id, type, entity_id FROM change_log WHERE id > ? AND node_id <> ?"
+            + " ORDER BY id LIMIT ?";
+
+    private static final String PURGE = "DELETE FROM change_log WHERE id < ?";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate; // to write and read the rows, in the transaction of the caller
+
+    @Autowired
+    private SnowflakeIdGenerator idGenerator; // to give time ordered ids to the rows
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher; // to notify the writes of the other instances
+
+    @Value("${app.id.node}")
+    private int node; // rows of this node are not read back
+
+    @Value("${app.cluster.lag}")
+    private long lag; // max milliseconds between getting an id and committing the row
+
+    @Value("${app.cluster.retention}")
+    private long retention; // milliseconds a row is kept
+
+    private long watermark; // guarded by this, every row below has been published
+
+    private final Set<Long> published = new HashSet<>(); // guarded by this, ids above the watermark
+
+    @PostConstruct
+    public void init() {
+        jdbcTemplate.execute(CREATE);
+        // caches start empty, so the writes before the start need not be published
+        watermark = SnowflakeIdGenerator.firstIdAt(System.currentTimeMillis() - lag);
+    }
+
+    /**
+     * Record a write in the transaction of the caller, if any
+     *
+     * @param type Type of the write (i.e. COMMENT_DELETED)
+     * @param entityId Id of the written entity
+     */
+    public void record(String type, long entityId) {
+        recordAll(type, Collections.singletonList(entityId));
+    }
+
+    /**
+     * Record writes of the same type in one batch, in the transaction of the caller, if any
+     *
+     * @param type Type of the writes (i.e. COMMENT_CREATED)
+     * @param entityIds Ids of the written entities
+     */
+    public void recordAll(String type, List<Long> entityIds) {
+        jdbcTemplate.batchUpdate(INSERT, entityIds, entityIds.size(), (ps, entityId) -> {
+            ps.setLong(1, idGenerator.nextId());
+            ps.setString(2, type);
+            ps.setLong(3, entityId);
+            ps.setInt(4, node);
+        });
+    }
+
+    /**
+     * Publish the writes of the other instances that have not been published yet
+     */
+    @Scheduled(fixedDelayString = "${app.cluster.poll-interval}")
+    public synchronized void poll() {
+        long start = System.currentTimeMillis();
+        long after = watermark;
+        List<Row> rows;
+        try {
+            do {
+                rows = jdbcTemplate.query(READ, (rs, rowNum) ->
+                        new Row(rs.getLong(1), rs.getString(2), rs.getLong(3)), after, node, READ_BATCH_SIZE);
+                for (Row row : rows) {
+                    after = row.id;
+                    if (published.add(row.id)) {
+                        publish(row);
+                    }
+                }
+            } while (rows.size() == READ_BATCH_SIZE);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to read the change log", e);
+            return; // read again from the same watermark
+        }
+        watermark = Math.max(watermark, SnowflakeIdGenerator.firstIdAt(start - lag));
+        long below = watermark;
+        published.removeIf(id -> id <= below);
+    }
+
+    /**
+     * Delete the rows every instance has read
+     */
+    @Scheduled(fixedDelayString = "${app.cluster.retention}")
+    public void purge() {
+        try {
+            jdbcTemplate.update(PURGE, SnowflakeIdGenerator.firstIdAt(System.currentTimeMillis() - retention));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to purge the change log", e);
+        }
+    }
+
+    /**
+     * Helper method to notify a write. A failing listener must not stop the other writes from being published.
+     *
+     * @param row Row of the write
+     */
+    private void publish(Row row) {
+        try {
+            eventPublisher.publishEvent(new RemoteChangeEvent(row.type, row.entityId));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to notify change {} of entity id {}", row.type, row.entityId, e);
+        }
+    }
+
+    /**
+     * Row of the change log
+     */
+    private static class Row {
+        private final long id;
+        private final String type;
+        private final long entityId;
+
+        private Row(long id, String type, long entityId) {
+            this.id = id;
+            this.type = type;
+            this.entityId = entityId;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.haward.blog.comment;
+
+import com.haward.blog.model.Comment;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * CommentRebalancer moves the comments stored in a wrong shard to the shard of their post, i.e. after a shard
+ * has been appended to app.comments.shards.urls. It also empties the former shards (and the 'comment' table
+ * of an unsharded DB) listed in app.comments.shards.retired-urls. It is run once at startup, before requests
+ * are served, with app.comments.shards.rebalance=true.
+ *
+ * Each shard is scanned in id order by batches. The misplaced comments of a batch are first inserted into
+ * their shards (a comment already there is skipped), then deleted from the scanned shard. So an interrupted
+ * rebalancing loses nothing and can be run again. Other backend instances should be stopped meanwhile: they
+ * would not find the comments that have not been moved yet. The posts of the scanned comments are also kept
+ * in table 'comment_post', so the comments written before it existed are found by id.
+ */
+@Component
+@ConditionalOnProperty(name = {"app.comments.shards.enabled", "app.comments.shards.rebalance"}, havingValue = "true")
+public class CommentRebalancer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentRebalancer.class);
+
+    private static final int BATCH_SIZE = 500; // comments read from a shard at once
+
+    @Autowired
+    private ShardedCommentStore store; // to find the shard of a post and write to the shards
+
+    @Value("${app.comments.shards.retired-urls}")
+    private List<String> retiredUrls; // JDBC urls of the DBs to be emptied
+
+    @PostConstruct
+    public void rebalance() {
+        long start = System.currentTimeMillis();
+        long moved = 0;
+        for (int index = 0; index < store.getShardCount(); index++) {
+            moved += drain(store.getJdbcTemplate(index), index, "shard " + index);
+        }
+        for (int i = 0; i < retiredUrls.size(); i++) {
+            try (HikariDataSource dataSource = store.createDataSource("comment-retired-" + i, retiredUrls.get(i))) {
+                moved += drain(new JdbcTemplate(dataSource), -1, "retired shard " + i);
+            }
+        }
+        LOGGER.info("Moved {} comment(s) to their shards in {} ms", moved, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Helper method to move the comments of a DB that do not belong to it
+     *
+     * @param source DB to be scanned
+     * @param index Shard index of the DB. Else, -1 if every comment must be moved
+     * @param name Name of the DB in logs
+     * @return Number of moved comments
+     */
+    private long drain(JdbcTemplate source, int index, String name) {
+        long moved = 0;
+        long scanned = 0;
+        long after = 0;
+        List<Comment> comments;
+        do {
+            comments = source.query(ShardedCommentStore.FIND_AFTER_ID, ShardedCommentStore.COMMENT_MAPPER,
+                    after, BATCH_SIZE);
+            List<Comment> placed = comments.stream()
+                    .filter(comment -> store.indexOf(comment.getPostId()) == index)
+                    .collect(Collectors.toList());
+            if (!placed.isEmpty()) {
+                store.savePosts(placed); // the posts of the misplaced ones are kept when they are inserted
+            }
+            Map<Integer, List<Comment>> misplaced = comments.stream()
+                    .filter(comment -> store.indexOf(comment.getPostId()) != index)
+                    .collect(Collectors.groupingBy(comment -> store.indexOf(comment.getPostId()),
+                            LinkedHashMap::new, Collectors.toList()));
+            for (Map.Entry<Integer, List<Comment>> target : misplaced.entrySet()) {
+                List<Comment> batch = target.getValue();
+                store.insert(target.getKey(), batch);
+                source.batchUpdate(ShardedCommentStore.DELETE, batch, batch.size(),
+                        (ps, comment) -> ps.setLong(1, comment.getId()));
+                moved += batch.size();
+            }
+            scanned += comments.size();
+            if (!comments.isEmpty()) {
+                after = comments.get(comments.size() - 1).getId();
+            }
+        } while (comments.size() == BATCH_SIZE);
+        LOGGER.info("Scanned {} comment(s) of {}, moved {}", scanned, name, moved);
+        return moved;
+    }
+}
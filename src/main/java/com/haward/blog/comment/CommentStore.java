@@ -0,0 +1,73 @@
+package com.haward.blog.comment;
+
+import com.haward.blog.model.Comment;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * CommentStore saves and finds the comments. They are kept in table 'comment' of the application DB
+ * (JpaCommentStore), or hash partitioned by post id over several DBs if app.comments.shards.enabled=true
+ * (ShardedCommentStore). The comments of a post are always in the same DB.
+ */
+public interface CommentStore {
+
+    /**
+     * Save a new comment. It gets its id if it has none.
+     *
+     * @param comment New comment
+     * @return Saved comment
+     */
+    Comment save(Comment comment);
+
+    /**
+     * Save new comments with their ids in batches. Saving a comment again has no effect,
+     * so a failed call can be retried.
+     *
+     * @param comments New comments with their ids
+     */
+    void saveAll(List<Comment> comments);
+
+    void delete(Comment comment);
+
+    Optional<Comment> findById(Long id);
+
+    Optional<Instant> findCreatedOnById(Long id);
+
+    /**
+     * @param postId Post id of the comments
+     * @return All the comments of the post
+     */
+    List<Comment> findByPostId(Long postId);
+
+    /**
+     * @param postId Post id of the comments
+     * @param limit Max number of comments
+     * @return The first comments of the post, oldest first
+     */
+    List<Comment> findFirstByPostId(Long postId, int limit);
+
+    /**
+     * @param postId Post id of the comments
+     * @param createdOn Creation time of the last comment of the previous page
+     * @param id Id of the last comment of the previous page
+     * @param limit Max number of comments
+     * @return The comments of the post after the previous page, oldest first
+     */
+    List<Comment> findNextByPostId(Long postId, Instant createdOn, Long id, int limit);
+
+    /**
+     * @param postId Post id of the comments
+     * @return All the comments of the post, oldest first, fetched in batches. The stream must be closed.
+     */
+    Stream<Comment> streamByPostId(Long postId);
+
+    /**
+     * @param id Comment id
+     * @param limit Max number of comments
+     * @return The comments with a greater id, in id order
+     */
+    List<Comment> findAfterId(Long id, int limit);
+}
@@ -0,0 +1,303 @@
+package com.haward.blog.comment;
+
+import com.haward.blog.cluster.ChangeLog;
+import com.haward.blog.event.CommentCreatedEvent;
+import com.haward.blog.model.Comment;
+import com.haward.blog.security.exception.ServiceBusyException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * CommentWriteBehind persists new comments in the background, in JDBC batches.
+ * It is enabled with app.comments.write-behind=true.
+ *
+ * A comment gets its id when it is accepted and is queued in a bounded buffer. A single writer thread
+ * inserts the queued comments in batches of up to app.comments.batch-size, at most app.comments.max-delay
+ * milliseconds after the first comment of a batch has been queued. When the buffer is full, a new comment
+ * is rejected (ServiceBusyException) after waiting app.comments.offer-timeout milliseconds, so a slow DB
+ * slows down the clients instead of exhausting the memory.
+ *
+ * A batch failing for a transient cause (DB unreachable, failover, lock or query timeout) is retried until
+ * it is written, with a backoff up to app.comments.max-retry-delay. Meanwhile the buffer fills up and new
+ * comments are rejected, so an outage never drops accepted comments. A batch failing for any other cause
+ * (i.e. a comment of a deleted post) is written comment by comment: only the comments that cannot be
+ * written for such a cause are dropped, and counted in metric blog.comments.dropped.
+ *
+ * The buffer is written to DB before the application stops. Comments still queued when the process is
+ * killed, or when DB is down longer than the shutdown timeout, are lost. An accepted comment is visible
+ * to readers once its batch has been committed.
+ */
+@Component
+// destroyed after this writer, so the comments written at shutdown are counted and indexed
+@DependsOn({"postCounters", "searchIndex"})
+@ConditionalOnProperty(name = "app.comments.write-behind", havingValue = "true")
+public class CommentWriteBehind {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommentWriteBehind.class);
+
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // max wait before checking shutdown
+
+    private static final long MIN_RETRY_DELAY = 100; // milliseconds before the first retry, doubled on each retry
+
+    @Autowired
+    private CommentStore commentStore; // to insert comments in batches
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher; // to notify persisted comments
+
+    @Autowired
+    private ChangeLog changeLog; // to tell the other instances about persisted comments
+
+    @Autowired
+    private MeterRegistry meterRegistry; // to count retries and dropped comments
+
+    @Value("${app.comments.queue-capacity}")
+    private int queueCapacity; // max number of comments waiting to be written
+
+    @Value("${app.comments.batch-size}")
+    private int batchSize; // max number of comments per batch
+
+    @Value("${app.comments.max-delay}")
+    private long maxDelay; // max milliseconds between accepting a comment and writing its batch
+
+    @Value("${app.comments.offer-timeout}")
+    private long offerTimeout; // max milliseconds to wait for room in a full queue
+
+    @Value("${app.comments.shutdown-timeout}")
+    private long shutdownTimeout; // max milliseconds to write the queued comments at shutdown
+
+    @Value("${app.comments.max-retry-delay}")
+    private long maxRetryDelay; // max milliseconds between two attempts to write a batch
+
+    private Counter retries;
+
+    private Counter dropped;
+
+    private BlockingQueue<Comment> queue;
+
+    private Thread writer;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        retries = Counter.builder("blog.comments.retries")
+                .description("Attempts to write comments again after a transient DB failure")
+                .register(meterRegistry);
+        dropped = Counter.builder("blog.comments.dropped")
+                .description("Accepted comments that could not be written for a non-transient cause")
+                .register(meterRegistry);
+        writer = new Thread(this::writeLoop, "comment-writer");
+        writer.start();
+    }
+
+    /**
+     * Queue a new comment to be written to DB
+     *
+     * @param comment New comment with its id
+     */
+    public void submit(Comment comment) {
+        if (!running) {
+            throw new ServiceBusyException("Comment writer is stopping");
+        }
+        try {
+            if (!queue.offer(comment, offerTimeout, TimeUnit.MILLISECONDS)) {
+                throw new ServiceBusyException("Too many comments are waiting to be written. Retry later.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceBusyException("Interrupted while queuing comment", e);
+        }
+    }
+
+    /**
+     * Stop accepting comments and write the queued comments
+     *
+     * @throws InterruptedException if interrupted while waiting for the writer
+     */
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        writer.join(shutdownTimeout);
+        if (writer.isAlive()) {
+            LOGGER.error("{} queued comment(s) have not been written before shutdown", queue.size());
+            writer.interrupt();
+        }
+    }
+
+    /**
+     * Helper method run by the writer thread: collect a batch, then write it
+     */
+    private void writeLoop() {
+        List<Comment> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Comment first = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0 || !running) {
+                        // no more waiting: take what is already queued
+                        Comment next = queue.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        continue;
+                    }
+                    // wait in short slices, so a shutdown does not wait for the whole delay
+                    Comment next = queue.poll(Math.min(wait, POLL_NANOS), TimeUnit.NANOSECONDS);
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.error("Unexpected error in comment writer", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Helper method to write a batch of comments.
+     * If the batch fails for a non-transient cause, the comments are written one by one, so one bad comment
+     * (i.e. of a deleted post) does not lose the others.
+     *
+     * @param batch Comments to be written
+     * @throws InterruptedException if interrupted while waiting before a retry
+     */
+    private void write(List<Comment> batch) throws InterruptedException {
+        try {
+            save(batch);
+            publish(batch);
+            return;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to write {} comment(s). They are written one by one.", batch.size(), e);
+        }
+        for (Comment comment : batch) {
+            try {
+                save(Collections.singletonList(comment));
+            } catch (RuntimeException e) {
+                dropped.increment();
+                LOGGER.error("Comment id {} of post id {} is dropped", comment.getId(), comment.getPostId(), e);
+                continue;
+            }
+            publish(Collections.singletonList(comment));
+        }
+    }
+
+    /**
+     * Helper method to save comments, retrying as long as it fails for a transient cause.
+     * Saving again is safe: the comments already written by a failed attempt are skipped.
+     *
+     * @param comments Comments to be saved
+     * @throws RuntimeException if it fails for a non-transient cause
+     * @throws InterruptedException if interrupted while waiting before a retry
+     */
+    private void save(List<Comment> comments) throws InterruptedException {
+        long delay = MIN_RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                commentStore.saveAll(comments);
+                if (attempt > 1) {
+                    LOGGER.info("Wrote {} comment(s) after {} attempts", comments.size(), attempt);
+                }
+                return;
+            } catch (RuntimeException e) {
+                if (!isTransient(e)) {
+                    throw e;
+                }
+                if (attempt == 1) {
+                    LOGGER.warn("Failed to write {} comment(s). Retrying until DB is back.", comments.size(), e);
+                } else {
+                    LOGGER.warn("Failed to write {} comment(s), attempt {}: {}", comments.size(), attempt,
+                            e.getMessage());
+                }
+            }
+            retries.increment();
+            Thread.sleep(delay);
+            delay = Math.min(delay * 2, maxRetryDelay);
+        }
+    }
+
+    /**
+     * Helper method to check if a failure may go away by itself (connection loss, failover, lock timeout)
+     *
+     * @param e Failure
+     * @return True if writing again may succeed. Else, return false
+     */
+    private static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransientDataAccessException
+                    || cause instanceof RecoverableDataAccessException
+                    || cause instanceof DataAccessResourceFailureException
+                    || cause instanceof CannotCreateTransactionException
+                    || cause instanceof SQLTransientException
+                    || cause instanceof SQLRecoverableException
+                    || cause instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to notify committed comments, to this instance and to the other ones (see ChangeLog).
+     * A failing listener must not cause the comments to be written again.
+     *
+     * @param comments Committed comments
+     */
+    private void publish(List<Comment> comments) {
+        try {
+            changeLog.recordAll(ChangeLog.COMMENT_CREATED,
+                    comments.stream().map(Comment::getId).collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to record {} comment(s) in the change log", comments.size(), e);
+        }
+        for (Comment comment : comments) {
+            try {
+                eventPublisher.publishEvent(new CommentCreatedEvent(comment));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to notify comment id {}", comment.getId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.haward.blog.comment;
+
+import com.haward.blog.model.Comment;
+import com.haward.blog.repository.CommentRepository;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * JpaCommentStore keeps the comments in table 'comment' of the application DB (see CommentRepository).
+ * Comments and comment queries are cached in the Hibernate second-level cache.
+ */
+@Component
+@ConditionalOnProperty(name = "app.comments.shards.enabled", havingValue = "false", matchIfMissing = true)
+public class JpaCommentStore implements CommentStore {
+
+    // a comment already written by a failed attempt is skipped
+    private static final String INSERT = "INSERT INTO comment (id, content, created_on, username, post_id)"
+            + " VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id = id";
+
+    @Autowired
+    private CommentRepository commentRepository; // to save and find comments
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate; // to insert comments in batches
+
+    @Autowired
+    private PlatformTransactionManager transactionManager; // to write a batch in one transaction
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory; // to drop cached comment queries after a batch
+
+    private TransactionTemplate transactionTemplate;
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public Comment save(Comment comment) {
+        return commentRepository.save(comment);
+    }
+
+    @Override
+    public void saveAll(List<Comment> comments) {
+        transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT, comments, comments.size(),
+                (ps, comment) -> {
+                    ps.setLong(1, comment.getId());
+                    ps.setString(2, comment.getContent());
+                    ps.setTimestamp(3, Timestamp.from(comment.getCreatedOn()));
+                    ps.setString(4, comment.getUsername());
+                    ps.setLong(5, comment.getPostId());
+                }));
+        // Hibernate does not see JDBC inserts, so it cannot invalidate the cached queries itself
+        entityManagerFactory.unwrap(SessionFactory.class).getCache()
+                .evictQueryRegion(CommentRepository.COMMENT_QUERIES);
+    }
+
+    @Override
+    public void delete(Comment comment) {
+        commentRepository.delete(comment);
+    }
+
+    @Override
+    public Optional<Comment> findById(Long id) {
+        return commentRepository.findById(id);
+    }
+
+    @Override
+    public Optional<Instant> findCreatedOnById(Long id) {
+        return commentRepository.findCreatedOnById(id);
+    }
+
+    @Override
+    public List<Comment> findByPostId(Long postId) {
+        return commentRepository.findByPostId(postId);
+    }
+
+    @Override
+    public List<Comment> findFirstByPostId(Long postId, int limit) {
+        return commentRepository.findFirstByPostId(postId, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public List<Comment> findNextByPostId(Long postId, Instant createdOn, Long id, int limit) {
+        return commentRepository.findNextByPostId(postId, createdOn, id, PageRequest.of(0, limit));
+    }
+
+    @Override
+    public Stream<Comment> streamByPostId(Long postId) {
+        return commentRepository.streamByPostId(postId); // caller must be in a transaction
+    }
+
+    @Override
+    public List<Comment> findAfterId(Long id, int limit) {
+        return commentRepository.findAfterId(id, PageRequest.of(0, limit));
+    }
+}
@@ -0,0 +1,337 @@
+package com.haward.blog.comment;
+
+import com.haward.blog.id.SnowflakeIdGenerator;
+import com.haward.blog.model.Comment;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ShardedCommentStore keeps the comments in several DBs (shards), partitioned by post id.
+ * It is enabled with app.comments.shards.enabled=true.
+ *
+ * The shard of a post is chosen by jump consistent hashing of the post id over the shards listed in
+ * app.comments.shards.urls, so the comments of a post are always in the same shard: reading, saving and
+ * deleting the comments of a post needs one shard only. When a shard is appended to the list, only the
+ * comments moving to the new shard change shard. They are moved by CommentRebalancer.
+ *
+ * A comment found by id (i.e. to be deleted) has no post id yet: the post of every comment is kept in table
+ * 'comment_post' of the application DB, so the comment is read from the shard of its post only. The post of
+ * a comment never changes, even when the comment changes shard. It is written before the comment and deleted
+ * after it, so a stored comment always has its post.
+ *
+ * Each shard has its own connection pool and its own transactions, table 'comment' is created on startup.
+ */
+@Component
+@ConditionalOnProperty(name = "app.comments.shards.enabled", havingValue = "true")
+public class ShardedCommentStore implements CommentStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedCommentStore.class);
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS comment (id BIGINT NOT NULL PRIMARY KEY,"
+            + " content LONGTEXT, created_on DATETIME(6), username VARCHAR(255), post_id BIGINT,"
+            + " INDEX idx_comment_post_created_on_id (post_id, created_on, id))";
+
+    // a comment already written by a failed attempt (or a rebalancing) is skipped
+    static final String INSERT = "INSERT INTO comment (id, content, created_on, username, post_id)"
+            + " VALUES (?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id = id";
+
+    static final String DELETE = "DELETE FROM comment WHERE id = ?";
+
+    private static final String SELECT = "SELECT id, content, created_on, username, post_id FROM comment";
+
+    private static final String CREATE_POST_TABLE = "CREATE TABLE IF NOT EXISTS comment_post"
+            + " (comment_id BIGINT NOT NULL PRIMARY KEY, post_id BIGINT NOT NULL)";
+
+    private static final String INSERT_POST = "INSERT INTO comment_post (comment_id, post_id) VALUES (?, ?)"
+            + " ON DUPLICATE KEY UPDATE comment_id = comment_id";
+
+    private static final String DELETE_POST = "DELETE FROM comment_post WHERE comment_id = ?";
+
+    private static final String FIND_POST = "SELECT post_id FROM comment_post WHERE comment_id = ?";
+
+    static final String FIND_AFTER_ID = SELECT + " WHERE id > ? ORDER BY id LIMIT ?";
+
+    private static final String ORDER_BY_POST = " ORDER BY created_on, id";
+
+    private static final int STREAM_FETCH_SIZE = 500; // rows fetched at once by a stream (MySQL needs useCursorFetch=true)
+
+    static final RowMapper<Comment> COMMENT_MAPPER = (rs, rowNum) -> {
+        Comment comment = new Comment();
+        comment.setId(rs.getLong("id"));
+        comment.setContent(rs.getString("content"));
+        Timestamp createdOn = rs.getTimestamp("created_on");
+        comment.setCreatedOn(createdOn == null ? null : createdOn.toInstant());
+        comment.setUsername(rs.getString("username"));
+        comment.setPostId(rs.getLong("post_id"));
+        return comment;
+    };
+
+    @Autowired
+    private SnowflakeIdGenerator idGenerator; // to assign ids to new comments
+
+    @Autowired
+    private MeterRegistry meterRegistry; // to report the pool metrics of the shards
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate; // application DB, to find the post of a comment
+
+    @Value("${app.comments.shards.urls}")
+    private List<String> urls; // JDBC urls of the shards, in shard order
+
+    @Value("${app.comments.shards.username}")
+    private String username;
+
+    @Value("${app.comments.shards.password}")
+    private String password;
+
+    @Value("${app.comments.shards.pool-size}")
+    private int poolSize; // max number of connections to each shard
+
+    private final List<Shard> shards = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        if (urls.isEmpty()) {
+            throw new IllegalStateException("app.comments.shards.urls must list at least one shard");
+        }
+        for (String url : urls) {
+            HikariDataSource dataSource = createDataSource("comment-shard-" + shards.size(), url);
+            shards.add(new Shard(dataSource));
+            new JdbcTemplate(dataSource).execute(CREATE_TABLE);
+        }
+        jdbcTemplate.execute(CREATE_POST_TABLE);
+        LOGGER.info("Comments are stored in {} shard(s)", shards.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        shards.forEach(shard -> shard.dataSource.close());
+    }
+
+    @Override
+    public Comment save(Comment comment) {
+        if (comment.getId() == null) {
+            comment.setId(idGenerator.nextId());
+        }
+        savePosts(Collections.singletonList(comment));
+        shardOf(comment.getPostId()).jdbcTemplate.update(INSERT, comment.getId(), comment.getContent(),
+                Timestamp.from(comment.getCreatedOn()), comment.getUsername(), comment.getPostId());
+        return comment;
+    }
+
+    @Override
+    public void saveAll(List<Comment> comments) {
+        Map<Integer, List<Comment>> byShard = comments.stream().collect(Collectors.groupingBy(
+                comment -> indexOf(comment.getPostId()), LinkedHashMap::new, Collectors.toList()));
+        // one transaction per shard: a failed call may have written some shards, saving again skips them
+        byShard.forEach(this::insert);
+    }
+
+    @Override
+    public void delete(Comment comment) {
+        shardOf(comment.getPostId()).jdbcTemplate.update(DELETE, comment.getId());
+        jdbcTemplate.update(DELETE_POST, comment.getId());
+    }
+
+    @Override
+    public Optional<Comment> findById(Long id) {
+        List<Long> postIds = jdbcTemplate.queryForList(FIND_POST, Long.class, id);
+        if (postIds.isEmpty()) {
+            return Optional.empty();
+        }
+        return shardOf(postIds.get(0)).jdbcTemplate.query(SELECT + " WHERE id = ?", COMMENT_MAPPER, id)
+                .stream().findFirst();
+    }
+
+    @Override
+    public Optional<Instant> findCreatedOnById(Long id) {
+        return findById(id).map(Comment::getCreatedOn);
+    }
+
+    @Override
+    public List<Comment> findByPostId(Long postId) {
+        return shardOf(postId).jdbcTemplate.query(SELECT + " WHERE post_id = ?" + ORDER_BY_POST, COMMENT_MAPPER,
+                postId);
+    }
+
+    @Override
+    public List<Comment> findFirstByPostId(Long postId, int limit) {
+        return shardOf(postId).jdbcTemplate.query(SELECT + " WHERE post_id = ?" + ORDER_BY_POST + " LIMIT ?",
+                COMMENT_MAPPER, postId, limit);
+    }
+
+    @Override
+    public List<Comment> findNextByPostId(Long postId, Instant createdOn, Long id, int limit) {
+        Timestamp after = Timestamp.from(createdOn);
+        return shardOf(postId).jdbcTemplate.query(SELECT + " WHERE post_id = ?"
+                        + " AND (created_on > ? OR (created_on = ? AND id > ?))" + ORDER_BY_POST + " LIMIT ?",
+                COMMENT_MAPPER, postId, after, after, id, limit);
+    }
+
+    @Override
+    public Stream<Comment> streamByPostId(Long postId) {
+        return shardOf(postId).streamTemplate.queryForStream(SELECT + " WHERE post_id = ?" + ORDER_BY_POST,
+                COMMENT_MAPPER, postId);
+    }
+
+    @Override
+    public List<Comment> findAfterId(Long id, int limit) {
+        List<Comment> found = new ArrayList<>();
+        for (Shard shard : shards) {
+            found.addAll(shard.jdbcTemplate.query(FIND_AFTER_ID, COMMENT_MAPPER, id, limit));
+        }
+        return found.stream()
+                .sorted(Comparator.comparing(Comment::getId))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * Get the shard of a post
+     *
+     * @param postId Post id
+     * @return Shard index
+     */
+    public int indexOf(Long postId) {
+        return jumpConsistentHash(mix(postId), shards.size());
+    }
+
+    /**
+     * Keep the posts of comments, to find the comments by id (posts already kept are skipped)
+     *
+     * @param comments Comments
+     */
+    void savePosts(List<Comment> comments) {
+        jdbcTemplate.batchUpdate(INSERT_POST, comments, comments.size(), (ps, comment) -> {
+            ps.setLong(1, comment.getId());
+            ps.setLong(2, comment.getPostId());
+        });
+    }
+
+    /**
+     * Insert comments into a shard in one transaction (comments already in the shard are skipped)
+     *
+     * @param index Shard index
+     * @param comments Comments of the posts of the shard
+     */
+    void insert(int index, List<Comment> comments) {
+        savePosts(comments);
+        Shard shard = shards.get(index);
+        shard.transactionTemplate.execute(status -> shard.jdbcTemplate.batchUpdate(INSERT, comments,
+                comments.size(), (ps, comment) -> {
+                    ps.setLong(1, comment.getId());
+                    ps.setString(2, comment.getContent());
+                    ps.setTimestamp(3, Timestamp.from(comment.getCreatedOn()));
+                    ps.setString(4, comment.getUsername());
+                    ps.setLong(5, comment.getPostId());
+                }));
+    }
+
+    JdbcTemplate getJdbcTemplate(int index) {
+        return shards.get(index).jdbcTemplate;
+    }
+
+    /**
+     * Create the connection pool of a shard
+     *
+     * @param poolName Name of the pool in metrics
+     * @param url JDBC url of the shard
+     * @return Data source of the shard
+     */
+    HikariDataSource createDataSource(String poolName, String url) {
+        HikariDataSource dataSource = new HikariDataSource();
+        dataSource.setPoolName(poolName);
+        dataSource.setJdbcUrl(url.trim());
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        dataSource.setMaximumPoolSize(poolSize);
+        dataSource.setMetricRegistry(meterRegistry);
+        return dataSource;
+    }
+
+    private Shard shardOf(Long postId) {
+        return shards.get(indexOf(postId));
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach): when the number of buckets grows from n to n + 1,
+     * only 1 / (n + 1) of the keys move, all of them to the new bucket.
+     *
+     * @param key Key
+     * @param buckets Number of buckets
+     * @return Bucket of the key, from 0 to buckets - 1
+     */
+    private static int jumpConsistentHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * Spread the bits of a post id: ids are time ordered, so their low bits are mostly equal
+     *
+     * @param postId Post id
+     * @return Mixed key (finalizer of MurmurHash3)
+     */
+    private static long mix(long postId) {
+        long h = postId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Shard with its connection pool
+     */
+    private static class Shard {
+
+        private final HikariDataSource dataSource;
+        private final JdbcTemplate jdbcTemplate;
+        private final JdbcTemplate streamTemplate; // fetches rows in batches
+        private final TransactionTemplate transactionTemplate;
+
+        Shard(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+            this.jdbcTemplate = new JdbcTemplate(dataSource);
+            this.streamTemplate = new JdbcTemplate(dataSource);
+            this.streamTemplate.setFetchSize(STREAM_FETCH_SIZE);
+            this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        }
+    }
+}
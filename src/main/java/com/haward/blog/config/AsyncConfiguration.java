@@ -0,0 +1,152 @@
+package com.haward.blog.config;
+
+import com.haward.blog.replica.ReplicaRoutingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.AsyncAnnotationBeanPostProcessor;
+import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Enable background work off the request threads (i.e. image renditions, password hashing, signups, post loads,
+ * events)
+ */
+@Configuration
+@EnableAsync
+public class AsyncConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncConfiguration.class);
+
+    /**
+     * Default executor, used by Spring MVC for async requests (i.e. streamed comments) and by plain @Async.
+     * Spring Boot does not create its own once the executors below are declared, and MVC would then start
+     * an unbounded thread per streamed response. Every streamed response holds a DB connection, so the
+     * threads are bounded below the connection pool. When it is full, the request is rejected
+     * (TaskRejectedException), so the client gets HTTP 503 (see ContentEndPoint).
+     *
+     * @param threads Number of worker threads
+     * @param queueCapacity Number of pending streamed responses
+     * @return Default executor
+     */
+    @Bean(name = {"applicationTaskExecutor", AsyncAnnotationBeanPostProcessor.DEFAULT_TASK_EXECUTOR_BEAN_NAME})
+    public ThreadPoolTaskExecutor applicationTaskExecutor(@Value("${app.async.threads}") int threads,
+                                                          @Value("${app.async.queue-capacity}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("task-");
+        return executor;
+    }
+
+    /**
+     * Executor to generate image renditions. It is small and bounded so that image
+     * processing never competes with request handling. When it is full, the work is
+     * dropped: the original image is served until a rendition is available.
+     *
+     * @param threads Number of worker threads
+     * @param queueCapacity Number of pending images
+     * @return Rendition executor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor renditionExecutor(@Value("${app.image.rendition.threads}") int threads,
+                                                    @Value("${app.image.rendition.queue-capacity}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("rendition-");
+        executor.setRejectedExecutionHandler((task, pool) ->
+                LOGGER.warn("Rendition queue is full. Task is dropped."));
+        return executor;
+    }
+
+    /**
+     * Executor to hash and verify passwords (BCrypt). BCrypt is slow on purpose and CPU bound, so a burst
+     * of signins runs on these few threads and never takes the request threads from content reads.
+     * When its queue is full, the task is rejected at once (TaskRejectedException), so the client gets
+     * HTTP 503 instead of waiting.
+     *
+     * @param threads Number of worker threads (about the number of CPU cores)
+     * @param queueCapacity Number of pending signins and signups
+     * @return Password executor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor passwordExecutor(@Value("${app.password.threads}") int threads,
+                                                   @Value("${app.password.queue-capacity}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("password-");
+        return executor;
+    }
+
+    /**
+     * Executor to save new users once their password has been hashed. The DB round trip of a signup runs here,
+     * so it never holds a password thread. When it is full, the signup is rejected with HTTP 503.
+     *
+     * @param threads Number of worker threads
+     * @param queueCapacity Number of pending signups
+     * @return Signup executor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor signupExecutor(@Value("${app.signup.threads}") int threads,
+                                                 @Value("${app.signup.queue-capacity}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("signup-");
+        return executor;
+    }
+
+    /**
+     * Executor to load posts into the post cache. A request waiting for a slow load can give up and serve
+     * an expired copy of the post, while the load goes on here. When it is full, the request loads the post
+     * itself (see PostCache). With read replicas, a load is routed like the request that started it, so an
+     * author reads a post it has just created from the primary.
+     *
+     * @param threads Number of worker threads
+     * @param queueCapacity Number of pending loads
+     * @param replicaRoutingDataSource Routing of the read-only transactions, if read replicas are enabled
+     * @return Post load executor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor postLoadExecutor(@Value("${app.post-cache.threads}") int threads,
+                                                   @Value("${app.post-cache.queue-capacity}") int queueCapacity,
+                                                   ObjectProvider<ReplicaRoutingDataSource> replicaRoutingDataSource) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("post-load-");
+        replicaRoutingDataSource.ifAvailable(routing -> executor.setTaskDecorator(routing::withCurrentRoute));
+        return executor;
+    }
+
+    /**
+     * Executor to write the change feed events to the subscribers. The subscriptions are async requests,
+     * so thousands of idle subscribers need no thread: a task is queued here only for a subscriber with
+     * pending events. When it is full, the subscriber is disconnected (see ChangeFeed). A thread is added for
+     * as long as a write to a stalled subscriber blocks one of the threads.
+     *
+     * @param threads Number of worker threads
+     * @param queueCapacity Number of subscribers waiting for their events
+     * @return Event executor
+     */
+    @Bean
+    public ThreadPoolTaskExecutor eventExecutor(@Value("${app.events.threads}") int threads,
+                                                @Value("${app.events.queue-capacity}") int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("event-");
+        return executor;
+    }
+}
@@ -0,0 +1,44 @@
+package com.haward.blog.config;
+
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.ClassPathResource;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.io.IOException;
+
+/**
+ * Provide the cache manager of the Hibernate second-level cache, configured by ehcache.xml
+ * (regions, sizes and TTLs). It is created here rather than from hibernate.javax.cache.uri, so
+ * ehcache.xml is found in the same way in the IDE, in tests and in the packaged jar.
+ */
+@Configuration
+public class HibernateCacheConfiguration {
+
+    /**
+     * Cache manager of the second-level cache regions. It is closed with the application context.
+     *
+     * @return Ehcache JCache manager
+     * @throws IOException if ehcache.xml is not found
+     */
+    @Bean
+    public CacheManager hibernateCacheManager() throws IOException {
+        return Caching.getCachingProvider(EhcacheCachingProvider.class.getName())
+                .getCacheManager(new ClassPathResource("ehcache.xml").getURI(), getClass().getClassLoader());
+    }
+
+    /**
+     * Make Hibernate use the cache manager
+     *
+     * @param hibernateCacheManager Cache manager of the second-level cache regions
+     * @return Hibernate properties customizer
+     */
+    @Bean
+    public HibernatePropertiesCustomizer hibernateCacheCustomizer(CacheManager hibernateCacheManager) {
+        return properties -> properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager);
+    }
+}
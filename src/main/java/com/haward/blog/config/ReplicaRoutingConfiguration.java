@@ -0,0 +1,129 @@
+package com.haward.blog.config;
+
+import com.haward.blog.replica.ReplicaCacheMode;
+import com.haward.blog.replica.ReplicaRoutingDataSource;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.resource.jdbc.spi.PhysicalConnectionHandlingMode;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Send read-only transactions to read replicas (see ReplicaRoutingDataSource), if enabled.
+ * The primary is configured by spring.datasource as usual, the replicas by app.datasource.replica.
+ */
+@Configuration
+@ConditionalOnProperty(name = "app.datasource.replica.enabled", havingValue = "true")
+public class ReplicaRoutingConfiguration {
+
+    private static final long REPLICA_CONNECTION_TIMEOUT = 1000; // milliseconds, a dead replica fails fast
+
+    /**
+     * Connection pool of the primary, as Spring Boot would create it
+     *
+     * @param properties Properties of spring.datasource
+     * @return Primary data source
+     */
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    /**
+     * Data source routing the read-only transactions to the replicas. Their reads are not put in the
+     * Hibernate caches (see ReplicaCacheMode). The reads of a user go to the primary for a while after
+     * the user has written, so that the user reads their own writes.
+     *
+     * @param primaryDataSource Primary data source
+     * @param urls JDBC urls of the replicas
+     * @param username Username of the replicas
+     * @param password Password of the replicas
+     * @param poolSize Max number of connections to each replica
+     * @param node Node id of this instance
+     * @param maxLag Milliseconds a replica may lag behind the primary
+     * @param checkInterval Milliseconds between heartbeats
+     * @param meterRegistry Registry of the pool and lag metrics
+     * @param entityManagerFactory Factory of the sessions whose cache mode is set
+     * @return Routing data source
+     */
+    @Bean
+    public ReplicaRoutingDataSource replicaRoutingDataSource(HikariDataSource primaryDataSource,
+                                                             @Value("${app.datasource.replica.urls}") List<String> urls,
+                                                             @Value("${app.datasource.replica.username}") String username,
+                                                             @Value("${app.datasource.replica.password}") String password,
+                                                             @Value("${app.datasource.replica.pool-size}") int poolSize,
+                                                             @Value("${app.id.node}") int node,
+                                                             @Value("${app.datasource.replica.max-lag}") long maxLag,
+                                                             @Value("${app.datasource.replica.check-interval}") long checkInterval,
+                                                             MeterRegistry meterRegistry,
+                                                             ObjectProvider<EntityManagerFactory> entityManagerFactory) {
+        List<DataSource> replicas = new ArrayList<>();
+        for (String url : urls) {
+            HikariDataSource replica = new HikariDataSource();
+            replica.setPoolName("replica-" + replicas.size());
+            replica.setJdbcUrl(url.trim());
+            replica.setUsername(username);
+            replica.setPassword(password);
+            replica.setMaximumPoolSize(poolSize);
+            replica.setConnectionTimeout(REPLICA_CONNECTION_TIMEOUT);
+            replica.setReadOnly(true);
+            replica.setMetricRegistry(meterRegistry);
+            replicas.add(replica);
+        }
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primaryDataSource, replicas, node, maxLag,
+                meterRegistry);
+        routing.setReplicaListener(new ReplicaCacheMode(entityManagerFactory));
+        routing.setClientKey(() -> {
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            // anonymous requests share one name, they are not told apart
+            return authentication == null || authentication instanceof AnonymousAuthenticationToken
+                    ? null : authentication.getName();
+        });
+        routing.setCheckInterval(checkInterval);
+        return routing;
+    }
+
+    /**
+     * Data source of JPA and JdbcTemplate. The connection is taken from the routing data source on
+     * the first statement, once the read-only flag of the transaction is known.
+     *
+     * @param replicaRoutingDataSource Routing data source
+     * @return Lazy data source
+     */
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource replicaRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(replicaRoutingDataSource);
+    }
+
+    /**
+     * Make Hibernate release the connection after each transaction. Else, the EntityManager of a request
+     * (open in view) keeps the connection of its first transaction, even if it is a replica connection
+     * and the next transaction writes.
+     *
+     * @return Hibernate properties customizer
+     */
+    @Bean
+    public HibernatePropertiesCustomizer connectionReleaseCustomizer() {
+        return properties -> properties.put(AvailableSettings.CONNECTION_HANDLING,
+                PhysicalConnectionHandlingMode.DELAYED_ACQUISITION_AND_RELEASE_AFTER_TRANSACTION);
+    }
+}
@@ -0,0 +1,13 @@
+package com.haward.blog.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enable background tasks (i.e. expiring stale upload sessions).
+ * They run on the scheduler of Spring Boot, with spring.task.scheduling.pool.size threads.
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration {
+}
@@ -1,24 +1,34 @@
 package com.haward.blog.endpoint;
 
+import com.haward.blog.cluster.ChangeLog;
 import com.haward.blog.view.request.SigninItem;
 import com.haward.blog.view.request.SignupItem;
 import com.haward.blog.view.response.JwtResponse;
 import com.haward.blog.view.response.ResponseMessage;
 import com.haward.blog.model.User;
+import com.haward.blog.repository.UserIdentity;
 import com.haward.blog.repository.UserRepository;
 import com.haward.blog.security.AuthComponent;
+import com.haward.blog.security.PasswordWorker;
+import com.haward.blog.security.TakenIdentityFilter;
+import com.haward.blog.security.exception.ServiceBusyException;
+import com.haward.blog.security.userdetails.CustomUserDetails;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.Authentication;
-import org.springframework.security.core.context.SecurityContextHolder;
-import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.web.bind.annotation.*;
 
 import javax.validation.Valid;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *   This class has all the user endpoints to login and create a new account.
@@ -40,52 +50,97 @@ public class AuthEndPoint {
     @Autowired
     AuthComponent authComponent; // to generate token
 
+    @Autowired
+    PasswordWorker passwordWorker; // to hash and verify passwords off the request threads
+
+    @Autowired
+    TakenIdentityFilter takenIdentityFilter; // to skip DB lookups of free usernames and emails
+
+    @Autowired
+    ChangeLog changeLog; // to tell the other instances about a new user (i.e. a cached unknown username)
+
+    @Autowired
+    @Qualifier("signupExecutor")
+    ThreadPoolTaskExecutor signupExecutor; // to save new users without holding a password thread
+
     /**
-     * Authenticate user for login
+     * Authenticate user for login.
+     * The password is verified on the password threads, the request thread is released meanwhile.
      *
      * @param loginItem
      * @return Status 200 with user info if login info is valid. Else, return error status
+     *         (HttpStatus.SERVICE_UNAVAILABLE if too many signins are in progress)
      */
     @PostMapping("/signin")
-    public ResponseEntity<?> authenticateUser(@Valid @RequestBody SigninItem loginItem) {
-        Authentication authentication = authenticationManager.authenticate(
-                new UsernamePasswordAuthenticationToken(loginItem.getUsername(), loginItem.getPassword()));
-        SecurityContextHolder.getContext().setAuthentication(authentication);
-        String token = authComponent.generateToken(authentication);
-        UserDetails userDetails = (UserDetails) authentication.getPrincipal();
-        // find user in repository
-        User user = userRepository.findByUsername(userDetails.getUsername())
-                .orElseThrow(() -> new IllegalArgumentException("Uaer not found in repository"));
-        // return status 200 with user info
-        return ResponseEntity.ok(new JwtResponse(token, userDetails.getUsername(),
-                user.getFirstname(), user.getLastname()));
+    public CompletableFuture<ResponseEntity<?>> authenticateUser(@Valid @RequestBody SigninItem loginItem) {
+        return passwordWorker.submit(() -> authenticationManager.authenticate(
+                new UsernamePasswordAuthenticationToken(loginItem.getUsername(), loginItem.getPassword())))
+                .thenApply(authentication -> {
+                    String token = authComponent.generateToken(authentication);
+                    // user has been loaded from repository during authentication
+                    CustomUserDetails userDetails = (CustomUserDetails) authentication.getPrincipal();
+                    // return status 200 with user info
+                    return ResponseEntity.ok(new JwtResponse(token, userDetails.getUsername(),
+                            userDetails.getFirstname(), userDetails.getLastname()));
+                });
     }
 
     /**
-     * Sign up a new user
+     * Sign up a new user.
+     * The password is hashed on the password threads, then the user is saved on the signup threads.
+     * The request thread is released meanwhile.
      *
      * @param signUpItem New user info
      * @return HttpStatus.OK after user has been registered successfully. Else, return error status
+     *         (HttpStatus.SERVICE_UNAVAILABLE if too many signups are in progress)
      */
     @PostMapping("/signup")
-    public ResponseEntity<?> registerUser(@Valid @RequestBody SignupItem signUpItem) {
-        // make sure username is unique
-        if (userRepository.existsByUsername(signUpItem.getUsername())) {
-            return new ResponseEntity<>(new ResponseMessage("Username is taken. Try another."), HttpStatus.BAD_REQUEST);
+    public CompletableFuture<ResponseEntity<?>> registerUser(@Valid @RequestBody SignupItem signUpItem) {
+        // make sure username and email are unique, DB is only queried if one of them may be taken
+        List<UserIdentity> taken = takenIdentityFilter.mightBeTaken(signUpItem.getUsername(), signUpItem.getEmail())
+                ? userRepository.findByUsernameOrEmail(signUpItem.getUsername(), signUpItem.getEmail())
+                : Collections.emptyList();
+        if (taken.stream().anyMatch(user -> user.getUsername().equalsIgnoreCase(signUpItem.getUsername()))) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(
+                    new ResponseMessage("Username is taken. Try another."), HttpStatus.BAD_REQUEST));
         }
-
-        // make sure email is unique
-        if (userRepository.existsByEmail(signUpItem.getEmail())) {
-            return new ResponseEntity<>(new ResponseMessage("Email is taken. Try another."), HttpStatus.BAD_REQUEST);
+        if (!taken.isEmpty()) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(
+                    new ResponseMessage("Email is taken. Try another."), HttpStatus.BAD_REQUEST));
         }
 
-        User user = new User(signUpItem.getFirstname(), signUpItem.getLastname(), signUpItem.getUsername(),
-                signUpItem.getEmail(), passwordEncoder.encode(signUpItem.getPassword()));
-        userRepository.save(user); // persist user info into DB
+        return passwordWorker.submit(() -> passwordEncoder.encode(signUpItem.getPassword()))
+                .thenApplyAsync(password -> {
+                    User user = new User(signUpItem.getFirstname(), signUpItem.getLastname(),
+                            signUpItem.getUsername(), signUpItem.getEmail(), password);
+                    try {
+                        userRepository.save(user); // persist user info into DB
+                        changeLog.record(ChangeLog.USER_SAVED, user.getId());
+                    } catch (DataIntegrityViolationException e) {
+                        // unique constraints are the final check (i.e. concurrent signups with the same username)
+                        return new ResponseEntity<>(new ResponseMessage("Username or email is taken. Try another."),
+                                HttpStatus.BAD_REQUEST);
+                    }
+                    takenIdentityFilter.add(user.getUsername(), user.getEmail());
+
+                    return new ResponseEntity<>(new ResponseMessage(
+                            "User " + signUpItem.getFirstname() + " has been created successfully"),
+                            HttpStatus.OK);
+                }, this::executeSignup);
+    }
 
-        return new ResponseEntity<>(new ResponseMessage(
-                "User " + signUpItem.getFirstname() + " has been created successfully"),
-                HttpStatus.OK);
+    /**
+     * Helper method to run the DB part of a signup on the signup executor
+     *
+     * @param task Task saving a new user
+     * @throws ServiceBusyException if too many signups are waiting
+     */
+    private void executeSignup(Runnable task) {
+        try {
+            signupExecutor.execute(task);
+        } catch (TaskRejectedException e) {
+            throw new ServiceBusyException("Too many signups in progress. Retry later.", e);
+        }
     }
 
 }
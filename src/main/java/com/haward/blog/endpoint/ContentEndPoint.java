@@ -1,32 +1,63 @@
 package com.haward.blog.endpoint;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haward.blog.feed.KeysetCursor;
 import com.haward.blog.model.Image;
+import com.haward.blog.model.ImageRendition;
 import com.haward.blog.security.ContentService;
+import com.haward.blog.storage.ImageStreamer;
 import com.haward.blog.view.request.CommentItem;
 import com.haward.blog.view.request.Payload;
 import com.haward.blog.view.request.PostItem;
+import com.haward.blog.view.response.CursorPage;
+import com.haward.blog.view.response.FeedPage;
+import com.haward.blog.view.response.PostBundle;
+import com.haward.blog.view.response.PostSummary;
+import com.haward.blog.view.response.ResponseMessage;
+import com.haward.blog.view.response.SearchPage;
 
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.StringUtils;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  *   This class has the endpoints to
- *   - create, read post
+ *   - create, read post(s)
+ *   - read the feed of posts, latest first
  *   - create, read, delete comment(s) of a specific post
+ *   - page through or stream the comments of a specific post
  *   - retrieve an image belonged to a specific post
+ *   - push new posts and comments as Server-Sent Events
  */
 
 @RestController
@@ -36,11 +67,51 @@ public class ContentEndPoint {
     @Autowired
     private ContentService contentService; // content manager for post, image, and comment
 
+    @Autowired
+    private ImageStreamer imageStreamer; // to stream binary image to response
+
+    // same configuration as the JSON message converter of Spring MVC
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    private static final int PAGE_SIZE = 11; // number of posts per page
+
+    private static final int MAX_FEED_SIZE = 50; // max number of posts per feed request
+
+    private static final int COMMENT_PAGE_SIZE = 20; // number of comments per page
+
+    private static final int MAX_COMMENT_PAGE_SIZE = 100; // max number of comments per page
+
+    private static final int MAX_BATCH_SIZE = 50; // max number of posts per batch request
+
+    private static final int SEARCH_PAGE_SIZE = 10; // number of hits per search page
+
+    private static final int MAX_SEARCH_SIZE = 50; // max number of hits per search page
+
+    private static final int MAX_SEARCH_DEPTH = 1000; // deeper hits are not ranked, refine the query instead
+
+    private static final int MAX_EVENT_POSTS = 100; // max number of posts whose comments are pushed per subscriber
+
+    private static final String NDJSON = "application/x-ndjson";
+
+    private static final String VIEW_POST = "post";       // whole posts
+    private static final String VIEW_SUMMARY = "summary"; // post summaries with an excerpt
+
+    // fields of a post that can be selected, in response order
+    private static final List<String> POST_FIELDS =
+            Arrays.asList("id", "title", "content", "username", "createdOn", "imageId");
+
+    // an image id always refers to the same content
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+    private static final CacheControl SHORT_CACHE = CacheControl.maxAge(60, TimeUnit.SECONDS).cachePublic();
+
+    private static final CacheControl REVALIDATE = CacheControl.noCache();
+
     /**
      * Create a new post
      * Precondition: User has been authenticated.
      *
-     * @param payload New post info
+     * @param payload New post info with either an image file or the id of a completed upload
      * #return HttpStatus.OK after persisting post content successfully. Else, return error status.
      */
     @RequestMapping(value="/new/post", method = RequestMethod.POST, consumes = {"multipart/form-data"})
@@ -49,7 +120,12 @@ public class ContentEndPoint {
         postItem.setTitle(payload.getTitle());
         postItem.setContent(payload.getContent());
         MultipartFile imageFile = payload.getImageFile();
-        contentService.createPost(postItem, imageFile);
+        if (imageFile == null && payload.getUploadId() != null) {
+            // image has been uploaded in chunks before
+            contentService.createPost(postItem, payload.getUploadId());
+        } else {
+            contentService.createPost(postItem, imageFile);
+        }
         return new ResponseEntity(HttpStatus.OK);
     }
 
@@ -60,34 +136,82 @@ public class ContentEndPoint {
      * - Comment for target post is existed
      *
      * @param commentItem New comment details from user
-     * @return HttpStatus.OK after persisting comment successfully. Else, return error status.
+     * @return HttpStatus.OK along with the new comment and its id. Else, return error status
+     *         (HttpStatus.SERVICE_UNAVAILABLE if too many comments are waiting to be written)
      */
     @RequestMapping(value="/new/comment", method = RequestMethod.POST)
-    public ResponseEntity createComment(@Valid @RequestBody CommentItem commentItem) {
-        contentService.createComment(commentItem);
-        return new ResponseEntity(HttpStatus.OK);
+    public ResponseEntity<CommentItem> createComment(@Valid @RequestBody CommentItem commentItem) {
+        return new ResponseEntity<>(contentService.createComment(commentItem), HttpStatus.OK);
     }
 
     /**
-     * Retrieve a specific post
+     * Retrieve a specific post.
+     * A post is never modified, so its creation time validates a cached copy (ETag, Last-Modified).
+     * The ETag also changes when the post counters (views, comments) have been written to DB.
+     * With fields (i.e. fields=id,title,createdOn), only the given fields are returned,
+     * and the content is not loaded unless it is requested.
      *
      * @param id A unique identification of an existing post
-     * @return Post info
+     * @param fields Optional comma separated list of fields to return
+     * @param webRequest Web request to check conditional headers
+     * @return Post info. Else, return HttpStatus.NOT_MODIFIED if client has the latest copy
      */
     @GetMapping("/post/{id}")
-    public ResponseEntity<PostItem> readPost(@PathVariable @RequestBody Long id) {
-        return new ResponseEntity<>(contentService.readPost(id), HttpStatus.OK);
+    public ResponseEntity<?> readPost(@PathVariable @RequestBody Long id,
+                                      @RequestParam(required = false) String fields, WebRequest webRequest) {
+        Instant createdOn = contentService.getPostCreatedOn(id);
+        if (fields == null) {
+            String etag = "\"post-" + id + "-" + createdOn.toEpochMilli() + "-" + contentService.getCountersVersion()
+                    + "\"";
+            return conditional(webRequest, etag, createdOn.toEpochMilli(), SHORT_CACHE,
+                    () -> contentService.readPost(id));
+        }
+        Set<String> selected = new LinkedHashSet<>();
+        for (String field : POST_FIELDS) {
+            if (Arrays.asList(fields.split(",")).contains(field)) {
+                selected.add(field);
+            }
+        }
+        if (selected.isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        String etag = "\"post-" + id + "-" + createdOn.toEpochMilli() + "-" + contentService.getCountersVersion()
+                + "-" + String.join(".", selected) + "\"";
+        return conditional(webRequest, etag, createdOn.toEpochMilli(), SHORT_CACHE,
+                () -> toFields(id, selected));
+    }
+
+    /**
+     * Retrieve several posts at once, each with its first comments and its image metadata
+     * (i.e. to render a feed with a single request)
+     *
+     * @param ids Post ids (50 at max)
+     * @param comments Optional number of comments per post (5 by default, 100 at max)
+     * @return HttpStatus.OK along with the found posts in the requested order. Else, return error status
+     */
+    @GetMapping("/posts")
+    public ResponseEntity<List<PostBundle>> readPosts(@RequestParam List<Long> ids,
+                                                      @RequestParam(defaultValue = "5") int comments) {
+        if (ids.isEmpty() || ids.size() > MAX_BATCH_SIZE) {
+            return ResponseEntity.badRequest().build();
+        }
+        int commentLimit = Math.max(1, Math.min(comments, MAX_COMMENT_PAGE_SIZE));
+        return ResponseEntity.ok().cacheControl(REVALIDATE).body(contentService.readPostBundles(ids, commentLimit));
     }
 
     /**
      * Retrieve one of the comments of a specific post
      *
      * @param id Comment's unique identification
-     * @return Comment info
+     * @param webRequest Web request to check conditional headers
+     * @return Comment info. Else, return HttpStatus.NOT_MODIFIED if client has the latest copy
      */
     @GetMapping("/comment/{id}")
-    public ResponseEntity<CommentItem> readComment(@PathVariable @RequestBody Long id) {
-        return new ResponseEntity<>(contentService.readComment(id), HttpStatus.OK);
+    public ResponseEntity<CommentItem> readComment(@PathVariable @RequestBody Long id, WebRequest webRequest) {
+        Instant createdOn = contentService.getCommentCreatedOn(id);
+        String etag = "\"comment-" + id + "-" + createdOn.toEpochMilli() + "\"";
+        return conditional(webRequest, etag, createdOn.toEpochMilli(), SHORT_CACHE,
+                () -> contentService.readComment(id));
     }
 
     /**
@@ -106,42 +230,321 @@ public class ContentEndPoint {
     }
 
     /**
-     * Retrieve all the comments of a specific post
+     * Retrieve all the comments of a specific post.
+     * The ETag is computed from the returned comments, so it never validates another version of them.
      *
      * @param id Post id
+     * @param webRequest Web request to check conditional headers
      * @return HttpStatus.OK along with the related comments of a specific post. Else, return error status
      */
     @GetMapping("/comments/post/{id}")
-    public ResponseEntity<List<CommentItem>> readCommentsByPostId(@PathVariable @RequestBody Long id) {
-        List<CommentItem> commentItemList = contentService.readCommentsByPostId(id);
-        return new ResponseEntity<>(commentItemList, HttpStatus.OK);
+    public ResponseEntity<List<CommentItem>> readCommentsByPostId(@PathVariable @RequestBody Long id,
+                                                                  WebRequest webRequest) {
+        List<CommentItem> comments = contentService.readCommentsByPostId(id);
+        String etag = "\"comments-" + id + "-" + versionOf(comments) + "\"";
+        return conditional(webRequest, etag, -1, REVALIDATE, () -> comments);
+    }
+
+    /**
+     * Retrieve a page of the comments of a specific post, oldest first.
+     * With the nextCursor of a page, the next comments are returned.
+     * The ETag is computed from the returned page, as for all the comments of a post.
+     *
+     * @param id Post id
+     * @param cursor Optional cursor from a previous page
+     * @param size Optional number of comments (20 by default, 100 at max)
+     * @param webRequest Web request to check conditional headers
+     * @return HttpStatus.OK along with a page of comments and its cursor. Else, return error status
+     */
+    @GetMapping("/comments/post/{id}/page")
+    public ResponseEntity<CursorPage<CommentItem>> readCommentPage(
+            @PathVariable Long id, @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "" + COMMENT_PAGE_SIZE) int size, WebRequest webRequest) {
+        KeysetCursor position = (cursor == null || cursor.isEmpty()) ? null : KeysetCursor.decode(cursor);
+        int pageSize = Math.max(1, Math.min(size, MAX_COMMENT_PAGE_SIZE));
+        CursorPage<CommentItem> page = contentService.readCommentPage(id, position, pageSize);
+        String etag = "\"comments-" + id + "-" + versionOf(page.getItems()) + "-"
+                + (page.getNextCursor() == null ? "last" : "more") + "\"";
+        return conditional(webRequest, etag, -1, REVALIDATE, () -> page);
+    }
+
+    /**
+     * Stream all the comments of a specific post as newline delimited JSON (one comment per line),
+     * oldest first. Comments are written while they are read from DB.
+     *
+     * @param id Post id
+     * @return HttpStatus.OK along with the comment stream
+     */
+    @GetMapping(value = "/comments/post/{id}/stream", produces = NDJSON)
+    public ResponseEntity<StreamingResponseBody> streamCommentsByPostId(@PathVariable Long id) {
+        StreamingResponseBody body = out -> contentService.readCommentsByPostId(id, comment -> {
+            try {
+                out.write(objectMapper.writeValueAsBytes(comment));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // client has gone, stop reading
+            }
+        });
+        return ResponseEntity.ok().cacheControl(REVALIDATE).contentType(MediaType.parseMediaType(NDJSON)).body(body);
     }
 
     /**
      * Retrieve max of the latest eleven posts
      *
      * @param id Page id
+     * @param view Optional view of the posts: post (default) or summary (excerpt instead of content)
+     * @param webRequest Web request to check conditional headers
      * @return HttpStatus.OK along with the latest posts (11 posts at max). Else, return error status
      */
-    @GetMapping("/page/{id}")
-    public ResponseEntity<List<PostItem>> readPage(@PathVariable @RequestBody int id) {
-        List<PostItem> postItemList = contentService.readPage(id, 11);
-        return new ResponseEntity<>(postItemList, HttpStatus.OK);
+    @GetMapping(value = "/page/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> readPage(@PathVariable @RequestBody int id,
+                                           @RequestParam(defaultValue = VIEW_POST) String view,
+                                           WebRequest webRequest) {
+        if (!isView(view)) {
+            return ResponseEntity.badRequest().build();
+        }
+        boolean summary = VIEW_SUMMARY.equals(view);
+        String etag = "\"page-" + id + "-" + PAGE_SIZE + "-" + contentService.getPostsWatermark()
+                + "-" + contentService.getCountersVersion()
+                + (summary ? "-" + VIEW_SUMMARY : "") + "\"";
+        // the latest pages are served as pre-serialized JSON
+        return conditional(webRequest, etag, -1, REVALIDATE,
+                () -> contentService.readPageJson(id, PAGE_SIZE, summary));
     }
 
     /**
-     * Retrieve the related image of a specific post
+     * Retrieve a page of the feed, latest posts first.
+     * Without a cursor, the latest posts are returned. With the olderCursor of a page, the next (older)
+     * posts are returned. With the newerCursor of a page and direction=newer, the posts created since then
+     * are returned.
+     *
+     * @param cursor Optional cursor from a previous page
+     * @param direction Optional direction from the cursor: older (default) or newer
+     * @param size Optional number of posts (11 by default, 50 at max)
+     * @param view Optional view of the posts: post (default) or summary (excerpt instead of content)
+     * @return HttpStatus.OK along with a page of posts and its cursors. Else, return error status
+     */
+    @GetMapping("/feed")
+    public ResponseEntity<FeedPage<?>> readFeed(@RequestParam(required = false) String cursor,
+                                                @RequestParam(defaultValue = "older") String direction,
+                                                @RequestParam(defaultValue = "" + PAGE_SIZE) int size,
+                                                @RequestParam(defaultValue = VIEW_POST) String view) {
+        boolean newer = "newer".equalsIgnoreCase(direction);
+        if ((!newer && !"older".equalsIgnoreCase(direction)) || !isView(view)) {
+            return ResponseEntity.badRequest().build();
+        }
+        KeysetCursor position = (cursor == null || cursor.isEmpty()) ? null : KeysetCursor.decode(cursor);
+        int pageSize = Math.max(1, Math.min(size, MAX_FEED_SIZE));
+        FeedPage<?> page = VIEW_SUMMARY.equals(view)
+                ? contentService.readFeedSummaries(position, newer, pageSize)
+                : contentService.readFeed(position, newer, pageSize);
+        return ResponseEntity.ok().cacheControl(REVALIDATE).body(page);
+    }
+
+    /**
+     * Search the titles and contents of the posts and the contents of the comments
+     *
+     * @param q Words to be found. All words must match. "quoted phrase", -excluded, prefix* and a|b are supported.
+     * @param page Optional page number (0 by default)
+     * @param size Optional number of hits per page (10 by default, 50 at max)
+     * @return HttpStatus.OK along with a page of hits, most relevant first. Else, return error status
+     *         (HttpStatus.BAD_REQUEST if the query is empty or the page is beyond the first 1000 hits)
+     */
+    @GetMapping("/search")
+    public ResponseEntity<SearchPage> search(@RequestParam String q, @RequestParam(defaultValue = "0") int page,
+                                             @RequestParam(defaultValue = "" + SEARCH_PAGE_SIZE) int size) {
+        int pageSize = Math.max(1, Math.min(size, MAX_SEARCH_SIZE));
+        if (!StringUtils.hasText(q) || page < 0 || (long) (page + 1) * pageSize > MAX_SEARCH_DEPTH) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok().cacheControl(REVALIDATE).body(contentService.search(q, page, pageSize));
+    }
+
+    /**
+     * Subscribe to the new posts and to the new comments of some posts, as Server-Sent Events
+     * (event 'post' with a post summary, event 'comment' with a comment), instead of polling the feed.
+     * A client reconnecting with header Last-Event-ID gets the events it has missed, or event 'reset'
+     * if they are too old: it must then reload the content.
+     *
+     * @param posts Optional post ids of the comments to be pushed (100 at max)
+     * @param lastEventId Optional id of the last received event
+     * @return HttpStatus.OK along with the event stream. Else, return error status
+     *         (HttpStatus.SERVICE_UNAVAILABLE if there are too many subscribers)
+     */
+    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> subscribe(@RequestParam(required = false) List<Long> posts,
+                                                @RequestHeader(value = "Last-Event-ID", required = false)
+                                                        String lastEventId) {
+        Set<Long> postIds = posts == null ? new LinkedHashSet<>() : new LinkedHashSet<>(posts);
+        if (postIds.size() > MAX_EVENT_POSTS || postIds.contains(null)) {
+            return ResponseEntity.badRequest().build();
+        }
+        Long lastId = null;
+        if (StringUtils.hasText(lastEventId)) {
+            try {
+                lastId = Long.valueOf(lastEventId.trim());
+            } catch (NumberFormatException e) {
+                return ResponseEntity.badRequest().build();
+            }
+        }
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header("X-Accel-Buffering", "no") // reverse proxies must not buffer the events
+                .body(contentService.subscribe(postIds, lastId));
+    }
+
+    /**
+     * Retrieve the related image of a specific post.
+     * The image is streamed from blob store. A single byte range can be requested
+     * (header Range) to resume a download. HEAD returns the headers only.
+     * With a width, a downscaled JPEG (rendition) is returned when it is available.
+     * Otherwise, the original image is returned.
      *
      * @param id Post id
-     * @return The related image with Status OK. Else, return error status
+     * @param w Optional requested width in pixels
+     * @param request HTTP servlet request
+     * @param response HTTP servlet response to write the image to
+     * @throws IOException IO exception
      */
-    @GetMapping("/image/{id}")
-    public ResponseEntity<Resource> getImage(@PathVariable String id) {
+    @RequestMapping(value = "/image/{id}", method = {RequestMethod.GET, RequestMethod.HEAD})
+    public void getImage(@PathVariable String id, @RequestParam(required = false) Integer w,
+                         HttpServletRequest request, HttpServletResponse response) throws IOException {
         Image image = contentService.getImage(Long.parseLong(id));
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(image.getFileType()))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\""
-                        + image.getFileName() + "\"")
-                .body(new ByteArrayResource(image.getFileContent()));
+        Optional<ImageRendition> rendition = (w == null || w <= 0)
+                ? Optional.empty() : contentService.getImageRendition(image, w);
+        if (rendition.isPresent()) {
+            ImageRendition found = rendition.get();
+            String etag = "\"" + found.getFileHash() + "\"";
+            if (!isImageModified(request, response, etag, IMMUTABLE)) {
+                return;
+            }
+            imageStreamer.write(request, response, found.getStorageKey(), found.getFileSize(),
+                    found.getFileType(), toRenditionFileName(image.getFileName(), found.getWidth()), etag);
+            return;
+        }
+        // the original is served for a width until its rendition is available, so it is cached briefly
+        String etag = "\"" + image.getFileHash() + "\"";
+        if (!isImageModified(request, response, etag, w == null ? IMMUTABLE : SHORT_CACHE.getHeaderValue())) {
+            return;
+        }
+        imageStreamer.write(request, response, image.getStorageKey(), image.getFileSize(),
+                image.getFileType(), image.getFileName(), etag);
+    }
+
+    /**
+     * Reject a streamed response when the async request executor is full
+     *
+     * @param e Exception of the rejected task
+     * @return HttpStatus.SERVICE_UNAVAILABLE, client may retry later
+     */
+    @ExceptionHandler(TaskRejectedException.class)
+    public ResponseEntity<ResponseMessage> handleTaskRejected(TaskRejectedException e) {
+        return new ResponseEntity<>(new ResponseMessage("Too many streamed responses in progress. Retry later."),
+                HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Helper method to answer a conditional GET.
+     * The body is built only when the client does not have the latest copy.
+     *
+     * @param webRequest Web request to check conditional headers
+     * @param etag Strong ETag of the content
+     * @param lastModified Last modified time in milliseconds. Else, -1 if unknown
+     * @param cacheControl Cache policy of the content
+     * @param body Supplier of the body
+     * @return HttpStatus.OK along with the body. Else, return HttpStatus.NOT_MODIFIED
+     */
+    private <T> ResponseEntity<T> conditional(WebRequest webRequest, String etag, long lastModified,
+                                              CacheControl cacheControl, Supplier<T> body) {
+        // ETag and Last-Modified headers are set by checkNotModified
+        if (webRequest.checkNotModified(etag, lastModified)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(cacheControl).build();
+        }
+        return ResponseEntity.ok().cacheControl(cacheControl).body(body.get());
+    }
+
+    /**
+     * Helper method to get a version of a list of comments. Comments are never modified, so the version
+     * changes only when a comment is added or removed.
+     *
+     * @param comments Comments
+     * @return Number of comments and hash of their ids, in order
+     */
+    private static String versionOf(List<CommentItem> comments) {
+        long hash = 0;
+        for (CommentItem comment : comments) {
+            hash = 31 * hash + comment.getId();
+        }
+        return comments.size() + "-" + Long.toHexString(hash);
+    }
+
+    /**
+     * Helper method to check the name of a view
+     *
+     * @param view Requested view
+     * @return True if the view is supported. Else, return false
+     */
+    private boolean isView(String view) {
+        return VIEW_POST.equals(view) || VIEW_SUMMARY.equals(view);
+    }
+
+    /**
+     * Helper method to read the selected fields of a post. The content is loaded only if it is selected.
+     *
+     * @param id Post id
+     * @param fields Selected fields, in response order
+     * @return Selected fields and their values
+     */
+    private Map<String, Object> toFields(Long id, Set<String> fields) {
+        Map<String, Object> values = new HashMap<>();
+        if (fields.contains("content")) {
+            PostItem post = contentService.readPost(id);
+            values.put("id", post.getId());
+            values.put("title", post.getTitle());
+            values.put("content", post.getContent());
+            values.put("username", post.getUsername());
+            values.put("createdOn", post.getCreatedOn());
+            values.put("imageId", post.getImageId());
+        } else {
+            PostSummary post = contentService.readPostSummary(id);
+            values.put("id", post.getId());
+            values.put("title", post.getTitle());
+            values.put("username", post.getUsername());
+            values.put("createdOn", post.getCreatedOn());
+            values.put("imageId", post.getImageId());
+        }
+        Map<String, Object> selected = new LinkedHashMap<>();
+        for (String field : fields) {
+            selected.put(field, values.get(field));
+        }
+        return selected;
+    }
+
+    /**
+     * Helper method to check if a client has the latest copy of an image
+     *
+     * @param request HTTP servlet request
+     * @param response HTTP servlet response
+     * @param etag Strong ETag of the image (content hash)
+     * @param cacheControl Cache policy of the image
+     * @return True if the image must be sent. Else, return false (HttpStatus.NOT_MODIFIED has been set)
+     */
+    private boolean isImageModified(HttpServletRequest request, HttpServletResponse response,
+                                    String etag, String cacheControl) {
+        response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+        return !new ServletWebRequest(request, response).checkNotModified(etag);
+    }
+
+    /**
+     * Helper method to name a rendition after its original image (i.e. starry.png -> starry-160.jpg)
+     *
+     * @param fileName File name of the original image
+     * @param width Rendition width
+     * @return File name of the rendition
+     */
+    private String toRenditionFileName(String fileName, int width) {
+        int dot = fileName.lastIndexOf('.');
+        String baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        return baseName + "-" + width + ".jpg";
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,133 @@
+package com.haward.blog.endpoint;
+
+import com.haward.blog.security.AuthComponent;
+import com.haward.blog.security.userdetails.CustomUserDetails;
+import com.haward.blog.storage.UploadSession;
+import com.haward.blog.storage.UploadSessionService;
+import com.haward.blog.view.request.UploadItem;
+import com.haward.blog.view.response.UploadStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.Valid;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *   This class has the endpoints to upload a large post image in chunks.
+ *   - open an upload session
+ *   - send chunks (any order, retry a chunk after a dropped connection)
+ *   - query the received ranges to resume
+ *   - complete the upload, then create a post with the upload id
+ *   Precondition: User has been authenticated.
+ */
+@RestController
+@RequestMapping("/content/upload")
+public class UploadEndPoint {
+
+    @Autowired
+    private UploadSessionService uploadSessionService; // to manage upload sessions
+
+    @Autowired
+    private AuthComponent authComponent; // to get current user
+
+    /**
+     * Open a new upload session
+     *
+     * @param uploadItem File info to be uploaded
+     * @return Status 200 with the new upload session. Else, return error status
+     */
+    @PostMapping
+    public ResponseEntity<UploadStatus> createUpload(@Valid @RequestBody UploadItem uploadItem) {
+        UploadSession session = uploadSessionService.create(getUsername(), uploadItem.getFileName(),
+                uploadItem.getFileType(), uploadItem.getFileSize());
+        return new ResponseEntity<>(toUploadStatus(session), HttpStatus.OK);
+    }
+
+    /**
+     * Upload a chunk. The request body is the raw chunk content.
+     *
+     * @param uploadId Upload session id
+     * @param offset Position of the chunk in the file
+     * @param request HTTP servlet request to read the chunk from
+     * @return Status 200 with the upload progress. Else, return error status
+     * @throws IOException IO exception
+     */
+    @PostMapping(value = "/{uploadId}", consumes = "application/octet-stream")
+    public ResponseEntity<UploadStatus> uploadChunk(@PathVariable String uploadId, @RequestParam long offset,
+                                                    HttpServletRequest request) throws IOException {
+        UploadSession session = uploadSessionService.writeChunk(uploadId, getUsername(), offset,
+                request.getInputStream());
+        return new ResponseEntity<>(toUploadStatus(session), HttpStatus.OK);
+    }
+
+    /**
+     * Get the upload progress to resume an upload
+     *
+     * @param uploadId Upload session id
+     * @return Status 200 with the upload progress. Else, return error status
+     */
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<UploadStatus> getUpload(@PathVariable String uploadId) {
+        UploadSession session = uploadSessionService.get(uploadId, getUsername());
+        return new ResponseEntity<>(toUploadStatus(session), HttpStatus.OK);
+    }
+
+    /**
+     * Complete an upload after all chunks have been received
+     *
+     * @param uploadId Upload session id
+     * @return Status 200 with the completed upload. Else, return error status
+     */
+    @PostMapping("/{uploadId}/complete")
+    public ResponseEntity<UploadStatus> completeUpload(@PathVariable String uploadId) {
+        UploadSession session = uploadSessionService.complete(uploadId, getUsername());
+        return new ResponseEntity<>(toUploadStatus(session), HttpStatus.OK);
+    }
+
+    /**
+     * Abort an upload
+     *
+     * @param uploadId Upload session id
+     * @return Status OK after aborting the upload. Else, return error status
+     */
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<Map<String, Boolean>> abortUpload(@PathVariable String uploadId) {
+        uploadSessionService.abort(uploadId, getUsername());
+        Map<String, Boolean> response = new HashMap<>();
+        response.put("deleted", Boolean.TRUE);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Helper method to get the current username
+     *
+     * @return Username of current active user
+     */
+    private String getUsername() {
+        CustomUserDetails user = authComponent.getCurrentUser()
+                .orElseThrow(() -> new IllegalArgumentException("Current user not found"));
+        return user.getUsername();
+    }
+
+    /**
+     * Helper method to convert from UploadSession to UploadStatus
+     *
+     * @param session Upload session
+     * @return Upload status
+     */
+    private UploadStatus toUploadStatus(UploadSession session) {
+        UploadStatus status = new UploadStatus();
+        status.setUploadId(session.getId());
+        status.setFileSize(session.getFileSize());
+        status.setChunkSize(uploadSessionService.getChunkSize());
+        status.setReceivedBytes(session.getReceivedBytes());
+        status.setReceived(session.getRanges());
+        status.setComplete(session.getBlob() != null);
+        return status;
+    }
+}
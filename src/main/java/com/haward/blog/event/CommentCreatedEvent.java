@@ -0,0 +1,12 @@
+package com.haward.blog.event;
+
+import com.haward.blog.model.Comment;
+import lombok.Data;
+
+/**
+ * Event published when a new comment has been persisted
+ */
+@Data
+public class CommentCreatedEvent {
+    private final Comment comment;
+}
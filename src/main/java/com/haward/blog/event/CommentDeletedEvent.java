@@ -0,0 +1,12 @@
+package com.haward.blog.event;
+
+import com.haward.blog.model.Comment;
+import lombok.Data;
+
+/**
+ * Event published when a comment has been deleted
+ */
+@Data
+public class CommentDeletedEvent {
+    private final Comment comment;
+}
@@ -0,0 +1,14 @@
+package com.haward.blog.event;
+
+import com.haward.blog.model.Image;
+import com.haward.blog.model.Post;
+import lombok.Data;
+
+/**
+ * Event published when a new post (and its image) has been persisted
+ */
+@Data
+public class PostCreatedEvent {
+    private final Post post;
+    private final Image image;
+}
@@ -0,0 +1,13 @@
+package com.haward.blog.event;
+
+import lombok.Data;
+
+import java.util.Set;
+
+/**
+ * Event published when the counters of some posts have been written to DB
+ */
+@Data
+public class PostStatsFlushedEvent {
+    private final Set<Long> postIds;
+}
@@ -0,0 +1,12 @@
+package com.haward.blog.event;
+
+import lombok.Data;
+
+/**
+ * Event published when a write of another backend instance has been read from the change log (see ChangeLog)
+ */
+@Data
+public class RemoteChangeEvent {
+    private final String type;    // i.e. ChangeLog.COMMENT_DELETED
+    private final long entityId;  // id of the written entity
+}
@@ -0,0 +1,474 @@
+package com.haward.blog.feed;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haward.blog.id.SnowflakeIdGenerator;
+import com.haward.blog.security.exception.ServiceBusyException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ChangeFeed pushes the new posts and comments to the clients as Server-Sent Events, so clients do not
+ * have to poll the first page of posts or the comments of a post.
+ *
+ * Every subscriber gets the new posts (event 'post', data is the post summary), and the new comments of the
+ * posts it has subscribed to (event 'comment', data is the comment). Events are published after commit.
+ * Each event is serialized once, whatever the number of subscribers.
+ *
+ * A subscription is an async request (SseEmitter), so an idle subscriber holds a connection but no thread.
+ * Events are queued per subscriber in a bounded buffer and written by a few sender threads. A subscriber
+ * whose buffer is full (a slow or dead client) is disconnected; the client reconnects and resumes.
+ * A write blocks its sender thread until the client reads it: a subscriber whose write has not completed in
+ * app.events.send-timeout is disconnected, and a sender thread is added for as long as the stalled write lasts
+ * (until the client reads it or the connection fails), so stalled clients do not hold the senders of the others.
+ * A heartbeat comment is sent periodically, so proxies keep idle connections and dead ones are found.
+ *
+ * Content created on the other instances is published too, once it has been read from the change log
+ * (see ContentService.onRemoteChange), so every subscriber gets every event whatever its instance.
+ *
+ * The event id is a Snowflake id of this instance (time ordered). The latest events are kept in a ring buffer:
+ * a client that reconnects with header Last-Event-ID gets the events it has missed. If some of them are not in
+ * the buffer anymore (or were published before this instance started, or the id was given by another instance,
+ * whose events have other ids), it gets event 'reset' instead and must reload the content with the REST API.
+ */
+@Component
+public class ChangeFeed {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeFeed.class);
+
+    public static final String POST_EVENT = "post";
+    public static final String COMMENT_EVENT = "comment";
+    public static final String RESET_EVENT = "reset";
+
+    private static final Event HEARTBEAT = new Event(0, null, null, null);
+
+    // same configuration as the JSON message converter of Spring MVC
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Autowired
+    private SnowflakeIdGenerator idGenerator; // to assign time ordered ids to events
+
+    @Autowired
+    @Qualifier("eventExecutor")
+    private ThreadPoolTaskExecutor eventExecutor; // to write events off the publishing threads
+
+    @Autowired
+    private MeterRegistry meterRegistry; // to report subscriber metrics
+
+    @Value("${app.events.buffer-size}")
+    private int bufferSize; // max number of events waiting to be sent to a subscriber
+
+    @Value("${app.events.replay-size}")
+    private int replaySize; // number of the latest events kept for reconnecting clients
+
+    @Value("${app.events.max-subscribers}")
+    private int maxSubscribers; // more subscribers are rejected with 503
+
+    @Value("${app.events.timeout}")
+    private long timeout; // milliseconds before a subscription ends, the client reconnects and resumes
+
+    @Value("${app.events.send-timeout}")
+    private long sendTimeout; // milliseconds a client may take to read a write, else it gets no more events
+
+    @Value("${app.events.max-stalled-senders}")
+    private int maxStalledSenders; // max number of sender threads added in place of the stalled ones
+
+    private final Object lock = new Object(); // guards the fields below
+
+    private final ArrayDeque<Event> replay = new ArrayDeque<>(); // latest events, oldest first
+
+    private long missedBefore; // events with smaller ids may have been missed by a reconnecting client
+
+    private final Set<Subscriber> subscribers = new HashSet<>();
+
+    private final Map<Long, Set<Subscriber>> subscribersByPost = new HashMap<>(); // post id -> its subscribers
+
+    private final LongAdder evictions = new LongAdder();
+
+    private int senders; // sender threads of the event executor, without the added ones
+
+    private int stalledSenders; // sender threads blocked by a stalled write and replaced, guarded by the executor
+
+    @PostConstruct
+    public void init() {
+        missedBefore = idGenerator.nextId(); // events before this instance started are unknown
+        senders = eventExecutor.getCorePoolSize();
+        Gauge.builder("blog.events.subscribers", this, ChangeFeed::getSubscriberCount).register(meterRegistry);
+        FunctionCounter.builder("blog.events.evictions", evictions, LongAdder::sum)
+                .description("Subscribers disconnected because they did not read their events")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Subscribe to the new posts and to the new comments of some posts
+     *
+     * @param postIds Post ids of the comments to be sent
+     * @param lastEventId Id of the last event received before reconnecting. Else, null
+     * @return Emitter of the events
+     * @throws ServiceBusyException if there are too many subscribers
+     */
+    public SseEmitter subscribe(Set<Long> postIds, Long lastEventId) {
+        Subscriber subscriber = new Subscriber(new SseEmitter(timeout), postIds);
+        subscriber.emitter.onCompletion(() -> unsubscribe(subscriber));
+        subscriber.emitter.onTimeout(() -> unsubscribe(subscriber));
+        subscriber.emitter.onError(e -> unsubscribe(subscriber));
+        synchronized (lock) {
+            if (subscribers.size() >= maxSubscribers) {
+                throw new ServiceBusyException("Too many event subscribers. Retry later.");
+            }
+            if (lastEventId != null) {
+                replay(subscriber, lastEventId);
+            }
+            subscribers.add(subscriber);
+            for (Long postId : postIds) {
+                subscribersByPost.computeIfAbsent(postId, id -> new HashSet<>()).add(subscriber);
+            }
+        }
+        schedule(subscriber);
+        return subscriber.emitter;
+    }
+
+    /**
+     * Send a new post to all the subscribers
+     *
+     * @param post Post summary
+     */
+    public void publishPost(Object post) {
+        publish(POST_EVENT, null, post);
+    }
+
+    /**
+     * Send a new comment to the subscribers of its post
+     *
+     * @param postId Post id of the comment
+     * @param comment Comment item
+     */
+    public void publishComment(Long postId, Object comment) {
+        publish(COMMENT_EVENT, postId, comment);
+    }
+
+    /**
+     * Send a heartbeat to every subscriber
+     */
+    @Scheduled(fixedDelayString = "${app.events.heartbeat-interval}")
+    public void heartbeat() {
+        List<Subscriber> slow = new ArrayList<>();
+        List<Subscriber> targets;
+        synchronized (lock) {
+            targets = new ArrayList<>(subscribers);
+        }
+        for (Subscriber subscriber : targets) {
+            if (!subscriber.queue.offer(HEARTBEAT)) {
+                slow.add(subscriber);
+            }
+        }
+        deliver(targets, slow);
+    }
+
+    /**
+     * Disconnect the subscribers that have not read a write for send-timeout (a stalled or dead client), and add
+     * a sender thread in place of each blocked one. The emitter is left to the blocked sender, which ends it
+     * once the write returns or fails.
+     */
+    @Scheduled(fixedDelayString = "${app.events.send-timeout}")
+    public void evictStalledSubscribers() {
+        long now = System.currentTimeMillis();
+        List<Subscriber> stalled = new ArrayList<>();
+        synchronized (lock) {
+            for (Subscriber subscriber : subscribers) {
+                long started = subscriber.sendStarted;
+                if (started != 0 && now - started > sendTimeout) {
+                    stalled.add(subscriber);
+                }
+            }
+        }
+        for (Subscriber subscriber : stalled) {
+            if (!subscriber.stalled.compareAndSet(false, true)) {
+                continue; // already disconnected, its write is still blocked
+            }
+            evictions.increment();
+            LOGGER.debug("Event subscriber has not read its events for {} ms and is disconnected", sendTimeout);
+            unsubscribe(subscriber);
+            if (resizeSenders(1)) {
+                subscriber.replaced.set(true);
+                if (subscriber.sendStarted == 0 && subscriber.replaced.compareAndSet(true, false)) {
+                    resizeSenders(-1); // the write has ended meanwhile
+                }
+            }
+        }
+    }
+
+    /**
+     * End the subscriptions at shutdown, so the clients reconnect to another instance
+     */
+    @PreDestroy
+    public void close() {
+        List<Subscriber> targets;
+        synchronized (lock) {
+            targets = new ArrayList<>(subscribers);
+        }
+        targets.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    public int getSubscriberCount() {
+        synchronized (lock) {
+            return subscribers.size();
+        }
+    }
+
+    /**
+     * Helper method to record an event and queue it for its subscribers
+     *
+     * @param name Event name
+     * @param postId Post id of a comment. Else, null for a post
+     * @param data Event data
+     */
+    private void publish(String name, Long postId, Object data) {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(data);
+        } catch (JsonProcessingException e) {
+            LOGGER.warn("Failed to serialize {} event", name, e);
+            return;
+        }
+        List<Subscriber> slow = new ArrayList<>();
+        List<Subscriber> targets;
+        synchronized (lock) {
+            Event event = new Event(idGenerator.nextId(), name, postId, json);
+            replay.addLast(event);
+            if (replay.size() > replaySize) {
+                missedBefore = replay.removeFirst().id + 1;
+            }
+            Collection<Subscriber> interested = postId == null
+                    ? subscribers : subscribersByPost.getOrDefault(postId, Collections.emptySet());
+            targets = new ArrayList<>(interested);
+            for (Subscriber subscriber : targets) {
+                if (!subscriber.queue.offer(event)) {
+                    slow.add(subscriber);
+                }
+            }
+        }
+        deliver(targets, slow);
+    }
+
+    /**
+     * Helper method to queue the events missed by a reconnecting subscriber. Caller must hold the lock.
+     *
+     * @param subscriber New subscriber
+     * @param lastEventId Id of the last event received by the client
+     */
+    private void replay(Subscriber subscriber, long lastEventId) {
+        // ids of another instance cannot be compared with the ids of the buffer
+        boolean known = idGenerator.isLocal(lastEventId) && lastEventId + 1 >= missedBefore;
+        List<Event> missed = new ArrayList<>();
+        if (known) {
+            for (Event event : replay) {
+                if (event.id > lastEventId && subscriber.wants(event)) {
+                    missed.add(event);
+                }
+            }
+        }
+        if (!known || missed.size() > bufferSize) {
+            subscriber.queue.offer(new Event(idGenerator.nextId(), RESET_EVENT, null, "{}"));
+            return;
+        }
+        subscriber.queue.addAll(missed);
+    }
+
+    /**
+     * Helper method to start the senders of the subscribers with new events, and to disconnect the slow ones
+     *
+     * @param targets Subscribers with new events
+     * @param slow Subscribers whose buffer is full
+     */
+    private void deliver(List<Subscriber> targets, List<Subscriber> slow) {
+        for (Subscriber subscriber : slow) {
+            evictions.increment();
+            LOGGER.debug("Event subscriber is too slow and is disconnected");
+            unsubscribe(subscriber);
+            subscriber.emitter.complete();
+        }
+        for (Subscriber subscriber : targets) {
+            if (!slow.contains(subscriber)) {
+                schedule(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Helper method to start the sender of a subscriber, unless it is already running
+     *
+     * @param subscriber Subscriber with events to be sent
+     */
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.queue.isEmpty() || subscriber.stalled.get()
+                || !subscriber.sending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            eventExecutor.execute(() -> send(subscriber));
+        } catch (TaskRejectedException e) {
+            subscriber.sending.set(false);
+            unsubscribe(subscriber);
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * Helper method run by a sender thread: write the queued events of a subscriber, in order
+     *
+     * @param subscriber Subscriber with events to be sent
+     */
+    private void send(Subscriber subscriber) {
+        try {
+            Event event;
+            while ((event = subscriber.queue.poll()) != null) {
+                subscriber.sendStarted = System.currentTimeMillis();
+                if (event == HEARTBEAT) {
+                    subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+                } else {
+                    subscriber.emitter.send(SseEmitter.event().id(String.valueOf(event.id)).name(event.name)
+                            .data(event.json, MediaType.APPLICATION_JSON));
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            // the client has gone (or the subscription has ended)
+            unsubscribe(subscriber);
+            subscriber.emitter.completeWithError(e);
+            return;
+        } finally {
+            subscriber.sendStarted = 0;
+            subscriber.sending.set(false);
+            if (subscriber.replaced.compareAndSet(true, false)) {
+                resizeSenders(-1);
+            }
+        }
+        if (subscriber.stalled.get()) {
+            subscriber.emitter.complete(); // the subscriber was disconnected while its write was blocked
+            return;
+        }
+        schedule(subscriber); // an event may have been queued after the last poll
+    }
+
+    /**
+     * Helper method to add a sender thread in place of a blocked one, or to remove it once the write has ended
+     *
+     * @param delta 1 to add a sender thread, -1 to remove one
+     * @return True if the number of sender threads has changed. Else, false (too many stalled senders)
+     */
+    private boolean resizeSenders(int delta) {
+        synchronized (eventExecutor) {
+            int stalled = stalledSenders + delta;
+            if (stalled > maxStalledSenders) {
+                LOGGER.warn("{} event senders are blocked by stalled subscribers, no more sender is added", stalled);
+                return false;
+            }
+            stalledSenders = stalled;
+            // the max pool size must stay at least the core pool size
+            if (delta > 0) {
+                eventExecutor.setMaxPoolSize(senders + stalled);
+                eventExecutor.setCorePoolSize(senders + stalled);
+            } else {
+                eventExecutor.setCorePoolSize(senders + stalled);
+                eventExecutor.setMaxPoolSize(senders + stalled);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Helper method to remove a subscriber (its pending events are dropped)
+     *
+     * @param subscriber Subscriber
+     */
+    private void unsubscribe(Subscriber subscriber) {
+        synchronized (lock) {
+            if (!subscribers.remove(subscriber)) {
+                return;
+            }
+            for (Long postId : subscriber.postIds) {
+                Set<Subscriber> postSubscribers = subscribersByPost.get(postId);
+                if (postSubscribers != null) {
+                    postSubscribers.remove(subscriber);
+                    if (postSubscribers.isEmpty()) {
+                        subscribersByPost.remove(postId);
+                    }
+                }
+            }
+        }
+        subscriber.queue.clear();
+    }
+
+    /**
+     * Serialized event
+     */
+    private static class Event {
+
+        private final long id;
+        private final String name;
+        private final Long postId; // post id of a comment
+        private final String json;
+
+        Event(long id, String name, Long postId, String json) {
+            this.id = id;
+            this.name = name;
+            this.postId = postId;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Open subscription with its pending events
+     */
+    private class Subscriber {
+
+        private final SseEmitter emitter;
+        private final Set<Long> postIds;
+        private final BlockingQueue<Event> queue;
+        private final AtomicBoolean sending = new AtomicBoolean(); // true while a sender writes the events
+        private volatile long sendStarted; // time the current write started, 0 if none
+        private final AtomicBoolean stalled = new AtomicBoolean(); // true once disconnected for a stalled write
+        private final AtomicBoolean replaced = new AtomicBoolean(); // true while a sender is added in its place
+
+        Subscriber(SseEmitter emitter, Set<Long> postIds) {
+            this.emitter = emitter;
+            this.postIds = new LinkedHashSet<>(postIds);
+            this.queue = new ArrayBlockingQueue<>(bufferSize + 1); // room for a reset event
+        }
+
+        boolean wants(Event event) {
+            return POST_EVENT.equals(event.name) || postIds.contains(event.postId);
+        }
+    }
+}
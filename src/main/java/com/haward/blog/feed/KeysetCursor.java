@@ -0,0 +1,56 @@
+package com.haward.blog.feed;
+
+import com.haward.blog.security.exception.InvalidCursorException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+
+/**
+ * Position in a list of content sorted by (createdOn, id), i.e. the last item a client has seen.
+ * The next page is read by seeking past this position with an index, so a deep page costs
+ * the same as the first one. Clients get it as an opaque string.
+ */
+public class KeysetCursor {
+
+    private final Instant createdOn;
+    private final long id;
+
+    public KeysetCursor(Instant createdOn, long id) {
+        this.createdOn = createdOn;
+        this.id = id;
+    }
+
+    public Instant getCreatedOn() { return createdOn; }
+
+    public long getId() { return id; }
+
+    /**
+     * Encode the cursor as an opaque URL-safe string
+     *
+     * @return Encoded cursor
+     */
+    public String encode() {
+        String value = createdOn.getEpochSecond() + ":" + createdOn.getNano() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Decode a cursor given by a client
+     *
+     * @param value Encoded cursor
+     * @return Cursor
+     */
+    public static KeysetCursor decode(String value) {
+        try {
+            String[] parts = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.US_ASCII).split(":");
+            if (parts.length != 3) {
+                throw new InvalidCursorException("Invalid cursor " + value);
+            }
+            return new KeysetCursor(Instant.ofEpochSecond(Long.parseLong(parts[0]), Long.parseLong(parts[1])),
+                    Long.parseLong(parts[2]));
+        } catch (IllegalArgumentException | java.time.DateTimeException e) {
+            throw new InvalidCursorException("Invalid cursor " + value, e);
+        }
+    }
+}
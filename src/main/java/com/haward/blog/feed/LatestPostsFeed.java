@@ -0,0 +1,339 @@
+package com.haward.blog.feed;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.haward.blog.view.request.PostItem;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * LatestPostsFeed keeps the newest posts in memory, so the first pages of the feed need no DB access.
+ *
+ * The posts are kept in an immutable snapshot (latest first) bounded by the window size. A new post
+ * replaces the snapshot with a compare-and-set, so readers never lock and always see a consistent
+ * list. The JSON of a page is serialized once per snapshot and the bytes are reused until the next
+ * post is created.
+ *
+ * The window is loaded from DB at startup and updated when a post has been committed or when the
+ * post counters have been flushed. Requests beyond the window return null and are answered from DB.
+ * Posts committed by other backend instances are not seen by this instance's events: the ids of the
+ * latest posts are compared with DB on a schedule (app.feed.refresh-interval), and the window is reloaded
+ * when they differ. So the window of an instance lags behind the other instances by that interval at most.
+ */
+@Component
+public class LatestPostsFeed {
+
+    // same configuration as the JSON message converter of Spring MVC, so the bytes are identical
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+    @Value("${app.feed.window}")
+    private int window; // max number of posts kept in memory
+
+    private final AtomicReference<Snapshot> snapshot =
+            new AtomicReference<>(new Snapshot(new PostItem[0], false, false));
+
+    /**
+     * Replace the window with the latest posts loaded from DB.
+     * Posts that have been added while loading are kept.
+     *
+     * @param latest Latest posts, latest first
+     * @param complete True if there is no older post in DB
+     */
+    public void load(List<PostItem> latest, boolean complete) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            List<PostItem> merged = new ArrayList<>(latest);
+            for (PostItem item : current.items) {
+                if (indexOf(merged, item) < 0) {
+                    merged.add(item);
+                }
+            }
+            merged.sort(LatestPostsFeed::compareLatestFirst);
+            next = bounded(merged.toArray(new PostItem[0]), complete, true);
+        } while (!snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * Add a new post to the window
+     *
+     * @param item New post. It must not be modified afterwards.
+     */
+    public void add(PostItem item) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            List<PostItem> items = new ArrayList<>(Arrays.asList(current.items));
+            if (indexOf(items, item) >= 0) {
+                return;
+            }
+            // posts are usually committed in order, so the insertion point is at the front
+            int index = 0;
+            while (index < items.size() && compareLatestFirst(items.get(index), item) < 0) {
+                index++;
+            }
+            items.add(index, item);
+            next = bounded(items.toArray(new PostItem[0]), current.complete, current.loaded);
+        } while (!snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * Replace some posts of the window (i.e. with updated counters)
+     *
+     * @param updater Returns a new post to replace a given post. Else, returns the given post.
+     */
+    public void update(UnaryOperator<PostItem> updater) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            PostItem[] items = new PostItem[current.items.length];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = updater.apply(current.items[i]);
+            }
+            next = new Snapshot(items, current.complete, current.loaded);
+        } while (!snapshot.compareAndSet(current, next));
+    }
+
+    /**
+     * Get the ids of the posts in the window
+     *
+     * @return Post ids
+     */
+    public Set<Long> getPostIds() {
+        Set<Long> ids = new HashSet<>();
+        for (PostItem item : snapshot.get().items) {
+            ids.add(item.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Check if the window has been loaded from DB
+     *
+     * @return True if the window can answer requests
+     */
+    public boolean isLoaded() {
+        return snapshot.get().loaded;
+    }
+
+    /**
+     * Get the ids of the posts in the window, latest first
+     *
+     * @return Post ids
+     */
+    public List<Long> getLatestIds() {
+        PostItem[] items = snapshot.get().items;
+        List<Long> ids = new ArrayList<>(items.length);
+        for (PostItem item : items) {
+            ids.add(item.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Get a watermark of the posts in the window. It changes whenever a post enters the window, even a post
+     * of another instance that is not the latest one, and it is the same on every instance with the same posts.
+     *
+     * @return Watermark of the window. Else, return 0 if there is no post
+     */
+    public long getWatermark() {
+        return snapshot.get().watermark;
+    }
+
+    /**
+     * Get a page of the latest posts (page n has the posts from n * size)
+     *
+     * @param pageNumber Page number
+     * @param size Number of posts per page
+     * @return The posts of the page, latest first. Else, return null if the page is beyond the window
+     */
+    public List<PostItem> readPage(int pageNumber, int size) {
+        return readPage(snapshot.get(), pageNumber, size);
+    }
+
+    /**
+     * Get the JSON of a page of the latest posts. It is serialized once per snapshot and view.
+     *
+     * @param view Name of the view of the posts (i.e. summary)
+     * @param pageNumber Page number
+     * @param size Number of posts per page
+     * @param mapper Converter of the posts to the view
+     * @return JSON array of the posts of the page. Else, return null if the page is beyond the window
+     */
+    public byte[] readPageJson(String view, int pageNumber, int size, Function<List<PostItem>, List<?>> mapper) {
+        Snapshot current = snapshot.get();
+        String key = view + ":" + pageNumber + ":" + size;
+        byte[] json = current.json.get(key);
+        if (json == null) {
+            List<PostItem> page = readPage(current, pageNumber, size);
+            if (page == null) {
+                return null;
+            }
+            json = toJson(mapper.apply(page));
+            current.json.putIfAbsent(key, json);
+        }
+        return json;
+    }
+
+    /**
+     * Get the posts next to a cursor, in the same order as the keyset queries of PostRepository
+     *
+     * @param cursor Cursor (last seen post)
+     * @param newer True to get the posts newer than the cursor (oldest first). Else, get the older
+     *              posts (latest first)
+     * @param limit Max number of posts
+     * @return The posts next to the cursor. Else, return null if they are beyond the window
+     */
+    public List<PostItem> read(KeysetCursor cursor, boolean newer, int limit) {
+        Snapshot current = snapshot.get();
+        if (!current.loaded) {
+            return null;
+        }
+        PostItem[] items = current.items;
+        if (newer) {
+            int end = firstNotNewer(items, cursor);
+            // the newer posts are all in the window, unless the cursor is older than the window
+            if (end == items.length && !current.complete) {
+                return null;
+            }
+            List<PostItem> result = new ArrayList<>();
+            for (int i = end - 1; i >= 0 && result.size() < limit; i--) {
+                result.add(items[i]);
+            }
+            return result;
+        }
+        int start = firstNotNewer(items, cursor);
+        if (start < items.length && compare(items[start], cursor.getCreatedOn(), cursor.getId()) == 0) {
+            start++; // skip the cursor post
+        }
+        if (start + limit > items.length && !current.complete) {
+            return null;
+        }
+        return Collections.unmodifiableList(
+                Arrays.asList(Arrays.copyOfRange(items, start, Math.min(items.length, start + limit))));
+    }
+
+    /**
+     * Serialize posts to JSON
+     *
+     * @param items Posts
+     * @return JSON array of the posts
+     */
+    public byte[] toJson(List<?> items) {
+        try {
+            return objectMapper.writeValueAsBytes(items);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize posts", e);
+        }
+    }
+
+    /**
+     * Helper method to read a page from a snapshot
+     *
+     * @param current Snapshot
+     * @param pageNumber Page number
+     * @param size Number of posts per page
+     * @return The posts of the page, latest first. Else, return null if the page is beyond the window
+     */
+    private List<PostItem> readPage(Snapshot current, int pageNumber, int size) {
+        long from = (long) pageNumber * size;
+        if (!current.loaded || (from + size > current.items.length && !current.complete)) {
+            return null;
+        }
+        int start = (int) Math.min(from, current.items.length);
+        int end = Math.min(current.items.length, start + size);
+        return Collections.unmodifiableList(Arrays.asList(Arrays.copyOfRange(current.items, start, end)));
+    }
+
+    /**
+     * Helper method to find the index of the first post that is not newer than a cursor
+     *
+     * @param items Posts, latest first
+     * @param cursor Cursor
+     * @return Index of the first post created at or before the cursor
+     */
+    private int firstNotNewer(PostItem[] items, KeysetCursor cursor) {
+        int index = 0;
+        while (index < items.length && compare(items[index], cursor.getCreatedOn(), cursor.getId()) > 0) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Helper method to bound a list of posts to the window
+     *
+     * @param items Posts, latest first
+     * @param complete True if there is no older post than the given posts
+     * @param loaded True if the window has been loaded from DB
+     * @return Snapshot of the posts
+     */
+    private Snapshot bounded(PostItem[] items, boolean complete, boolean loaded) {
+        if (items.length > window) {
+            return new Snapshot(Arrays.copyOf(items, window), false, loaded);
+        }
+        return new Snapshot(items, complete, loaded);
+    }
+
+    private static int indexOf(List<PostItem> items, PostItem item) {
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).getId().equals(item.getId())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int compareLatestFirst(PostItem a, PostItem b) {
+        return -compare(a, b.getCreatedOn(), b.getId());
+    }
+
+    /**
+     * Helper method to compare a post with a position of the feed on (createdOn, id)
+     *
+     * @return Positive if the post is newer than the position, 0 if it is the position. Else, negative
+     */
+    private static int compare(PostItem item, Instant createdOn, long id) {
+        int result = item.getCreatedOn().compareTo(createdOn);
+        return result != 0 ? result : Long.compare(item.getId(), id);
+    }
+
+    /**
+     * Immutable list of the latest posts with their memoized JSON pages
+     */
+    private static class Snapshot {
+        private final PostItem[] items;      // latest first
+        private final boolean complete;      // true if there is no older post out of the window
+        private final boolean loaded;        // false until the window has been loaded from DB
+        private final long watermark;        // hash of the post ids, in order
+        private final Map<String, byte[]> json = new ConcurrentHashMap<>(); // view:page:size -> JSON
+
+        private Snapshot(PostItem[] items, boolean complete, boolean loaded) {
+            this.items = items;
+            this.complete = complete;
+            this.loaded = loaded;
+            long hash = 0;
+            for (PostItem item : items) {
+                hash = 31 * hash + item.getId();
+            }
+            this.watermark = hash;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.haward.blog.feed;
+
+import com.haward.blog.view.request.PostItem;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * PostCache keeps the recently read posts in memory, so a viral post is read from DB once per expiry
+ * instead of once per request.
+ *
+ * Loads are coalesced per post (single-flight): the first request of a missing or expired post starts
+ * one load on the post load executor, and the concurrent requests of the same post wait for that load
+ * instead of running their own. A post read shortly before its expiry is refreshed in background while
+ * the cached copy is served (refresh-ahead), so a busy post does not expire at all. An expired post is
+ * still served for a while when DB is slow (the load takes longer than the load timeout) or failing.
+ *
+ * A request must not hold a DB connection while it waits for a load (i.e. after a query in an open
+ * EntityManager of the request), or the load threads may find no free connection.
+ *
+ * The cached posts carry their stored counters. The unflushed counts are added by the caller, and the
+ * stored counters are updated when the post counters have been flushed.
+ */
+@Component
+public class PostCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostCache.class);
+
+    @Autowired
+    @Qualifier("postLoadExecutor")
+    private ThreadPoolTaskExecutor postLoadExecutor; // to load posts off the request threads
+
+    @Autowired
+    private MeterRegistry meterRegistry; // to report cache metrics
+
+    @Value("${app.post-cache.ttl}")
+    private long ttl; // milliseconds a loaded post is fresh
+
+    @Value("${app.post-cache.refresh-ahead}")
+    private long refreshAhead; // milliseconds before expiry when a read starts a background refresh
+
+    @Value("${app.post-cache.stale-ttl}")
+    private long staleTtl; // milliseconds after expiry when the post is served if DB is slow or failing
+
+    @Value("${app.post-cache.load-timeout}")
+    private long loadTimeout; // milliseconds to wait for DB before serving an expired post
+
+    @Value("${app.post-cache.max-entries}")
+    private int maxEntries; // bound of the cached posts
+
+    private long ttlNanos;
+    private long refreshAtNanos; // age of a post when it is refreshed ahead
+    private long staleNanos; // age of a post when it can no longer be served
+
+    private Map<Long, Entry> entries; // post id -> cached post, in access order, guarded by itself
+
+    private final Map<Long, CompletableFuture<PostItem>> loads = new ConcurrentHashMap<>(); // post id -> load
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        refreshAtNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl - refreshAhead));
+        staleNanos = ttlNanos + TimeUnit.MILLISECONDS.toNanos(staleTtl);
+        final int bound = maxEntries;
+        entries = new LinkedHashMap<Long, Entry>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > bound;
+            }
+        };
+
+        FunctionCounter.builder("blog.post.cache.requests", hits, LongAdder::sum)
+                .tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("blog.post.cache.requests", misses, LongAdder::sum)
+                .tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder("blog.post.cache.requests", staleHits, LongAdder::sum)
+                .tag("result", "stale").register(meterRegistry);
+        FunctionCounter.builder("blog.post.cache.loads", loadCount, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("blog.post.cache.coalesced", coalesced, LongAdder::sum)
+                .description("Requests that waited for the load of another request").register(meterRegistry);
+        Gauge.builder("blog.post.cache.entries", this, PostCache::getEntryCount).register(meterRegistry);
+    }
+
+    /**
+     * Get a post from cache, or load it once for all the concurrent requests of the post
+     *
+     * @param id Post id
+     * @param loader Loader of the post with its stored counters (i.e. from DB)
+     * @return Cached post, must not be modified
+     */
+    public PostItem get(Long id, Function<Long, PostItem> loader) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(id);
+        }
+        if (entry != null) {
+            long age = System.nanoTime() - entry.loadedAt;
+            if (age < ttlNanos) {
+                hits.increment();
+                if (age >= refreshAtNanos) {
+                    load(id, loader); // nobody waits for it
+                }
+                return entry.item;
+            }
+            if (age < staleNanos) {
+                return loadOrStale(id, loader, entry);
+            }
+        }
+        misses.increment();
+        try {
+            return load(id, loader).join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * @return Ids of the cached posts
+     */
+    public Set<Long> getPostIds() {
+        synchronized (entries) {
+            return new HashSet<>(entries.keySet());
+        }
+    }
+
+    /**
+     * Replace cached posts (i.e. with new counters). The expiry of the posts is kept.
+     *
+     * @param updater Function returning the same post, or an updated copy of the post
+     */
+    public void update(UnaryOperator<PostItem> updater) {
+        synchronized (entries) {
+            for (Map.Entry<Long, Entry> cached : entries.entrySet()) {
+                Entry entry = cached.getValue();
+                PostItem updated = updater.apply(entry.item);
+                if (updated != entry.item) {
+                    cached.setValue(new Entry(updated, entry.loadedAt));
+                }
+            }
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Helper method to reload an expired post, or serve the expired copy if the load fails or is too slow.
+     * A slow load goes on in background and refreshes the cache when it completes.
+     *
+     * @param id Post id
+     * @param loader Loader of the post
+     * @param expired Expired cached post
+     * @return Loaded post. Else, return the expired post
+     */
+    private PostItem loadOrStale(Long id, Function<Long, PostItem> loader, Entry expired) {
+        try {
+            PostItem item = load(id, loader).get(loadTimeout, TimeUnit.MILLISECONDS);
+            misses.increment();
+            return item;
+        } catch (TimeoutException e) {
+            LOGGER.warn("Post (id={}) is not loaded after {} ms. Expired copy is served.", id, loadTimeout);
+        } catch (ExecutionException e) {
+            LOGGER.warn("Failed to load post (id={}). Expired copy is served.", id, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        staleHits.increment();
+        return expired.item;
+    }
+
+    /**
+     * Helper method to start the load of a post, or join the load in progress
+     *
+     * @param id Post id
+     * @param loader Loader of the post
+     * @return Future loaded post
+     */
+    private CompletableFuture<PostItem> load(Long id, Function<Long, PostItem> loader) {
+        CompletableFuture<PostItem> future = new CompletableFuture<>();
+        CompletableFuture<PostItem> inProgress = loads.putIfAbsent(id, future);
+        if (inProgress != null) {
+            coalesced.increment();
+            return inProgress;
+        }
+        Runnable task = () -> {
+            try {
+                loadCount.increment();
+                PostItem item = loader.apply(id);
+                synchronized (entries) {
+                    entries.put(id, new Entry(item, System.nanoTime()));
+                }
+                future.complete(item);
+            } catch (Throwable e) {
+                future.completeExceptionally(e); // waiters must not wait forever
+            } finally {
+                loads.remove(id, future);
+            }
+        };
+        try {
+            postLoadExecutor.execute(task);
+        } catch (TaskRejectedException e) {
+            task.run(); // all load threads are busy, the caller loads the post itself
+        }
+        return future;
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+    }
+
+    /**
+     * Cached post with its load time
+     */
+    private static class Entry {
+
+        private final PostItem item;
+        private final long loadedAt; // System.nanoTime() when the post was loaded
+
+        Entry(PostItem item, long loadedAt) {
+            this.item = item;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.haward.blog.id;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.function.LongSupplier;
+
+/**
+ * SnowflakeIdGenerator assigns 64-bit ids in the application, without a DB round trip.
+ *
+ * An id is made of the milliseconds since 2021-01-01 (41 bits), the node id of this instance (5 bits)
+ * and a sequence number within the millisecond (7 bits). Ids of a node always increase, and ids of
+ * different nodes never collide as long as every instance has its own node id. Ids fit in 53 bits, so
+ * JavaScript clients read them as numbers without losing precision.
+ *
+ * If the system clock goes back (i.e. NTP adjustment), ids keep counting from the last timestamp instead
+ * of reusing a past one, and a warning is logged. Ids are then ahead of the clock until it catches up.
+ */
+@Component
+public class SnowflakeIdGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnowflakeIdGenerator.class);
+
+    private static volatile SnowflakeIdGenerator instance; // used by Hibernate (see SnowflakeIdentifierGenerator)
+
+    static final long EPOCH = 1609459200000L; // 2021-01-01T00:00:00Z
+
+    static final int NODE_BITS = 5;
+    static final int SEQUENCE_BITS = 7;
+    static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    @Value("${app.id.node}")
+    private long node; // unique id of this instance, between 0 and 31
+
+    private final LongSupplier clock; // current time in milliseconds
+
+    private long lastTimestamp = -1; // guarded by this
+    private long sequence;           // guarded by this
+    private boolean regressed;       // guarded by this, true while the clock is behind the last timestamp
+
+    public SnowflakeIdGenerator() {
+        this.clock = System::currentTimeMillis;
+    }
+
+    /**
+     * Create a generator outside of Spring (i.e. in tests)
+     *
+     * @param node Node id, between 0 and 31
+     * @param clock Current time in milliseconds
+     */
+    SnowflakeIdGenerator(long node, LongSupplier clock) {
+        this.node = node;
+        this.clock = clock;
+        checkNode();
+    }
+
+    @PostConstruct
+    public void init() {
+        checkNode();
+        instance = this;
+    }
+
+    /**
+     * Get the generator of the application
+     *
+     * @return Id generator
+     */
+    public static SnowflakeIdGenerator getInstance() {
+        SnowflakeIdGenerator generator = instance;
+        if (generator == null) {
+            throw new IllegalStateException("Id generator has not been initialized");
+        }
+        return generator;
+    }
+
+    /**
+     * Get the smallest id that can be generated at a given time, on any node.
+     * Content with a smaller id got its id before that time.
+     *
+     * @param timeMillis Time in milliseconds since 1970
+     * @return Smallest id of the time. Else, return 0 for a time before 2021-01-01
+     */
+    public static long firstIdAt(long timeMillis) {
+        return Math.max(0, timeMillis - EPOCH) << (NODE_BITS + SEQUENCE_BITS);
+    }
+
+    /**
+     * Generate a new id
+     *
+     * @return A unique id, greater than the previous ids of this instance
+     */
+    public synchronized long nextId() {
+        long timestamp = clock.getAsLong() - EPOCH;
+        if (timestamp > lastTimestamp) {
+            if (regressed) {
+                LOGGER.info("Clock has caught up with the ids");
+                regressed = false;
+            }
+            lastTimestamp = timestamp;
+            sequence = 0;
+        } else {
+            if (timestamp < lastTimestamp && !regressed) {
+                LOGGER.warn("Clock went back {} ms, ids keep counting from the last timestamp",
+                        lastTimestamp - timestamp);
+                regressed = true;
+            }
+            // same millisecond, or the clock went back: keep counting from the last timestamp
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                lastTimestamp++; // sequence exhausted, borrow the next millisecond
+            }
+        }
+        return (lastTimestamp << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Check if an id has been generated by this instance
+     *
+     * @param id Id
+     * @return True if the node bits of the id are the node id of this instance. Else, return false
+     */
+    public boolean isLocal(long id) {
+        return ((id >>> SEQUENCE_BITS) & MAX_NODE) == node;
+    }
+
+    private void checkNode() {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalStateException("app.id.node must be between 0 and " + MAX_NODE + ": " + node);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.haward.blog.id;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.IdentifierGenerator;
+
+import java.io.Serializable;
+
+/**
+ * SnowflakeIdentifierGenerator lets Hibernate assign the ids of new entities with SnowflakeIdGenerator.
+ * The id is known before the insert, so inserts can be batched and no DB round trip is needed to get it.
+ *
+ * Hibernate creates this generator itself, so it uses the generator bean of the application context.
+ * Usage: @GeneratedValue(generator = "snowflake")
+ *        @GenericGenerator(name = "snowflake", strategy = SnowflakeIdentifierGenerator.STRATEGY)
+ */
+public class SnowflakeIdentifierGenerator implements IdentifierGenerator {
+
+    public static final String STRATEGY = "com.haward.blog.id.SnowflakeIdentifierGenerator";
+
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object entity) {
+        return SnowflakeIdGenerator.getInstance().nextId();
+    }
+}
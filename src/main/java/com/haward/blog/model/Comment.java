@@ -1,6 +1,10 @@
 package com.haward.blog.model;
 
+import com.haward.blog.id.SnowflakeIdentifierGenerator;
 import lombok.Data;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotBlank;
@@ -15,11 +19,13 @@ import java.time.Instant;
 
 @Data
 @Entity
-@Table
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "comment")
+@Table(indexes = @Index(name = "idx_comment_post_created_on_id", columnList = "postId, createdOn, id"))
 public class Comment {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = SnowflakeIdentifierGenerator.STRATEGY)
     private Long id;
 
     @Lob
@@ -1,6 +1,8 @@
 package com.haward.blog.model;
 
+import com.haward.blog.id.SnowflakeIdentifierGenerator;
 import lombok.Data;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotBlank;
@@ -8,6 +10,7 @@ import javax.validation.constraints.NotBlank;
 /*
     An image is owned by the same user who posted his/her content.
     An image is related (must have a reference) to a specific post (one to one mapping).
+    Only the image metadata is persisted in DB. The binary image is kept in blob store.
  */
 
 @Data
@@ -15,7 +18,8 @@ import javax.validation.constraints.NotBlank;
 @Table
 public class Image {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = SnowflakeIdentifierGenerator.STRATEGY)
     private Long id;
 
     @Column
@@ -26,6 +30,12 @@ public class Image {
     @NotBlank
     private String fileType;  // i.e. jpg, jpeg, png
 
-    @Lob
-    private byte[] fileContent;  // binary image
+    @Column
+    private Long fileSize;  // number of bytes of the binary image
+
+    @Column(length = 64)
+    private String fileHash;  // hex encoded SHA-256 of the binary image
+
+    @Column
+    private String storageKey;  // key to locate the binary image in blob store
 }
@@ -0,0 +1,43 @@
+package com.haward.blog.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/*
+    An image rendition is a downscaled JPEG copy of a post image (i.e. a thumbnail).
+    It is derived from its original image in the background after the post has been created.
+    Like the original image, only its metadata is persisted in DB.
+ */
+
+@Data
+@Entity
+@Table(uniqueConstraints = {
+        @UniqueConstraint(columnNames = { "imageId", "width" })
+})
+public class ImageRendition {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column
+    private Long imageId;  // reference to the original image
+
+    @Column
+    private Integer width;  // in pixels
+
+    @Column
+    private Integer height;  // in pixels
+
+    @Column
+    private String fileType;  // i.e. image/jpeg
+
+    @Column
+    private Long fileSize;  // number of bytes
+
+    @Column(length = 64)
+    private String fileHash;  // hex encoded SHA-256
+
+    @Column
+    private String storageKey;  // key to locate the binary rendition in blob store
+}
@@ -1,6 +1,10 @@
 package com.haward.blog.model;
 
+import com.haward.blog.id.SnowflakeIdentifierGenerator;
 import lombok.Data;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
 
 import javax.persistence.*;
 import javax.validation.constraints.NotBlank;
@@ -14,11 +18,15 @@ import java.time.Instant;
 
 @Data
 @Entity
-@Table
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "post")
+@Table(indexes = @Index(name = "idx_post_created_on_id", columnList = "createdOn, id"))
 public class Post {
 
+    public static final int EXCERPT_LENGTH = 200; // max number of characters of the excerpt
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(generator = "snowflake")
+    @GenericGenerator(name = "snowflake", strategy = SnowflakeIdentifierGenerator.STRATEGY)
     private Long id;
 
     @NotBlank
@@ -30,6 +38,9 @@ public class Post {
     @NotEmpty
     private String content;
 
+    @Column(length = EXCERPT_LENGTH)
+    private String excerpt; // beginning of the content for post listings, null for legacy posts
+
     @Column
     private Instant createdOn;
 
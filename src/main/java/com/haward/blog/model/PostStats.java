@@ -0,0 +1,25 @@
+package com.haward.blog.model;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/*
+    Engagement counters of a post (number of views and comments).
+    Rows are written by PostCounters in batches, a post without a row has no view nor comment yet.
+ */
+
+@Data
+@Entity
+@Table
+public class PostStats {
+
+    @Id
+    private Long postId;
+
+    @Column
+    private long viewCount;
+
+    @Column
+    private long commentCount;
+}
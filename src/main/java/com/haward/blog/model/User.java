@@ -1,6 +1,8 @@
 package com.haward.blog.model;
 
 import lombok.Data;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.NaturalId;
 
 import javax.persistence.*;
@@ -17,6 +19,7 @@ import javax.validation.constraints.Size;
 
 @Data
 @Entity
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "user")
 @Table(name = "user", uniqueConstraints = {
         @UniqueConstraint(columnNames = { "username" }),
         @UniqueConstraint(columnNames = { "email" })
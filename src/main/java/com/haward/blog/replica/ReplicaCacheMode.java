@@ -0,0 +1,61 @@
+package com.haward.blog.replica;
+
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * ReplicaCacheMode keeps what is read from a replica out of the Hibernate second-level and query caches.
+ *
+ * A replica may lag up to max-lag behind the primary. If its rows were put in the caches, every node would
+ * serve them, from the primary too, until the cache entry expires (i.e. 30 s for comment-queries).
+ * The session of a transaction routed to a replica gets cache mode GET instead: cached entries are still
+ * read, but nothing is put. The previous cache mode is restored when the transaction completes, as with
+ * open in view the session is also used by the next transactions of the request.
+ */
+public class ReplicaCacheMode implements Runnable {
+
+    private final ObjectProvider<EntityManagerFactory> entityManagerFactory;
+
+    /**
+     * @param entityManagerFactory Factory of the transactional sessions, looked up lazily as it is created
+     *                             after the data source
+     */
+    public ReplicaCacheMode(ObjectProvider<EntityManagerFactory> entityManagerFactory) {
+        this.entityManagerFactory = entityManagerFactory;
+    }
+
+    /**
+     * Stop the session of the current transaction from putting entries in the caches
+     */
+    @Override
+    public void run() {
+        EntityManagerFactory factory = entityManagerFactory.getIfAvailable();
+        if (factory == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        EntityManagerHolder holder = (EntityManagerHolder) TransactionSynchronizationManager.getResource(factory);
+        if (holder == null) {
+            return; // plain JDBC transaction
+        }
+        Session session = holder.getEntityManager().unwrap(Session.class);
+        CacheMode previous = session.getCacheMode();
+        if (!previous.isPutEnabled()) {
+            return;
+        }
+        session.setCacheMode(previous.isGetEnabled() ? CacheMode.GET : CacheMode.IGNORE);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (session.isOpen()) {
+                    session.setCacheMode(previous);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,377 @@
+package com.haward.blog.replica;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * ReplicaRoutingDataSource sends the statements of read-only transactions to the read replicas,
+ * and every other statement to the primary.
+ *
+ * The target is chosen when a statement needs a connection, so this data source must be wrapped in a
+ * LazyConnectionDataSourceProxy: the transaction manager asks for the connection before the read-only
+ * flag of the transaction is known.
+ *
+ * The replicas are checked with a heartbeat, on a thread of their own so that slow scheduled tasks cannot
+ * delay it: the current time is written to the primary (one row per node, see app.id.node) and read back
+ * from every replica. The lag of a replica is how far its heartbeat is behind the last one written, so it
+ * is measured in steps of the check interval. A replica is used while it answers and lags at most max-lag.
+ * Reads are spread over the usable replicas, and go to the primary when no replica is usable.
+ *
+ * Replicas lag by different amounts, so the reads of an HTTP request all go to the replica of its first
+ * read-only transaction (i.e. a watermark and the page it validates are read from the same replica). If that
+ * replica falls behind during the request, the next reads of the request go to the primary, which is ahead
+ * of it. After a client (see setClientKey) has committed a write, its reads go to the primary for max-lag
+ * plus one check interval, so that it reads its own writes (i.e. a post read right after it was created).
+ * A task started by a request on another thread (i.e. a post loaded by the PostCache) is routed like the
+ * request when it is wrapped with withCurrentRoute.
+ *
+ * A listener can be told when a transaction is routed to a replica, i.e. to keep its reads out of the
+ * caches (see ReplicaCacheMode).
+ */
+public class ReplicaRoutingDataSource extends AbstractRoutingDataSource implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private static final String PRIMARY = "primary";
+
+    private static final int CHECK_TIMEOUT = 1; // seconds to wait for a heartbeat query
+
+    private static final String CREATE_HEARTBEAT = "CREATE TABLE IF NOT EXISTS replica_heartbeat"
+            + " (node_id INT NOT NULL PRIMARY KEY, beat BIGINT NOT NULL)";
+
+    private static final String WRITE_HEARTBEAT = "INSERT INTO replica_heartbeat (node_id, beat) VALUES (?, ?)"
+            + " ON DUPLICATE KEY UPDATE beat = ?";
+
+    private static final String READ_HEARTBEAT = "SELECT beat FROM replica_heartbeat WHERE node_id = ?";
+
+    // request attribute of the target the reads of the request are pinned to, held in an AtomicReference
+    private static final String PINNED_TARGET = ReplicaRoutingDataSource.class.getName() + ".PINNED_TARGET";
+
+    private final JdbcTemplate primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final int node;
+    private final long maxLag;
+
+    private final AtomicInteger next = new AtomicInteger(); // to spread the reads over the replicas
+
+    private volatile List<Replica> usable = Collections.emptyList();
+
+    private Runnable replicaListener; // called in the transactions routed to a replica, null if none
+
+    private Supplier<String> clientKey = () -> null; // client of the current thread, null if unknown
+
+    private long checkInterval; // milliseconds between heartbeats, 0 if they are not scheduled
+
+    private ScheduledExecutorService checker; // thread of the heartbeat, null if not scheduled
+
+    private final Map<String, Long> lastWrites = new ConcurrentHashMap<>(); // client -> time of its last write
+
+    private long lastBeat; // heartbeat last written to the primary, 0 until the first one
+
+    private final ThreadLocal<Route> inheritedRoute = new ThreadLocal<>(); // route of the task run by this thread
+
+    /**
+     * @param primary Primary data source
+     * @param replicas Replica data sources, closed with this data source
+     * @param node Node id of this instance, to keep its own heartbeat row
+     * @param maxLag Milliseconds a replica may lag behind the primary
+     * @param meterRegistry Registry of the replica lag gauges
+     */
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, int node, long maxLag,
+                                    MeterRegistry meterRegistry) {
+        this.primary = new JdbcTemplate(primary);
+        this.node = node;
+        this.maxLag = maxLag;
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = new Replica(i, replicas.get(i));
+            this.replicas.add(replica);
+            targets.put(i, replica.dataSource);
+            Gauge.builder("blog.datasource.replica.lag", replica, r -> r.lag < 0 ? Double.NaN : r.lag)
+                    .tag("replica", String.valueOf(i)).baseUnit("milliseconds")
+                    .description("Lag of the replica behind the primary, NaN if it does not answer")
+                    .register(meterRegistry);
+        }
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+    }
+
+    /**
+     * @param replicaListener Called in every transaction routed to a replica, when it gets its connection
+     */
+    public void setReplicaListener(Runnable replicaListener) {
+        this.replicaListener = replicaListener;
+    }
+
+    /**
+     * @param clientKey Gives the client of the current thread (i.e. the authenticated username), or null if
+     *                  unknown. The reads of a client go to the primary for a while after its writes.
+     */
+    public void setClientKey(Supplier<String> clientKey) {
+        this.clientKey = clientKey;
+    }
+
+    /**
+     * @param checkInterval Milliseconds between heartbeats. Else, 0 to check the replicas on demand only
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        primary.execute(CREATE_HEARTBEAT);
+        if (checkInterval > 0) {
+            checker = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("replica-check-"));
+            checker.scheduleWithFixedDelay(this::scheduledCheck, 0, checkInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Route a task like the current thread: its reads go to the primary after the writes of the client of the
+     * current thread, and to the target the current request is pinned to. The target is shared with the
+     * request, not the request itself, so the task may outlive the request (i.e. a refresh-ahead load).
+     *
+     * @param task Task to run on another thread
+     * @return The task, run with the client and the pinned target of the current thread
+     */
+    public Runnable withCurrentRoute(Runnable task) {
+        Route inherited = inheritedRoute.get();
+        Route route = inherited != null ? inherited : new Route(clientKey.get(), requestTarget());
+        return () -> {
+            Route previous = inheritedRoute.get();
+            inheritedRoute.set(route);
+            try {
+                task.run();
+            } finally {
+                if (previous == null) {
+                    inheritedRoute.remove();
+                } else {
+                    inheritedRoute.set(previous);
+                }
+            }
+        };
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        Route route = inheritedRoute.get();
+        String client = route != null ? route.client : clientKey.get();
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+            if (client != null && TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        lastWrites.put(client, System.currentTimeMillis());
+                    }
+                });
+            }
+            return PRIMARY;
+        }
+        List<Replica> candidates = usable;
+        AtomicReference<Object> pin = route != null ? route.target : requestTarget();
+        Object pinned = pin.get();
+        Object target;
+        if (client != null && wroteRecently(client, System.currentTimeMillis())) {
+            target = PRIMARY; // the replicas may not have its write yet
+        } else if (pinned == null) {
+            target = candidates.isEmpty()
+                    ? PRIMARY : candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size())).index;
+        } else if (PRIMARY.equals(pinned) || candidates.stream().anyMatch(replica -> pinned.equals(replica.index))) {
+            target = pinned;
+        } else {
+            target = PRIMARY; // the replica has fallen behind, the primary is ahead of what the request has read
+        }
+        pin.set(target);
+        if (!PRIMARY.equals(target) && replicaListener != null) {
+            replicaListener.run();
+        }
+        return target;
+    }
+
+    /**
+     * @return The target the reads of the current request are pinned to, a new one if the thread has no request
+     */
+    @SuppressWarnings("unchecked")
+    private AtomicReference<Object> requestTarget() {
+        RequestAttributes request = RequestContextHolder.getRequestAttributes();
+        if (request == null) {
+            return new AtomicReference<>();
+        }
+        Object pinned = request.getAttribute(PINNED_TARGET, RequestAttributes.SCOPE_REQUEST);
+        if (pinned == null) {
+            pinned = new AtomicReference<>();
+            request.setAttribute(PINNED_TARGET, pinned, RequestAttributes.SCOPE_REQUEST);
+        }
+        return (AtomicReference<Object>) pinned;
+    }
+
+    /**
+     * Measure the lag of the replicas, then write the next heartbeat to the primary
+     */
+    public void checkReplicas() {
+        List<Replica> checked = new ArrayList<>();
+        for (Replica replica : replicas) {
+            if (replica.check()) {
+                checked.add(replica);
+            }
+        }
+        usable = Collections.unmodifiableList(checked);
+
+        long beat = System.currentTimeMillis();
+        try {
+            primary.update(WRITE_HEARTBEAT, node, beat, beat);
+            lastBeat = beat;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to write the replica heartbeat", e);
+        }
+        lastWrites.values().removeIf(time -> !isRecent(time, beat));
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        if (checker != null) {
+            checker.shutdownNow();
+        }
+        for (Replica replica : replicas) {
+            if (replica.dataSource instanceof Closeable) {
+                ((Closeable) replica.dataSource).close();
+            }
+        }
+    }
+
+    /**
+     * Helper method to run a scheduled check. A failed check must not stop the next ones.
+     */
+    private void scheduledCheck() {
+        try {
+            checkReplicas();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to check the replicas", e);
+        }
+    }
+
+    /**
+     * Helper method to check if a client has written in the time a replica may lag behind the primary
+     *
+     * @param client Client key
+     * @param now Current time in milliseconds
+     * @return True if the replicas may not have its last write yet. Else, return false
+     */
+    private boolean wroteRecently(String client, long now) {
+        Long time = lastWrites.get(client);
+        return time != null && isRecent(time, now);
+    }
+
+    /**
+     * Helper method to check if a write may not have reached the usable replicas yet. Their lag is measured
+     * in steps of the check interval, so it may be max-lag plus one interval.
+     *
+     * @param time Time of the write in milliseconds
+     * @param now Current time in milliseconds
+     * @return True if the write is recent. Else, return false
+     */
+    private boolean isRecent(long time, long now) {
+        return now - time <= maxLag + checkInterval;
+    }
+
+    /**
+     * Replica with its last measured lag
+     */
+    private class Replica {
+
+        private final int index;
+        private final DataSource dataSource;
+        private final JdbcTemplate jdbcTemplate;
+
+        private volatile long lag = -1; // milliseconds, -1 if unknown
+        private Boolean used; // to log the changes only, null until the first check
+
+        Replica(int index, DataSource dataSource) {
+            this.index = index;
+            this.dataSource = dataSource;
+            this.jdbcTemplate = new JdbcTemplate(dataSource);
+            this.jdbcTemplate.setQueryTimeout(CHECK_TIMEOUT);
+        }
+
+        /**
+         * Measure the lag of the replica
+         *
+         * @return True if the replica can be used. Else, return false
+         */
+        boolean check() {
+            if (lastBeat == 0) {
+                return false; // a heartbeat of a previous run tells nothing
+            }
+            String reason = null;
+            try {
+                List<Long> beats = jdbcTemplate.queryForList(READ_HEARTBEAT, Long.class, node);
+                if (beats.isEmpty()) {
+                    lag = -1;
+                    reason = "no heartbeat has been received yet";
+                } else {
+                    lag = Math.max(0, lastBeat - beats.get(0));
+                    if (lag > maxLag) {
+                        reason = "lag is " + lag + " ms";
+                    }
+                }
+            } catch (RuntimeException e) {
+                lag = -1;
+                reason = "heartbeat query failed (" + e.getMessage() + ")";
+            }
+            boolean ok = reason == null;
+            if (used == null || used != ok) {
+                if (ok) {
+                    LOGGER.info("Replica {} is used for read-only transactions", index);
+                } else {
+                    LOGGER.warn("Replica {} is not used: {}. Its reads go to the other replicas or to the primary.",
+                            index, reason);
+                }
+            }
+            used = ok;
+            return used;
+        }
+    }
+
+    /**
+     * Client and pinned target a task was started with
+     */
+    private static class Route {
+
+        private final String client; // null if unknown
+        private final AtomicReference<Object> target; // shared with the request that started the task
+
+        Route(String client, AtomicReference<Object> target) {
+            this.client = client;
+            this.target = target;
+        }
+    }
+}
@@ -1,13 +1,55 @@
 package com.haward.blog.repository;
 
 import com.haward.blog.model.Comment;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
+import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_CACHE_REGION;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
 
 /**
  * This class facilitates the CRUD operations for table 'comment' in DB
  */
 public interface CommentRepository extends JpaRepository<Comment, Long> {
+
+    String COMMENT_QUERIES = "comment-queries"; // query cache region, see ehcache.xml
+
+    // cached ids of the comments of a post, entities are then read from the second-level cache
+    @QueryHints({@QueryHint(name = HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HINT_CACHE_REGION, value = COMMENT_QUERIES)})
     List<Comment> findByPostId(Long postId);
+
+    @Query("select c.createdOn from Comment c where c.id = :id")
+    Optional<Instant> findCreatedOnById(@Param("id") Long id);
+
+    @Query("select c from Comment c where c.id > :id order by c.id asc")
+    List<Comment> findAfterId(@Param("id") Long id, Pageable pageable);
+
+    // keyset queries use index idx_comment_post_created_on_id, comments are sorted oldest first
+
+    @QueryHints({@QueryHint(name = HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HINT_CACHE_REGION, value = COMMENT_QUERIES)})
+    @Query("select c from Comment c where c.postId = :postId order by c.createdOn asc, c.id asc")
+    List<Comment> findFirstByPostId(@Param("postId") Long postId, Pageable pageable);
+
+    @Query("select c from Comment c where c.postId = :postId"
+            + " and (c.createdOn > :createdOn or (c.createdOn = :createdOn and c.id > :id))"
+            + " order by c.createdOn asc, c.id asc")
+    List<Comment> findNextByPostId(@Param("postId") Long postId, @Param("createdOn") Instant createdOn,
+                                   @Param("id") Long id, Pageable pageable);
+
+    // rows are fetched in batches while the stream is consumed (MySQL needs useCursorFetch=true)
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "500"))
+    @Query("select c from Comment c where c.postId = :postId order by c.createdOn asc, c.id asc")
+    Stream<Comment> streamByPostId(@Param("postId") Long postId);
 }
@@ -0,0 +1,14 @@
+package com.haward.blog.repository;
+
+import com.haward.blog.model.ImageRendition;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.util.List;
+
+/**
+ * This class facilitates the CRUD operations for table 'image_rendition' in DB
+ */
+public interface ImageRenditionRepository extends JpaRepository<ImageRendition, Long> {
+    List<ImageRendition> findByImageIdOrderByWidthAsc(Long imageId);
+    boolean existsByImageIdAndWidth(Long imageId, Integer width);
+}
@@ -1,10 +1,62 @@
 package com.haward.blog.repository;
 
 import com.haward.blog.model.Post;
+import com.haward.blog.view.response.PostSummary;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 
 /**
  * This class facilitates the CRUD operations for table 'post' in DB
  */
 public interface PostRepository extends JpaRepository<Post, Long> {
+
+    // summary of a post without its content (excerpt of a legacy post is cut from its content)
+    String SELECT_SUMMARY = "select new com.haward.blog.view.response.PostSummary(p.id, p.title,"
+            + " coalesce(p.excerpt, substring(p.content, 1, " + Post.EXCERPT_LENGTH + ")),"
+            + " p.username, p.createdOn, p.imageId, coalesce(s.viewCount, 0L), coalesce(s.commentCount, 0L))"
+            + " from Post p left join PostStats s on s.postId = p.id";
+
+    @Query("select max(p.id) from Post p")
+    Long findMaxId();
+
+    @Query("select p from Post p where p.id > :id order by p.id asc")
+    List<Post> findAfterId(@Param("id") Long id, Pageable pageable);
+
+    // keyset queries use index idx_post_created_on_id and return a list, so no count query is run
+
+    @Query("select p from Post p order by p.createdOn desc, p.id desc")
+    List<Post> findLatest(Pageable pageable);
+
+    @Query("select p.id from Post p order by p.createdOn desc, p.id desc")
+    List<Long> findLatestIds(Pageable pageable);
+
+    @Query("select p from Post p where p.createdOn < :createdOn or (p.createdOn = :createdOn and p.id < :id)"
+            + " order by p.createdOn desc, p.id desc")
+    List<Post> findOlderThan(@Param("createdOn") Instant createdOn, @Param("id") Long id, Pageable pageable);
+
+    @Query("select p from Post p where p.createdOn > :createdOn or (p.createdOn = :createdOn and p.id > :id)"
+            + " order by p.createdOn asc, p.id asc")
+    List<Post> findNewerThan(@Param("createdOn") Instant createdOn, @Param("id") Long id, Pageable pageable);
+
+    @Query(SELECT_SUMMARY + " where p.id = :id")
+    Optional<PostSummary> findSummaryById(@Param("id") Long id);
+
+    @Query(SELECT_SUMMARY + " order by p.createdOn desc, p.id desc")
+    List<PostSummary> findLatestSummaries(Pageable pageable);
+
+    @Query(SELECT_SUMMARY + " where p.createdOn < :createdOn or (p.createdOn = :createdOn and p.id < :id)"
+            + " order by p.createdOn desc, p.id desc")
+    List<PostSummary> findOlderSummaries(@Param("createdOn") Instant createdOn, @Param("id") Long id,
+                                         Pageable pageable);
+
+    @Query(SELECT_SUMMARY + " where p.createdOn > :createdOn or (p.createdOn = :createdOn and p.id > :id)"
+            + " order by p.createdOn asc, p.id asc")
+    List<PostSummary> findNewerSummaries(@Param("createdOn") Instant createdOn, @Param("id") Long id,
+                                         Pageable pageable);
 }
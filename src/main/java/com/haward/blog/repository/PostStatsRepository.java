@@ -0,0 +1,11 @@
+package com.haward.blog.repository;
+
+import com.haward.blog.model.PostStats;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+/**
+ * This class facilitates the read operations for table 'post_stats' in DB.
+ * Counters are written by PostCounters.
+ */
+public interface PostStatsRepository extends JpaRepository<PostStats, Long> {
+}
@@ -0,0 +1,10 @@
+package com.haward.blog.repository;
+
+/**
+ * Username and email of a user, to check which of them are taken without loading the user
+ */
+public interface UserIdentity {
+    Long getId();
+    String getUsername();
+    String getEmail();
+}
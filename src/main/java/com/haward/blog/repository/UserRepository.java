@@ -1,18 +1,40 @@
 package com.haward.blog.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
+import javax.persistence.QueryHint;
 
 import com.haward.blog.model.User;
 
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_CACHE_REGION;
+
 /**
  * This class facilitates the CRUD operations for table 'user' in DB
  */
 @Repository
 public interface UserRepository extends JpaRepository<User, Long> {
+
+    String USER_QUERIES = "user-queries"; // query cache region, see ehcache.xml
+
+    @QueryHints({@QueryHint(name = HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HINT_CACHE_REGION, value = USER_QUERIES)})
     Optional<User> findByUsername(String username);
     Boolean existsByUsername(String username);
     Boolean existsByEmail(String email);
+
+    // one lookup of both unique indexes
+    @Query("select u.id as id, u.username as username, u.email as email from User u"
+            + " where u.username = :username or u.email = :email")
+    List<UserIdentity> findByUsernameOrEmail(@Param("username") String username, @Param("email") String email);
+
+    @Query("select u.id as id, u.username as username, u.email as email from User u where u.id > :id order by u.id asc")
+    List<UserIdentity> findIdentitiesAfterId(@Param("id") Long id, Pageable pageable);
 }
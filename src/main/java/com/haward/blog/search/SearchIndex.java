@@ -0,0 +1,445 @@
+package com.haward.blog.search;
+
+import com.haward.blog.comment.CommentStore;
+import com.haward.blog.event.CommentCreatedEvent;
+import com.haward.blog.event.CommentDeletedEvent;
+import com.haward.blog.event.PostCreatedEvent;
+import com.haward.blog.id.SnowflakeIdGenerator;
+import com.haward.blog.model.Comment;
+import com.haward.blog.model.Post;
+import com.haward.blog.repository.PostRepository;
+import com.haward.blog.view.response.SearchHit;
+import com.haward.blog.view.response.SearchPage;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SearchIndex is a full-text index of the titles and contents of the posts and of the contents of the
+ * comments, so a search never scans the content columns of DB.
+ *
+ * The index is kept on local disk (app.search.index-dir) and read through memory-mapped files. A post or a
+ * comment created on this instance is indexed once it has been committed to DB, and becomes searchable at
+ * the next refresh (app.search.refresh-interval).
+ *
+ * The content created on other instances is caught up from DB in the background, at startup and then every
+ * app.search.catch-up-interval: the posts and comments with ids above a watermark are indexed. Every id
+ * below the watermark is known to be indexed. Ids are time ordered (see SnowflakeIdGenerator) but content
+ * is not committed in id order, so the watermark stays app.search.catch-up-lag behind the time of the last
+ * scan, and a post or comment committed within that lag of getting its id is always found by a later scan.
+ * The index is committed to disk periodically (app.search.commit-interval) and at shutdown with the
+ * watermarks, so an index lost or never built is rebuilt from DB.
+ *
+ * Deletions are only seen by the instance that deletes: a comment deleted on another instance stays in the
+ * index until a rebuild (app.search.rebuild), and a search hit may refer to a deleted comment.
+ *
+ * A search returns the fields stored in the index, ranked by relevance (a match in a title counts twice).
+ */
+@Component
+public class SearchIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchIndex.class);
+
+    public static final String TYPE_POST = "post";
+    public static final String TYPE_COMMENT = "comment";
+
+    // index fields
+    private static final String KEY = "key";              // type:id, to replace or delete a document
+    private static final String TYPE = "type";
+    private static final String ID = "id";
+    private static final String POST_ID = "postId";
+    private static final String TITLE = "title";
+    private static final String CONTENT = "content";
+    private static final String EXCERPT = "excerpt";
+    private static final String USERNAME = "username";
+    private static final String CREATED_ON = "createdOn";
+
+    // commit data: the posts and comments with smaller ids were all indexed before the commit
+    private static final String POST_WATERMARK = "postWatermark";
+    private static final String COMMENT_WATERMARK = "commentWatermark";
+
+    private static final float TITLE_BOOST = 2f;
+
+    private static final int CATCH_UP_BATCH_SIZE = 500; // posts or comments read from DB at once
+
+    @Autowired
+    private PostRepository postRepository; // to index the posts missing from the index
+
+    @Autowired
+    private CommentStore commentStore; // to index the comments missing from the index
+
+    @Value("${app.search.index-dir}")
+    private String indexDir; // folder of the index files
+
+    @Value("${app.search.rebuild}")
+    private boolean rebuild; // true to drop the index and rebuild it from DB
+
+    @Value("${app.search.catch-up-interval}")
+    private long catchUpInterval; // milliseconds between scans of DB for content created on other instances
+
+    @Value("${app.search.catch-up-lag}")
+    private long catchUpLag; // max milliseconds between getting an id and committing the content
+
+    private final Analyzer analyzer = new StandardAnalyzer();
+
+    private Directory directory;
+
+    private IndexWriter writer;
+
+    private SearcherManager searcherManager;
+
+    private volatile long postWatermark;    // every post with a smaller id is indexed
+    private volatile long commentWatermark; // every comment with a smaller id is indexed
+
+    private volatile boolean running = true;
+
+    private final CountDownLatch stopped = new CountDownLatch(1); // to wake the indexer up at shutdown
+
+    private Thread indexer;
+
+    @PostConstruct
+    public void init() throws IOException {
+        Path path = Paths.get(indexDir);
+        Files.createDirectories(path);
+        directory = new MMapDirectory(path);
+        if (!rebuild && DirectoryReader.indexExists(directory)) {
+            Map<String, String> commitData = SegmentInfos.readLatestCommit(directory).getUserData();
+            postWatermark = Long.parseLong(commitData.getOrDefault(POST_WATERMARK, "0"));
+            commentWatermark = Long.parseLong(commitData.getOrDefault(COMMENT_WATERMARK, "0"));
+        }
+        IndexWriterConfig config = new IndexWriterConfig(analyzer);
+        config.setOpenMode(rebuild ? IndexWriterConfig.OpenMode.CREATE : IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+        writer = new IndexWriter(directory, config);
+        searcherManager = new SearcherManager(writer, null);
+    }
+
+    /**
+     * Index the posts and comments missing from the index in the background: at startup, then periodically
+     * for the content created on other instances
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void catchUp() {
+        indexer = new Thread(() -> {
+            boolean first = true;
+            do {
+                try {
+                    long start = System.currentTimeMillis();
+                    int count = catchUpOnce(start);
+                    if (first) {
+                        commit();
+                        refresh();
+                        LOGGER.info("Search index caught up with {} post(s) and comment(s) in {} ms",
+                                count, System.currentTimeMillis() - start);
+                        first = false;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Failed to catch up the search index", e);
+                }
+                try {
+                    stopped.await(catchUpInterval, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } while (running);
+        }, "search-indexer");
+        indexer.start();
+    }
+
+    /**
+     * Index a new post, after the post has been committed
+     *
+     * @param event Post created event
+     */
+    @TransactionalEventListener
+    public void onPostCreated(PostCreatedEvent event) {
+        Post post = event.getPost();
+        try {
+            index(post);
+        } catch (IOException e) {
+            LOGGER.error("Failed to index post id {}", post.getId(), e);
+        }
+    }
+
+    /**
+     * Index a new comment, after the comment has been committed
+     * (comments written behind are committed before the event is published)
+     *
+     * @param event Comment created event
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommentCreated(CommentCreatedEvent event) {
+        Comment comment = event.getComment();
+        try {
+            index(comment);
+        } catch (IOException e) {
+            LOGGER.error("Failed to index comment id {}", comment.getId(), e);
+        }
+    }
+
+    /**
+     * Remove a deleted comment from the index, after the deletion has been committed
+     *
+     * @param event Comment deleted event
+     */
+    @TransactionalEventListener
+    public void onCommentDeleted(CommentDeletedEvent event) {
+        Comment comment = event.getComment();
+        try {
+            writer.deleteDocuments(new Term(KEY, key(TYPE_COMMENT, comment.getId())));
+        } catch (IOException e) {
+            LOGGER.error("Failed to remove comment id {} from the index", comment.getId(), e);
+        }
+    }
+
+    /**
+     * Search the posts and the comments
+     *
+     * @param text Query. All words must match. "quoted phrase", -excluded, word* and a|b are supported.
+     * @param pageNumber Page number
+     * @param size Number of hits per page
+     * @return A page of the hits, most relevant first
+     */
+    public SearchPage search(String text, int pageNumber, int size) {
+        Map<String, Float> weights = new HashMap<>();
+        weights.put(TITLE, TITLE_BOOST);
+        weights.put(CONTENT, 1f);
+        SimpleQueryParser parser = new SimpleQueryParser(analyzer, weights);
+        parser.setDefaultOperator(BooleanClause.Occur.MUST);
+        Query query = parser.parse(text);
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                int from = pageNumber * size;
+                TopDocs topDocs = searcher.search(query, from + size);
+                List<SearchHit> hits = new ArrayList<>();
+                for (int i = from; i < topDocs.scoreDocs.length; i++) {
+                    ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+                    hits.add(toSearchHit(searcher.doc(scoreDoc.doc), scoreDoc.score));
+                }
+                SearchPage page = new SearchPage();
+                page.setItems(hits);
+                page.setTotalHits(topDocs.totalHits.value);
+                page.setTotalHitsExact(topDocs.totalHits.relation == TotalHits.Relation.EQUAL_TO);
+                return page;
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Make the content indexed since the previous refresh searchable
+     *
+     * @throws IOException if the index cannot be read
+     */
+    @Scheduled(fixedDelayString = "${app.search.refresh-interval}")
+    public void refresh() throws IOException {
+        searcherManager.maybeRefresh();
+    }
+
+    /**
+     * Write the indexed content to disk
+     *
+     * @throws IOException if the index cannot be written
+     */
+    @Scheduled(fixedDelayString = "${app.search.commit-interval}")
+    public synchronized void commit() throws IOException {
+        if (!writer.isOpen()) {
+            return;
+        }
+        Map<String, String> commitData = new HashMap<>();
+        // until the catch-up is done, older content may be missing, so it is caught up again after a restart
+        commitData.put(POST_WATERMARK, String.valueOf(postWatermark));
+        commitData.put(COMMENT_WATERMARK, String.valueOf(commentWatermark));
+        writer.setLiveCommitData(commitData.entrySet());
+        writer.commit();
+    }
+
+    /**
+     * Write the index to disk before the application stops
+     *
+     * @throws IOException if the index cannot be written
+     * @throws InterruptedException if interrupted while waiting for the catch-up to stop
+     */
+    @PreDestroy
+    public void close() throws IOException, InterruptedException {
+        running = false;
+        stopped.countDown();
+        if (indexer != null) {
+            indexer.join();
+        }
+        commit();
+        searcherManager.close();
+        writer.close();
+        directory.close();
+    }
+
+    /**
+     * Helper method to index the posts and comments above the watermarks, then move the watermarks up to
+     * the ids that were given catch-up-lag before the scan. Content is indexed again by later scans until
+     * it is below the watermarks (indexing is idempotent).
+     *
+     * @param start Time of the scan
+     * @return Number of indexed posts and comments
+     * @throws IOException if the index cannot be written
+     */
+    private int catchUpOnce(long start) throws IOException {
+        long safeId = SnowflakeIdGenerator.firstIdAt(start - catchUpLag);
+        int count = 0;
+        long after = postWatermark;
+        List<Post> posts;
+        do {
+            posts = postRepository.findAfterId(after, PageRequest.of(0, CATCH_UP_BATCH_SIZE));
+            for (Post post : posts) {
+                index(post);
+                after = post.getId();
+            }
+            count += posts.size();
+        } while (posts.size() == CATCH_UP_BATCH_SIZE && running);
+        if (!running) {
+            return count;
+        }
+        postWatermark = Math.max(postWatermark, safeId);
+
+        after = commentWatermark;
+        List<Comment> comments;
+        do {
+            comments = commentStore.findAfterId(after, CATCH_UP_BATCH_SIZE);
+            for (Comment comment : comments) {
+                index(comment);
+                after = comment.getId();
+            }
+            count += comments.size();
+        } while (comments.size() == CATCH_UP_BATCH_SIZE && running);
+        if (running) {
+            commentWatermark = Math.max(commentWatermark, safeId);
+        }
+        return count;
+    }
+
+    /**
+     * Helper method to add or replace a post in the index
+     *
+     * @param post Committed post
+     * @throws IOException if the index cannot be written
+     */
+    private void index(Post post) throws IOException {
+        Document document = newDocument(TYPE_POST, post.getId(), post.getId(), post.getContent(),
+                post.getUsername(), post.getCreatedOn());
+        if (post.getTitle() != null) {
+            document.add(new TextField(TITLE, post.getTitle(), Field.Store.YES));
+        }
+        writer.updateDocument(new Term(KEY, key(TYPE_POST, post.getId())), document);
+    }
+
+    /**
+     * Helper method to add or replace a comment in the index
+     *
+     * @param comment Committed comment
+     * @throws IOException if the index cannot be written
+     */
+    private void index(Comment comment) throws IOException {
+        Document document = newDocument(TYPE_COMMENT, comment.getId(), comment.getPostId(), comment.getContent(),
+                comment.getUsername(), comment.getCreatedOn());
+        writer.updateDocument(new Term(KEY, key(TYPE_COMMENT, comment.getId())), document);
+    }
+
+    /**
+     * Helper method to create the document of a post or a comment with the common fields
+     *
+     * @return Document to be indexed
+     */
+    private Document newDocument(String type, Long id, Long postId, String content, String username,
+                                 Instant createdOn) {
+        Document document = new Document();
+        document.add(new StringField(KEY, key(type, id), Field.Store.NO));
+        document.add(new StringField(TYPE, type, Field.Store.YES));
+        document.add(new StoredField(ID, id));
+        document.add(new StoredField(POST_ID, postId));
+        if (content != null) {
+            document.add(new TextField(CONTENT, content, Field.Store.NO));
+            document.add(new StoredField(EXCERPT, content.length() > Post.EXCERPT_LENGTH
+                    ? content.substring(0, Post.EXCERPT_LENGTH) : content));
+        }
+        if (username != null) {
+            document.add(new StoredField(USERNAME, username));
+        }
+        if (createdOn != null) {
+            document.add(new StoredField(CREATED_ON, createdOn.toEpochMilli()));
+        }
+        return document;
+    }
+
+    /**
+     * Helper method to convert the stored fields of a document to a search hit
+     *
+     * @param document Stored fields of a matching document
+     * @param score Relevance of the document
+     * @return Search hit
+     */
+    private SearchHit toSearchHit(Document document, float score) {
+        SearchHit hit = new SearchHit();
+        hit.setType(document.get(TYPE));
+        hit.setId(document.getField(ID).numericValue().longValue());
+        hit.setPostId(document.getField(POST_ID).numericValue().longValue());
+        hit.setTitle(document.get(TITLE));
+        hit.setExcerpt(document.get(EXCERPT));
+        hit.setUsername(document.get(USERNAME));
+        if (document.getField(CREATED_ON) != null) {
+            hit.setCreatedOn(Instant.ofEpochMilli(document.getField(CREATED_ON).numericValue().longValue()));
+        }
+        hit.setScore(score);
+        return hit;
+    }
+
+    private static String key(String type, Long id) {
+        return type + ":" + id;
+    }
+}
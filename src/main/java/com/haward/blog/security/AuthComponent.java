@@ -1,15 +1,19 @@
 package com.haward.blog.security;
 
 import com.haward.blog.security.userdetails.CustomUserDetails;
+import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.impl.TextCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.util.Date;
 import java.util.Optional;
 
@@ -21,14 +25,31 @@ public class AuthComponent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AuthComponent.class);
 
+    public static final String CLAIM_USER_ID = "uid";   // token claim of the user id
+    public static final String CLAIM_EMAIL = "email";   // token claim of the user email
+
     @Value("${app.token.secret}")
     private String secret; // value is defined in application.properties file
 
     @Value("${app.token.expiration}")
     private int expiration; // value is defined in application.properties file
 
+    @Value("${app.token.stateless-principal}")
+    private boolean statelessPrincipal; // value is defined in application.properties file
+
+    @Autowired
+    private TokenCache tokenCache; // to verify a token once
+
+    private byte[] signingKey; // decoded secret
+
+    @PostConstruct
+    public void init() {
+        signingKey = TextCodec.BASE64.decode(secret);
+    }
+
     /**
-     * Generate JWT token
+     * Generate JWT token.
+     * The token carries the user id and email, so the user can be rebuilt from the token alone.
      *
      * @param authentication Authentication to get user info for generating token
      * @return JWT token
@@ -37,9 +58,11 @@ public class AuthComponent {
         CustomUserDetails userDetails = (CustomUserDetails) authentication.getPrincipal();
         return Jwts.builder()
                 .setSubject(userDetails.getUsername())
+                .claim(CLAIM_USER_ID, userDetails.getId())
+                .claim(CLAIM_EMAIL, userDetails.getEmail())
                 .setIssuedAt(new Date())
                 .setExpiration(new Date((new Date()).getTime() + expiration*1000))
-                .signWith(SignatureAlgorithm.HS512, secret)
+                .signWith(SignatureAlgorithm.HS512, signingKey)
                 .compact();
     }
 
@@ -50,7 +73,7 @@ public class AuthComponent {
      * @return True if token is valid. Else, return false
      */
     public boolean isTokenValid(String token) {
-        Jwts.parser().setSigningKey(secret).parseClaimsJws(token);
+        getClaimsFromToken(token);
         return true;
     }
 
@@ -61,11 +84,36 @@ public class AuthComponent {
      * @return username
      */
     public String getUsernameFromToken(String token) {
-        return Jwts.parser()
-                .setSigningKey(secret)
-                .parseClaimsJws(token)
-                .getBody()
-                .getSubject();
+        return getClaimsFromToken(token).getSubject();
+    }
+
+    /**
+     * Get the claims of a token. The token is parsed and verified on its first use only.
+     *
+     * @param token JWT token
+     * @return Claims of the token. An exception is thrown if the token is invalid or expired.
+     */
+    public Claims getClaimsFromToken(String token) {
+        return tokenCache.get(token, jwt -> Jwts.parser()
+                .setSigningKey(signingKey)
+                .parseClaimsJws(jwt)
+                .getBody());
+    }
+
+    /**
+     * Get user details from the claims of a token without DB access.
+     * It requires app.token.stateless-principal=true and a token that carries the user claims.
+     *
+     * @param claims Claims of a verified token
+     * @return User details. Else, return empty if user must be loaded from DB
+     */
+    public Optional<CustomUserDetails> getUserFromClaims(Claims claims) {
+        Object userId = claims.get(CLAIM_USER_ID);
+        if (!statelessPrincipal || !(userId instanceof Number)) {
+            return Optional.empty();
+        }
+        return Optional.of(new CustomUserDetails(((Number) userId).longValue(), claims.getSubject(),
+                claims.get(CLAIM_EMAIL, String.class), null));
     }
 
     /**
@@ -1,31 +1,81 @@
 package com.haward.blog.security;
 
+import com.haward.blog.cluster.ChangeLog;
+import com.haward.blog.comment.CommentStore;
+import com.haward.blog.comment.CommentWriteBehind;
+import com.haward.blog.event.CommentCreatedEvent;
+import com.haward.blog.event.CommentDeletedEvent;
+import com.haward.blog.event.PostCreatedEvent;
+import com.haward.blog.event.PostStatsFlushedEvent;
+import com.haward.blog.event.RemoteChangeEvent;
+import com.haward.blog.feed.ChangeFeed;
+import com.haward.blog.feed.KeysetCursor;
+import com.haward.blog.feed.LatestPostsFeed;
+import com.haward.blog.feed.PostCache;
+import com.haward.blog.id.SnowflakeIdGenerator;
 import com.haward.blog.model.Comment;
 import com.haward.blog.model.Image;
-import com.haward.blog.repository.CommentRepository;
+import com.haward.blog.model.ImageRendition;
+import com.haward.blog.model.PostStats;
 import com.haward.blog.repository.ImageRepository;
 import com.haward.blog.repository.PostRepository;
+import com.haward.blog.repository.PostStatsRepository;
 import com.haward.blog.model.Post;
 import com.haward.blog.security.exception.ContentNotFoundException;
 import com.haward.blog.security.exception.ImageNotFoundException;
 import com.haward.blog.security.exception.ImageStoreException;
+import com.haward.blog.security.exception.InvalidContentException;
+import com.haward.blog.search.SearchIndex;
 import com.haward.blog.security.userdetails.CustomUserDetails;
+import com.haward.blog.stats.PostCounters;
+import com.haward.blog.storage.BlobStore;
+import com.haward.blog.storage.ImageCache;
+import com.haward.blog.storage.RenditionService;
+import com.haward.blog.storage.StoredBlob;
+import com.haward.blog.storage.UploadSession;
+import com.haward.blog.storage.UploadSessionService;
 import com.haward.blog.view.request.CommentItem;
 import com.haward.blog.view.request.PostItem;
+import com.haward.blog.view.response.CursorPage;
+import com.haward.blog.view.response.FeedPage;
+import com.haward.blog.view.response.ImageItem;
+import com.haward.blog.view.response.PostBundle;
+import com.haward.blog.view.response.PostSummary;
+import com.haward.blog.view.response.SearchPage;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Page;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * ContentService class provides services for user content
@@ -40,11 +90,59 @@ public class ContentService {
     private PostRepository postRepository; // to save and find user's post
 
     @Autowired
-    private CommentRepository commentRepository; // to save and find user's comment
+    private CommentStore commentStore; // to save and find user's comment
 
     @Autowired
     private ImageRepository imageRepository; // to save and find an image
 
+    @Autowired
+    private BlobStore blobStore; // to save binary image
+
+    @Autowired
+    private ImageCache imageCache; // to find hot image metadata without DB access
+
+    @Autowired
+    private UploadSessionService uploadSessionService; // to get images uploaded in chunks
+
+    @Autowired
+    private RenditionService renditionService; // to find downscaled images
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher; // to notify new content
+
+    @PersistenceContext
+    private EntityManager entityManager; // to release streamed entities
+
+    @Autowired
+    private PostStatsRepository postStatsRepository; // to find the stored post counters
+
+    @Autowired
+    private PostCounters postCounters; // to count post views and merge unflushed counts
+
+    @Autowired(required = false)
+    private CommentWriteBehind commentWriteBehind; // to write comments in batches, if enabled
+
+    @Autowired
+    private SnowflakeIdGenerator idGenerator; // to assign ids to queued comments
+
+    @Autowired
+    private LatestPostsFeed latestPostsFeed; // to read the latest posts without DB access
+
+    @Autowired
+    private PostCache postCache; // to read hot posts without DB access
+
+    @Autowired
+    private SearchIndex searchIndex; // to search posts and comments without scanning their contents
+
+    @Autowired
+    private ChangeFeed changeFeed; // to push new posts and comments to subscribed clients
+
+    @Autowired
+    private ChangeLog changeLog; // to tell the other instances about new posts, new and deleted comments
+
+    @Value("${app.feed.window}")
+    private int feedWindow; // number of the latest posts kept in memory
+
     /**
      * Persist user post and its image to database
      *
@@ -54,33 +152,128 @@ public class ContentService {
     @Transactional
     public void createPost(PostItem postItem, MultipartFile imageFile) {
         Image image = toImage(imageFile);
+        savePost(postItem, image);
+    }
+
+    /**
+     * Persist user post with an image that has been uploaded in chunks
+     *
+     * @param postItem New post item to be persisted
+     * @param uploadId Id of the completed upload session of the image
+     */
+    @Transactional
+    public void createPost(PostItem postItem, String uploadId) {
+        CustomUserDetails user = authComponent.getCurrentUser()
+                .orElseThrow(() -> new IllegalArgumentException("Current user not found"));
+        Image image = toImage(uploadSessionService.take(uploadId, user.getUsername()));
+        savePost(postItem, image);
+    }
+
+    /**
+     * Helper method to persist a post and its image.
+     * Listeners (i.e. image renditions) are notified after the post has been committed.
+     *
+     * @param postItem New post item to be persisted
+     * @param image Image of the post
+     */
+    private void savePost(PostItem postItem, Image image) {
         imageRepository.save(image);
         Post post = toPost(postItem, image);
         postRepository.save(post);
+        changeLog.record(ChangeLog.POST_CREATED, post.getId());
+        eventPublisher.publishEvent(new PostCreatedEvent(post, image));
     }
 
     /**
-     * Persist user comment to database
+     * Persist user comment to database.
+     * In write-behind mode, the comment is queued and written in a batch shortly after.
      *
      * @param commentItem New user comment to be persisted
+     * @return The comment item with its id
      */
     @Transactional
-    public void createComment(CommentItem commentItem) {
+    public CommentItem createComment(CommentItem commentItem) {
+        if (commentItem.getPostId() == null || !StringUtils.hasText(commentItem.getContent())) {
+            throw new InvalidContentException("Comment must have a post id and a content");
+        }
         Comment comment = toComment(commentItem);
-        commentRepository.save(comment);
+        if (commentWriteBehind != null) {
+            if (!postRepository.existsById(comment.getPostId())) {
+                throw new ContentNotFoundException("Post (id=" + comment.getPostId() + ") not found");
+            }
+            comment.setId(idGenerator.nextId());
+            commentWriteBehind.submit(comment);
+        } else {
+            commentStore.save(comment);
+            changeLog.record(ChangeLog.COMMENT_CREATED, comment.getId());
+            eventPublisher.publishEvent(new CommentCreatedEvent(comment));
+        }
+        return toCommentItem(comment);
     }
 
     /**
      * Retrieve a specific post
      *
      * @param id Post identification to be queried
-     * @return Post item retrieved from the database
+     * @return Post item retrieved from the post cache, or from the database
      */
-    @Transactional
     public PostItem readPost(Long id) {
-        Post post = postRepository.findById(id)
+        PostItem post = copyOf(postCache.get(id, this::loadPost));
+        postCounters.recordView(id);
+        post.setViewCount(post.getViewCount() + postCounters.getPendingViews(id));
+        post.setCommentCount(post.getCommentCount() + postCounters.getPendingComments(id));
+        return post;
+    }
+
+    /**
+     * Retrieve the summary of a specific post. The content of the post is not loaded.
+     *
+     * @param id Post identification to be queried
+     * @return Post summary retrieved from the database
+     */
+    @Transactional(readOnly = true)
+    public PostSummary readPostSummary(Long id) {
+        PostSummary summary = postRepository.findSummaryById(id)
                 .orElseThrow(() -> new ContentNotFoundException("Post (id=" + id + ") not found"));
-        return toPostItem(post);
+        return withPendingCounters(Collections.singletonList(summary)).get(0);
+    }
+
+    /**
+     * Retrieve posts with their first comments and image metadata.
+     * Posts and images are read with one IN query each. The comments are read with one bounded
+     * keyset query per post in the same transaction, so a post with many comments costs the same as
+     * any other post.
+     *
+     * @param ids Post identifications, duplicates are ignored
+     * @param commentLimit Number of comments per post
+     * @return The found posts in the requested order. Unknown ids are skipped.
+     */
+    @Transactional(readOnly = true)
+    public List<PostBundle> readPostBundles(List<Long> ids, int commentLimit) {
+        Map<Long, PostItem> posts = new HashMap<>();
+        for (PostItem post : toPostItems(postRepository.findAllById(new LinkedHashSet<>(ids)))) {
+            posts.put(post.getId(), post);
+        }
+        Set<Long> imageIds = posts.values().stream().map(PostItem::getImageId).collect(Collectors.toSet());
+        Map<Long, Image> images = new HashMap<>();
+        for (Image image : imageRepository.findAllById(imageIds)) {
+            images.put(image.getId(), image);
+        }
+
+        List<PostBundle> bundles = new ArrayList<>();
+        for (Long id : new LinkedHashSet<>(ids)) {
+            PostItem post = posts.get(id);
+            if (post == null) {
+                continue;
+            }
+            PostBundle bundle = new PostBundle();
+            bundle.setPost(post);
+            bundle.setComments(readCommentPage(id, null, commentLimit));
+            Image image = images.get(post.getImageId());
+            bundle.setImage(image == null ? null : toImageItem(image));
+            bundles.add(bundle);
+        }
+        return bundles;
     }
 
     /**
@@ -89,9 +282,9 @@ public class ContentService {
      * @param id Comment identification to be queried
      * @return Comment item retrieved from the database
      */
-    @Transactional
+    @Transactional(readOnly = true)
     public CommentItem readComment(Long id) {
-        Comment comment = commentRepository.findById(id)
+        Comment comment = commentStore.findById(id)
                 .orElseThrow(() -> new ContentNotFoundException("Comment (id=" + id + ") not found"));
         return toCommentItem(comment);
     }
@@ -102,15 +295,62 @@ public class ContentService {
      * @param postId Post id to retrieve related comments
      * @return A list of comment items
      */
-    @Transactional
+    @Transactional(readOnly = true)
     public List<CommentItem> readCommentsByPostId(Long postId) {
-        List<Comment> commentList = commentRepository.findByPostId(postId);
+        List<Comment> commentList = commentStore.findByPostId(postId);
         List<CommentItem> commentItemList = commentList.stream()
                         .map(comment -> toCommentItem(comment))
                         .collect(Collectors.toList());
         return commentItemList;
     }
 
+    /**
+     * Retrieve a page of the comments of a post, oldest first.
+     * The page is found by seeking on (postId, createdOn, id), so every page costs the same as the first one.
+     *
+     * @param postId Post id of the comments
+     * @param cursor Cursor from a previous page. Else, null for the first comments
+     * @param size Number of requested comments
+     * @return A page of comment items
+     */
+    @Transactional(readOnly = true)
+    public CursorPage<CommentItem> readCommentPage(Long postId, KeysetCursor cursor, int size) {
+        int limit = size + 1; // one more comment tells if there is a next page
+        List<Comment> comments = cursor == null
+                ? commentStore.findFirstByPostId(postId, limit)
+                : commentStore.findNextByPostId(postId, cursor.getCreatedOn(), cursor.getId(), limit);
+        List<CommentItem> items = comments.stream()
+                .limit(size)
+                .map(comment -> toCommentItem(comment))
+                .collect(Collectors.toList());
+
+        CursorPage<CommentItem> page = new CursorPage<>();
+        page.setItems(items);
+        if (comments.size() > size) {
+            CommentItem last = items.get(items.size() - 1);
+            page.setNextCursor(new KeysetCursor(last.getCreatedOn(), last.getId()).encode());
+        }
+        return page;
+    }
+
+    /**
+     * Read all the comments of a post one by one, oldest first.
+     * Comments are fetched from a DB cursor in batches and released after use,
+     * so the number of comments does not change the memory needed.
+     *
+     * @param postId Post id of the comments
+     * @param consumer Consumer of the comment items
+     */
+    @Transactional(readOnly = true)
+    public void readCommentsByPostId(Long postId, Consumer<CommentItem> consumer) {
+        try (Stream<Comment> comments = commentStore.streamByPostId(postId)) {
+            comments.forEach(comment -> {
+                consumer.accept(toCommentItem(comment));
+                entityManager.detach(comment); // persistence context must not keep every comment
+            });
+        }
+    }
+
     /**
      * Delete a specific comment
      *
@@ -118,9 +358,11 @@ public class ContentService {
      */
     @Transactional
     public void deleteComment(Long id) {
-        Comment comment = commentRepository.findById(id)
+        Comment comment = commentStore.findById(id)
                 .orElseThrow(() -> new ContentNotFoundException("Comment (id=" + id + ") not found"));
-        commentRepository.delete(comment);
+        commentStore.delete(comment);
+        changeLog.record(ChangeLog.COMMENT_DELETED, comment.getId());
+        eventPublisher.publishEvent(new CommentDeletedEvent(comment));
     }
 
     /**
@@ -131,28 +373,320 @@ public class ContentService {
      * @param size Number of requested posts
      * @return A list of the latest posts
      */
-    @Transactional
+    @Transactional(readOnly = true)
     public List<PostItem> readPage(int pageNumber, int size) {
-        // Get a number of posts sorted by their creation dates
-        Pageable pageable = PageRequest.of(pageNumber, size, Sort.Direction.ASC, "createdOn");
-        Page<Post> page = postRepository.findAll(pageable);
-        List<Post> topPosts = page.getContent();
-        List<PostItem> postItemList = topPosts.stream()
-                .map(post -> toPostItem(post))
-                .collect((Collectors.toList()));
-        return postItemList;
+        List<PostItem> latest = latestPostsFeed.readPage(pageNumber, size);
+        if (latest != null) {
+            return latest;
+        }
+        // Get a number of posts sorted by their creation dates, latest first (no count query)
+        List<Post> topPosts = postRepository.findLatest(PageRequest.of(pageNumber, size));
+        return toPostItems(topPosts);
     }
 
     /**
-     * Get image given its identification
+     * Get a list of the summaries of the latest posts (see readPage). The content of the posts is not loaded.
      *
-     * @param id Image unique identification
-     * @return Image
+     * @param pageNumber Page number
+     * @param size Number of requested posts
+     * @return A list of the summaries of the latest posts
+     */
+    @Transactional(readOnly = true)
+    public List<PostSummary> readPageSummaries(int pageNumber, int size) {
+        List<PostItem> latest = latestPostsFeed.readPage(pageNumber, size);
+        if (latest != null) {
+            return toPostSummaries(latest);
+        }
+        return withPendingCounters(postRepository.findLatestSummaries(PageRequest.of(pageNumber, size)));
+    }
+
+    /**
+     * Get the JSON of a page of the latest posts (see readPage).
+     * Pages within the in-memory window are serialized once and reused until a new post is created.
+     *
+     * @param pageNumber Page number
+     * @param size Number of requested posts
+     * @param summary True to get the summaries of the posts. Else, get the whole posts
+     * @return JSON array of the latest posts
+     */
+    public byte[] readPageJson(int pageNumber, int size, boolean summary) {
+        byte[] json = summary
+                ? latestPostsFeed.readPageJson("summary", pageNumber, size, this::toPostSummaries)
+                : latestPostsFeed.readPageJson("post", pageNumber, size, items -> items);
+        if (json != null) {
+            return json;
+        }
+        return latestPostsFeed.toJson(summary ? readPageSummaries(pageNumber, size) : readPage(pageNumber, size));
+    }
+
+    /**
+     * Get a page of the feed (latest posts first) next to a cursor.
+     * The page is found by seeking on (createdOn, id), so every page costs the same as the first one.
+     *
+     * @param cursor Cursor from a previous page. Else, null for the latest posts
+     * @param newer True to get the posts newer than the cursor. Else, get the older posts
+     * @param size Number of requested posts
+     * @return A page of posts, latest first
      */
+    @Transactional(readOnly = true)
+    public FeedPage<PostItem> readFeed(KeysetCursor cursor, boolean newer, int size) {
+        int limit = size + 1; // one more post tells if there is a next page
+        List<PostItem> posts = readLatestPosts(cursor, newer, limit);
+        if (posts == null) {
+            Pageable pageable = PageRequest.of(0, limit);
+            List<Post> found;
+            if (cursor == null) {
+                found = postRepository.findLatest(pageable);
+            } else if (newer) {
+                found = postRepository.findNewerThan(cursor.getCreatedOn(), cursor.getId(), pageable);
+            } else {
+                found = postRepository.findOlderThan(cursor.getCreatedOn(), cursor.getId(), pageable);
+            }
+            posts = toPostItems(found);
+        }
+        return toFeedPage(posts, cursor, newer, size,
+                item -> new KeysetCursor(item.getCreatedOn(), item.getId()));
+    }
+
+    /**
+     * Get a page of the feed with the summaries of the posts (see readFeed). The content of the posts is not loaded.
+     *
+     * @param cursor Cursor from a previous page. Else, null for the latest posts
+     * @param newer True to get the posts newer than the cursor. Else, get the older posts
+     * @param size Number of requested posts
+     * @return A page of post summaries, latest first
+     */
+    @Transactional(readOnly = true)
+    public FeedPage<PostSummary> readFeedSummaries(KeysetCursor cursor, boolean newer, int size) {
+        int limit = size + 1; // one more post tells if there is a next page
+        List<PostItem> latest = readLatestPosts(cursor, newer, limit);
+        List<PostSummary> posts;
+        if (latest != null) {
+            posts = toPostSummaries(latest);
+        } else {
+            Pageable pageable = PageRequest.of(0, limit);
+            if (cursor == null) {
+                posts = postRepository.findLatestSummaries(pageable);
+            } else if (newer) {
+                posts = postRepository.findNewerSummaries(cursor.getCreatedOn(), cursor.getId(), pageable);
+            } else {
+                posts = postRepository.findOlderSummaries(cursor.getCreatedOn(), cursor.getId(), pageable);
+            }
+            posts = withPendingCounters(posts);
+        }
+        return toFeedPage(posts, cursor, newer, size,
+                summary -> new KeysetCursor(summary.getCreatedOn(), summary.getId()));
+    }
+
+    /**
+     * Search the posts and the comments with the full-text index, without DB access
+     *
+     * @param query Words to be found in the titles and contents
+     * @param pageNumber Page number
+     * @param size Number of hits per page
+     * @return A page of the matching posts and comments, most relevant first
+     */
+    public SearchPage search(String query, int pageNumber, int size) {
+        return searchIndex.search(query, pageNumber, size);
+    }
+
+    /**
+     * Get the creation time of a post, to validate a cached copy. The post is read through the post cache.
+     *
+     * @param id Post identification
+     * @return Creation time of the post
+     */
+    public Instant getPostCreatedOn(Long id) {
+        // the post is loaded into the post cache, so the request reading it next needs no DB access
+        return postCache.get(id, this::loadPost).getCreatedOn();
+    }
+
+    /**
+     * Get the creation time of a comment, to validate a cached copy without loading the comment
+     *
+     * @param id Comment identification
+     * @return Creation time of the comment
+     */
+    @Transactional(readOnly = true)
+    public Instant getCommentCreatedOn(Long id) {
+        return commentStore.findCreatedOnById(id)
+                .orElseThrow(() -> new ContentNotFoundException("Comment (id=" + id + ") not found"));
+    }
+
+    /**
+     * Get a watermark of the posts. Posts are never modified nor deleted, so the watermark changes
+     * only when a post is created: it is the watermark of the in-memory window (refreshed from DB with
+     * the posts of the other instances), or the latest post id before the window is loaded.
+     *
+     * @return Watermark of the posts
+     */
+    @Transactional(readOnly = true)
+    public long getPostsWatermark() {
+        if (latestPostsFeed.isLoaded()) {
+            return latestPostsFeed.getWatermark();
+        }
+        Long maxId = postRepository.findMaxId();
+        return maxId == null ? 0 : maxId;
+    }
+
+    /**
+     * Get a version of the post counters. It changes when counters have been written to DB.
+     *
+     * @return Version of the post counters
+     */
+    public long getCountersVersion() {
+        return postCounters.getVersion();
+    }
+
+    /**
+     * Add a new post to the in-memory feed and push it to the event subscribers, after the post has been committed
+     *
+     * @param event Post created event
+     */
+    @TransactionalEventListener
+    public void onPostCreated(PostCreatedEvent event) {
+        PostItem item = toPostItem(event.getPost());
+        latestPostsFeed.add(item);
+        changeFeed.publishPost(toPostSummaries(Collections.singletonList(item)).get(0));
+    }
+
+    /**
+     * Push a new comment to the subscribers of its post, after the comment has been committed
+     * (comments written behind are committed before the event is published)
+     *
+     * @param event Comment created event
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommentCreated(CommentCreatedEvent event) {
+        Comment comment = event.getComment();
+        changeFeed.publishComment(comment.getPostId(), toCommentItem(comment));
+    }
+
+    /**
+     * Add a post created by another instance to the in-memory feed, and push the posts and comments created
+     * by other instances to the event subscribers of this instance (see ChangeLog).
+     * They are read from the primary, as the replicas may not have them yet.
+     *
+     * @param event Remote change event
+     */
+    @EventListener
+    @Transactional
+    public void onRemoteChange(RemoteChangeEvent event) {
+        switch (event.getType()) {
+            case ChangeLog.POST_CREATED:
+                postRepository.findById(event.getEntityId()).ifPresent(post -> {
+                    PostItem item = toPostItem(post);
+                    latestPostsFeed.add(item);
+                    changeFeed.publishPost(toPostSummaries(Collections.singletonList(item)).get(0));
+                });
+                break;
+            case ChangeLog.COMMENT_CREATED:
+                commentStore.findById(event.getEntityId()).ifPresent(comment ->
+                        changeFeed.publishComment(comment.getPostId(), toCommentItem(comment)));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Subscribe to the new posts and to the new comments of some posts, as Server-Sent Events
+     *
+     * @param postIds Post ids of the comments to be pushed, may be empty
+     * @param lastEventId Id of the last event received before reconnecting. Else, null
+     * @return Emitter of the events
+     */
+    public SseEmitter subscribe(Set<Long> postIds, Long lastEventId) {
+        return changeFeed.subscribe(postIds, lastEventId);
+    }
+
+    /**
+     * Refresh the counters of the posts in the in-memory feed and in the post cache after they have been
+     * written to DB. The memoized JSON pages of the feed are dropped with the old posts.
+     *
+     * @param event Post stats flushed event
+     */
+    @EventListener
+    public void onPostStatsFlushed(PostStatsFlushedEvent event) {
+        Set<Long> ids = latestPostsFeed.getPostIds();
+        ids.addAll(postCache.getPostIds());
+        ids.retainAll(event.getPostIds());
+        if (ids.isEmpty()) {
+            return;
+        }
+        Map<Long, PostStats> stats = new HashMap<>();
+        for (PostStats postStats : postStatsRepository.findAllById(ids)) {
+            stats.put(postStats.getPostId(), postStats);
+        }
+        UnaryOperator<PostItem> withStoredCounters = item -> {
+            PostStats postStats = stats.get(item.getId());
+            if (postStats == null) {
+                return item;
+            }
+            PostItem updated = copyOf(item);
+            updated.setViewCount(postStats.getViewCount());
+            updated.setCommentCount(postStats.getCommentCount());
+            return updated;
+        };
+        latestPostsFeed.update(withStoredCounters);
+        postCache.update(withStoredCounters);
+    }
+
+    /**
+     * Load the latest posts into the in-memory feed at startup
+     */
+    @EventListener(ApplicationReadyEvent.class)
     @Transactional
+    public void loadLatestPosts() {
+        reloadLatestPosts();
+    }
+
+    /**
+     * Reload the in-memory feed when DB has posts that are not in the window, i.e. posts committed by
+     * another backend instance. Only the ids of the latest posts are read when the window is up to date.
+     */
+    @Scheduled(fixedDelayString = "${app.feed.refresh-interval}")
+    @Transactional(readOnly = true)
+    public void refreshLatestPosts() {
+        if (!latestPostsFeed.isLoaded()) {
+            return; // loaded at startup
+        }
+        List<Long> ids = postRepository.findLatestIds(PageRequest.of(0, feedWindow));
+        if (!ids.equals(latestPostsFeed.getLatestIds())) {
+            reloadLatestPosts();
+        }
+    }
+
+    /**
+     * Get image given its identification.
+     * Image metadata never changes, so it is served from cache after the first request.
+     *
+     * @param id Image unique identification
+     * @return Image metadata
+     */
     public Image getImage(Long id) {
-        return imageRepository.findById(id)
-                .orElseThrow(() -> new ImageNotFoundException("Image id " + id + " not found in repository"));
+        Image image = imageCache.getMetadata(id, imageId -> imageRepository.findById(imageId)
+                .orElseThrow(() -> new ImageNotFoundException("Image id " + imageId + " not found in repository")));
+        if (image.getStorageKey() == null) {
+            throw new ImageNotFoundException("Image id " + id + " has no stored content");
+        }
+        return image;
+    }
+
+    /**
+     * Get the rendition of an image to serve for a requested width.
+     * If the image has no rendition yet, they are generated in the background.
+     *
+     * @param image Original image
+     * @param width Requested width in pixels
+     * @return The best rendition. Else, return empty to serve the original image
+     */
+    public Optional<ImageRendition> getImageRendition(Image image, int width) {
+        Optional<ImageRendition> rendition = renditionService.findRendition(image.getId(), width);
+        if (!rendition.isPresent()) {
+            renditionService.generateOnDemand(image);
+        }
+        return rendition;
     }
 
     /**
@@ -172,6 +706,182 @@ public class ContentService {
         return postItem;
     }
 
+    /**
+     * Helper method to load a post with its stored counters (without the unflushed counts) for the post cache
+     *
+     * @param id Post identification
+     * @return Post item
+     */
+    private PostItem loadPost(Long id) {
+        PostItem item = toPostItem(postRepository.findById(id)
+                .orElseThrow(() -> new ContentNotFoundException("Post (id=" + id + ") not found")));
+        postStatsRepository.findById(id).ifPresent(postStats -> {
+            item.setViewCount(postStats.getViewCount());
+            item.setCommentCount(postStats.getCommentCount());
+        });
+        return item;
+    }
+
+    /**
+     * Helper method to convert from Post models to PostItems with their counters.
+     * The stored counters are read with one IN query, then the unflushed counts are added.
+     *
+     * @param posts Post models
+     * @return Post items
+     */
+    private List<PostItem> toPostItems(List<Post> posts) {
+        List<PostItem> items = posts.stream().map(post -> toPostItem(post)).collect(Collectors.toList());
+        if (items.isEmpty()) {
+            return items;
+        }
+        Map<Long, PostStats> stats = new HashMap<>();
+        for (PostStats postStats : postStatsRepository.findAllById(
+                items.stream().map(PostItem::getId).collect(Collectors.toList()))) {
+            stats.put(postStats.getPostId(), postStats);
+        }
+        for (PostItem item : items) {
+            PostStats postStats = stats.get(item.getId());
+            long views = postStats == null ? 0 : postStats.getViewCount();
+            long comments = postStats == null ? 0 : postStats.getCommentCount();
+            item.setViewCount(views + postCounters.getPendingViews(item.getId()));
+            item.setCommentCount(comments + postCounters.getPendingComments(item.getId()));
+        }
+        return items;
+    }
+
+    /**
+     * Helper method to add the unflushed counts to post summaries (stored counters are read with the summaries)
+     *
+     * @param summaries Post summaries
+     * @return Same post summaries
+     */
+    private List<PostSummary> withPendingCounters(List<PostSummary> summaries) {
+        for (PostSummary summary : summaries) {
+            summary.setViewCount(summary.getViewCount() + postCounters.getPendingViews(summary.getId()));
+            summary.setCommentCount(summary.getCommentCount() + postCounters.getPendingComments(summary.getId()));
+        }
+        return summaries;
+    }
+
+    /**
+     * Helper method to copy a post item
+     *
+     * @param item Post item
+     * @return A new post item with the same values
+     */
+    private PostItem copyOf(PostItem item) {
+        PostItem copy = new PostItem();
+        copy.setId(item.getId());
+        copy.setTitle(item.getTitle());
+        copy.setContent(item.getContent());
+        copy.setUsername(item.getUsername());
+        copy.setCreatedOn(item.getCreatedOn());
+        copy.setImageId(item.getImageId());
+        copy.setViewCount(item.getViewCount());
+        copy.setCommentCount(item.getCommentCount());
+        return copy;
+    }
+
+    /**
+     * Helper method to load the latest posts from DB into the in-memory feed
+     */
+    private void reloadLatestPosts() {
+        List<PostItem> latest = toPostItems(postRepository.findLatest(PageRequest.of(0, feedWindow + 1)));
+        boolean complete = latest.size() <= feedWindow;
+        latestPostsFeed.load(complete ? latest : latest.subList(0, feedWindow), complete);
+    }
+
+    /**
+     * Helper method to convert from PostItem to PostSummary
+     *
+     * @param items Post items
+     * @return Post summaries
+     */
+    private List<PostSummary> toPostSummaries(List<PostItem> items) {
+        return items.stream()
+                .map(item -> new PostSummary(item.getId(), item.getTitle(), toExcerpt(item.getContent()),
+                        item.getUsername(), item.getCreatedOn(), item.getImageId(),
+                        item.getViewCount(), item.getCommentCount()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Helper method to cut the excerpt of a post from its content
+     *
+     * @param content Post content
+     * @return Beginning of the content (Post.EXCERPT_LENGTH characters at max)
+     */
+    private String toExcerpt(String content) {
+        if (content == null || content.length() <= Post.EXCERPT_LENGTH) {
+            return content;
+        }
+        int end = Post.EXCERPT_LENGTH;
+        if (Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--; // do not split a character
+        }
+        return content.substring(0, end);
+    }
+
+    /**
+     * Helper method to read the posts next to a cursor from the in-memory feed
+     *
+     * @param cursor Cursor from a previous page. Else, null for the latest posts
+     * @param newer True to get the posts newer than the cursor. Else, get the older posts
+     * @param limit Max number of posts
+     * @return The posts in the same order as the keyset queries. Else, return null if they are not in memory
+     */
+    private List<PostItem> readLatestPosts(KeysetCursor cursor, boolean newer, int limit) {
+        return cursor == null ? latestPostsFeed.readPage(0, limit) : latestPostsFeed.read(cursor, newer, limit);
+    }
+
+    /**
+     * Helper method to build a page of the feed from the posts next to a cursor
+     *
+     * @param posts Posts next to the cursor (one more than the page size if there is a next page),
+     *              in the same order as the keyset queries
+     * @param cursor Cursor of the request. Else, null for the latest posts
+     * @param newer True if the posts are newer than the cursor
+     * @param size Number of requested posts
+     * @param position Position of a post in the feed
+     * @return A page of posts, latest first
+     */
+    private <T> FeedPage<T> toFeedPage(List<T> posts, KeysetCursor cursor, boolean newer, int size,
+                                       Function<T, KeysetCursor> position) {
+        boolean hasMore = posts.size() > size;
+        List<T> items = new ArrayList<>(posts.subList(0, Math.min(size, posts.size())));
+        if (cursor != null && newer) {
+            Collections.reverse(items); // newer posts are sought in ascending order
+        }
+
+        FeedPage<T> page = new FeedPage<>();
+        page.setItems(items);
+        if (!items.isEmpty()) {
+            page.setNewerCursor(position.apply(items.get(0)).encode());
+            // an older page always exists after a newer page
+            if (hasMore || (cursor != null && newer)) {
+                page.setOlderCursor(position.apply(items.get(items.size() - 1)).encode());
+            }
+        } else if (cursor != null && newer) {
+            page.setNewerCursor(cursor.encode()); // nothing new yet, poll again with the same cursor
+        }
+        return page;
+    }
+
+    /**
+     * Helper method to convert from Image model to ImageItem
+     *
+     * @param image Image model
+     * @return Image item
+     */
+    private ImageItem toImageItem(Image image) {
+        ImageItem imageItem = new ImageItem();
+        imageItem.setId(image.getId());
+        imageItem.setFileName(image.getFileName());
+        imageItem.setFileType(image.getFileType());
+        imageItem.setFileSize(image.getFileSize());
+        return imageItem;
+    }
+
     /**
      * Helper method to convert from Comment model to CommentItem
      *
@@ -203,13 +913,37 @@ public class ContentService {
             }
             image.setFileName(normalizedFileName);
             image.setFileType(imageFile.getContentType());
-            image.setFileContent(imageFile.getBytes());
+            StoredBlob blob;
+            // stream the uploaded part into blob store, it is never loaded in the heap
+            try (InputStream content = imageFile.getInputStream()) {
+                blob = blobStore.put(content);
+            }
+            image.setFileSize(blob.getSize());
+            image.setFileHash(blob.getHash());
+            image.setStorageKey(blob.getKey());
         } catch (IOException e) {
             throw new ImageStoreException("Failed to store image file " + normalizedFileName, e);
         }
         return image;
     }
 
+    /**
+     * Helper method to convert from a completed upload session to Image model
+     *
+     * @param upload Completed upload session
+     * @return Image model
+     */
+    private Image toImage(UploadSession upload) {
+        Image image = new Image();
+        StoredBlob blob = upload.getBlob();
+        image.setFileName(upload.getFileName());
+        image.setFileType(upload.getFileType());
+        image.setFileSize(blob.getSize());
+        image.setFileHash(blob.getHash());
+        image.setStorageKey(blob.getKey());
+        return image;
+    }
+
     /**
      * Helper method to convert from PostItem to Post model
      *
@@ -221,8 +955,10 @@ public class ContentService {
         Post post = new Post();
         post.setTitle(postItem.getTitle());
         post.setContent(postItem.getContent());
+        post.setExcerpt(toExcerpt(postItem.getContent()));
         post.setImageId(imageFile.getId());
-        post.setCreatedOn(Instant.now());
+        // same precision as DB, so an in-memory post and its persisted copy sort the same
+        post.setCreatedOn(Instant.now().truncatedTo(ChronoUnit.MILLIS));
         // Get current active user
         CustomUserDetails user = authComponent.getCurrentUser()
                 .orElseThrow(() -> new IllegalArgumentException("Current user not found"));
@@ -240,7 +976,7 @@ public class ContentService {
     private Comment toComment(CommentItem commentItem) {
         Comment comment = new Comment();
         comment.setContent(commentItem.getContent());
-        comment.setCreatedOn(Instant.now());
+        comment.setCreatedOn(Instant.now().truncatedTo(ChronoUnit.MILLIS)); // same precision as DB
         comment.setPostId(commentItem.getPostId());
         // Get current active user
         CustomUserDetails user = authComponent.getCurrentUser()
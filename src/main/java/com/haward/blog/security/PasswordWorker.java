@@ -0,0 +1,65 @@
+package com.haward.blog.security;
+
+import com.haward.blog.security.exception.ServiceBusyException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * PasswordWorker runs the work that hashes or verifies a password (i.e. a signin) on the password executor,
+ * so the request thread is released while BCrypt runs.
+ *
+ * The time spent waiting in the queue is reported as blog.password.queue.wait and the number of
+ * waiting tasks as blog.password.queue.size. The hashing time is reported by TimedPasswordEncoder.
+ */
+@Component
+public class PasswordWorker {
+
+    @Autowired
+    @Qualifier("passwordExecutor")
+    private ThreadPoolTaskExecutor passwordExecutor; // to run BCrypt off the request threads
+
+    @Autowired
+    private MeterRegistry meterRegistry; // to report queue metrics
+
+    private Timer queueWait;
+
+    @PostConstruct
+    public void init() {
+        queueWait = Timer.builder("blog.password.queue.wait")
+                .description("Time a signin or a signup waits for a password thread")
+                .register(meterRegistry);
+        Gauge.builder("blog.password.queue.size", passwordExecutor,
+                executor -> executor.getThreadPoolExecutor().getQueue().size()).register(meterRegistry);
+    }
+
+    /**
+     * Run a task on the password executor
+     *
+     * @param task Task hashing or verifying a password
+     * @param <T> Result type
+     * @return Future result of the task
+     * @throws ServiceBusyException if too many tasks are waiting
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        long queuedAt = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                queueWait.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+                return task.get();
+            }, passwordExecutor);
+        } catch (TaskRejectedException e) {
+            throw new ServiceBusyException("Too many signins and signups in progress. Retry later.", e);
+        }
+    }
+}
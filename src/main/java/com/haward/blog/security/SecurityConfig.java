@@ -2,8 +2,10 @@ package com.haward.blog.security;
 
 import com.haward.blog.security.handlers.FilterHandler;
 import com.haward.blog.security.handlers.UnauthorizedHandler;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
@@ -31,6 +33,12 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     private UnauthorizedHandler unauthorizedHandler; // handler for unauthorized user
 
+    @Autowired
+    private MeterRegistry meterRegistry; // to report password hashing time
+
+    @Value("${app.password.bcrypt-strength}")
+    private int bcryptStrength; // BCrypt cost factor, stored passwords hashed with a lower one are rehashed
+
     @Bean
     public FilterHandler tokenFilter() {
         return new FilterHandler();
@@ -38,7 +46,7 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
 
     @Bean
     public PasswordEncoder passwordEncoder() {
-        return new BCryptPasswordEncoder();
+        return new TimedPasswordEncoder(new BCryptPasswordEncoder(bcryptStrength), meterRegistry);
     }
 
     @Override
@@ -71,7 +79,11 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 .antMatchers("/signup").permitAll()
                 .antMatchers("/auth/**").permitAll()
                 .antMatchers("/content/post/**").permitAll()
+                .antMatchers("/content/posts/**").permitAll()
                 .antMatchers("/content/page/**").permitAll()
+                .antMatchers("/content/feed/**").permitAll()
+                .antMatchers("/content/search/**").permitAll()
+                .antMatchers("/content/events/**").permitAll()
                 .antMatchers("/content/image/**").permitAll()
                 .antMatchers("/content/comments/**").permitAll()
                 .antMatchers("/content/comment/**").permitAll()
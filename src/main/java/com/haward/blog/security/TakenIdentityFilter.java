@@ -0,0 +1,106 @@
+package com.haward.blog.security;
+
+import com.haward.blog.repository.UserIdentity;
+import com.haward.blog.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * TakenIdentityFilter keeps the taken usernames and emails in Bloom filters, so a signup with a free
+ * username and email (the usual case) is checked without DB access. Only a possibly taken one is looked
+ * up in DB. Names are compared in lower case, like the unique indexes of table 'user' in MySQL.
+ *
+ * The filters are loaded from DB at startup and updated after each signup. A user created by another
+ * instance is missed until the next restart, so the unique constraints of table 'user' stay the final check.
+ */
+@Component
+public class TakenIdentityFilter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TakenIdentityFilter.class);
+
+    private static final int LOAD_BATCH_SIZE = 1000; // users read from DB at once
+
+    @Autowired
+    private UserRepository userRepository; // to load the taken usernames and emails
+
+    @Value("${app.signup.expected-users}")
+    private long expectedUsers; // number of users the filters are sized for
+
+    @Value("${app.signup.false-positive-rate}")
+    private double falsePositiveRate; // rate of free names that still need a DB lookup
+
+    private BloomFilter usernames;
+
+    private BloomFilter emails;
+
+    private volatile boolean loaded; // until loaded, every name may be taken
+
+    @PostConstruct
+    public void init() {
+        usernames = new BloomFilter(expectedUsers, falsePositiveRate);
+        emails = new BloomFilter(expectedUsers, falsePositiveRate);
+    }
+
+    /**
+     * Load the usernames and emails of the existing users at startup
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        long after = 0;
+        List<UserIdentity> users;
+        do {
+            users = userRepository.findIdentitiesAfterId(after, PageRequest.of(0, LOAD_BATCH_SIZE));
+            for (UserIdentity user : users) {
+                add(user.getUsername(), user.getEmail());
+                after = user.getId();
+            }
+            count += users.size();
+        } while (users.size() == LOAD_BATCH_SIZE);
+        loaded = true;
+        LOGGER.info("Loaded {} taken username(s) and email(s) in {} ms", count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Record the username and the email of a new user
+     *
+     * @param username Username
+     * @param email Email
+     */
+    public void add(String username, String email) {
+        if (username != null) {
+            usernames.put(normalize(username));
+        }
+        if (email != null) {
+            emails.put(normalize(email));
+        }
+    }
+
+    /**
+     * Check if a username or an email may be taken
+     *
+     * @param username Username
+     * @param email Email
+     * @return False if both are free for sure. Else, return true (DB has to be checked).
+     */
+    public boolean mightBeTaken(String username, String email) {
+        return !loaded
+                || (username != null && usernames.mightContain(normalize(username)))
+                || (email != null && emails.mightContain(normalize(email)));
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,128 @@
+package com.haward.blog.security;
+
+import io.jsonwebtoken.Claims;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * TokenCache remembers the claims of the JWT tokens that have been verified,
+ * so a token is parsed and its signature is checked once, not on every request.
+ *
+ * Entries are keyed by a digest of the token (the token itself is not kept), and an entry
+ * is dropped when its token expires. Concurrent requests with the same unverified token
+ * share one verification (single flight). Failed verifications are not cached.
+ */
+@Component
+public class TokenCache {
+
+    @Value("${app.token.cache.max-size}")
+    private int maxSize; // value is defined in application.properties file
+
+    private final Map<String, CompletableFuture<Claims>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Get the claims of a verified token, or verify it on a miss
+     *
+     * @param token JWT token
+     * @param verifier Parses and verifies a token. It throws an exception for an invalid token.
+     * @return Claims of the token
+     */
+    public Claims get(String token, Function<String, Claims> verifier) {
+        String key = digest(token);
+        CompletableFuture<Claims> entry = entries.get(key);
+        if (entry == null) {
+            CompletableFuture<Claims> created = new CompletableFuture<>();
+            entry = entries.putIfAbsent(key, created);
+            if (entry == null) {
+                // this thread verifies the token, concurrent requests wait for the result
+                entry = created;
+                try {
+                    created.complete(verifier.apply(token));
+                } catch (RuntimeException e) {
+                    entries.remove(key, created);
+                    created.completeExceptionally(e);
+                    throw e;
+                }
+                if (entries.size() > maxSize) {
+                    evict();
+                }
+            }
+        }
+        Claims claims = await(entry);
+        if (isExpired(claims)) {
+            entries.remove(key, entry);
+            return verifier.apply(token); // throws for the expired token
+        }
+        return claims;
+    }
+
+    /**
+     * Remove the entries of the expired tokens
+     */
+    @Scheduled(fixedDelayString = "${app.token.cache.sweep-interval}")
+    public void removeExpired() {
+        Iterator<CompletableFuture<Claims>> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CompletableFuture<Claims> entry = iterator.next();
+            if (entry.isDone() && !entry.isCompletedExceptionally() && isExpired(entry.join())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Helper method to bound the cache. Expired entries go first, then arbitrary entries.
+     */
+    private void evict() {
+        removeExpired();
+        Iterator<CompletableFuture<Claims>> iterator = entries.values().iterator();
+        int excess = entries.size() - maxSize * 9 / 10; // leave some headroom to avoid evicting on every miss
+        while (excess-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private Claims await(CompletableFuture<Claims> entry) {
+        try {
+            return entry.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause; // same exception as the verifying thread
+            }
+            throw new CompletionException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying token", e);
+        }
+    }
+
+    private boolean isExpired(Claims claims) {
+        Date expiration = claims.getExpiration();
+        return expiration != null && expiration.getTime() <= System.currentTimeMillis();
+    }
+
+    private String digest(String token) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.haward.blog.security.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception class for invalid user content (i.e. an empty comment)
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidContentException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidContentException(String message) {
+        super(message);
+    }
+
+    public InvalidContentException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,21 @@
+package com.haward.blog.security.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception class for invalid upload requests (i.e. bad offset, incomplete upload)
+ */
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class InvalidUploadException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public InvalidUploadException(String message) {
+        super(message);
+    }
+
+    public InvalidUploadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -2,6 +2,7 @@ package com.haward.blog.security.handlers;
 
 import com.haward.blog.security.AuthComponent;
 import com.haward.blog.security.userdetails.CustomUserDetailsImpl;
+import io.jsonwebtoken.Claims;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -46,13 +47,16 @@ public class FilterHandler extends OncePerRequestFilter {
                                     FilterChain filterChain)
             throws ServletException, IOException {
 
-        // Get and validate the token
+        // Get and validate the token (verified once, then served from token cache)
         String jwtToken = getJwtToken(request);
-        if (jwtToken != null && authComponent.isTokenValid(jwtToken)) {
-            String username = authComponent.getUsernameFromToken(jwtToken);
+        if (jwtToken != null) {
+            Claims claims = authComponent.getClaimsFromToken(jwtToken);
+            String username = claims.getSubject();
             if (username != null) {
-                // Get user details
-                UserDetails userDetails = customUserDetails.loadUserByUsername(username);
+                // Get user details from the token claims, or from DB for a token without user claims
+                UserDetails userDetails = authComponent.getUserFromClaims(claims)
+                        .map(user -> (UserDetails) user)
+                        .orElseGet(() -> customUserDetails.loadUserByUsername(username));
                 UsernamePasswordAuthenticationToken authenticationToken =
                         new UsernamePasswordAuthenticationToken(userDetails,
                                 null, userDetails.getAuthorities());
@@ -19,6 +19,8 @@ public class CustomUserDetails implements UserDetails {
     private Long id;
     private String username;
     private String email;
+    private String firstname;
+    private String lastname;
 
     @JsonIgnore
     private String password;
@@ -37,14 +39,21 @@ public class CustomUserDetails implements UserDetails {
      * @return Instance of user details
      */
     public static CustomUserDetails build(User user) {
-        return new CustomUserDetails(user.getId(), user.getUsername(), user.getEmail(),
+        CustomUserDetails userDetails = new CustomUserDetails(user.getId(), user.getUsername(), user.getEmail(),
                 user.getPassword());
+        userDetails.firstname = user.getFirstname();
+        userDetails.lastname = user.getLastname();
+        return userDetails;
     }
 
     public Long getId() { return id; }
 
     public String getEmail() { return email; }
 
+    public String getFirstname() { return firstname; }
+
+    public String getLastname() { return lastname; }
+
     /*
      This method is not required for the blog
      */
@@ -2,23 +2,29 @@ package com.haward.blog.security.userdetails;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsPasswordService;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.haward.blog.cluster.ChangeLog;
 import com.haward.blog.model.User;
 import com.haward.blog.repository.UserRepository;
 
 /**
- * Custer user details implementation for user service
+ * Custer user details implementation for user service.
+ * It also stores the passwords rehashed at signin when the BCrypt cost factor has been raised.
  */
 @Service
-public class CustomUserDetailsImpl implements UserDetailsService {
+public class CustomUserDetailsImpl implements UserDetailsService, UserDetailsPasswordService {
 
     @Autowired
     UserRepository userRepository; // bridge to query table 'user' in DB
 
+    @Autowired
+    ChangeLog changeLog; // to tell the other instances about a new password
+
     /**
      * Get user details given its username
      *
@@ -41,4 +47,22 @@ public class CustomUserDetailsImpl implements UserDetailsService {
         // Create instance of user details given the user info returns from DB
         return CustomUserDetails.build(user);
     }
+
+    /**
+     * Store the password of a user hashed again with the current encoder, after a successful signin
+     *
+     * @param userDetails Authenticated user details
+     * @param newPassword New encoded password
+     * @return User details with the new password
+     */
+    @Override
+    @Transactional
+    public UserDetails updatePassword(UserDetails userDetails, String newPassword) {
+        User user = userRepository.findByUsername(userDetails.getUsername()).orElseThrow(
+                () -> new UsernameNotFoundException("Username not found: " + userDetails.getUsername()));
+        user.setPassword(newPassword);
+        userRepository.save(user);
+        changeLog.record(ChangeLog.USER_SAVED, user.getId()); // other instances drop their cached copy
+        return CustomUserDetails.build(user);
+    }
 }
@@ -0,0 +1,290 @@
+package com.haward.blog.stats;
+
+import com.haward.blog.event.CommentCreatedEvent;
+import com.haward.blog.event.CommentDeletedEvent;
+import com.haward.blog.event.PostStatsFlushedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * PostCounters counts the views and the comments of the posts.
+ *
+ * A view or a comment only increments an in-memory counter (LongAdder, striped per CPU under contention),
+ * so reading a post never writes to DB. The counted deltas are added to table 'post_stats' in one JDBC
+ * batch on a schedule and at shutdown. A delta is subtracted from its counter only after its batch has been
+ * committed: a failed batch is retried with the next flush, and a committed delta is never written twice,
+ * so a restart does not double count. Deltas not yet flushed when the process dies are lost.
+ *
+ * The comments created before the counters existed are counted once, at the first startup: the comment count
+ * of every post is set from table 'comment', and a marker row keeps the other instances and later startups
+ * from doing it again. A stored comment count never goes below zero.
+ */
+@Component
+public class PostCounters {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PostCounters.class);
+
+    // deltas are added to the stored counters, so concurrent instances do not overwrite each other
+    private static final String UPSERT = "INSERT INTO post_stats (post_id, view_count, comment_count)"
+            + " VALUES (?, ?, GREATEST(?, 0))"
+            + " ON DUPLICATE KEY UPDATE view_count = view_count + ?, comment_count = GREATEST(comment_count + ?, 0)";
+
+    private static final String CREATE_BACKFILL = "CREATE TABLE IF NOT EXISTS post_stats_backfill"
+            + " (id INT NOT NULL PRIMARY KEY, done_on BIGINT NOT NULL)";
+
+    // fails with a duplicate key once the backfill has been done (or while another instance does it)
+    private static final String MARK_BACKFILL = "INSERT INTO post_stats_backfill (id, done_on) VALUES (1, ?)";
+
+    private static final String BACKFILL = "INSERT INTO post_stats (post_id, view_count, comment_count)"
+            + " SELECT post_id, 0, COUNT(*) FROM comment GROUP BY post_id"
+            + " ON DUPLICATE KEY UPDATE comment_count = VALUES(comment_count)";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate; // to write the deltas in batches
+
+    @Autowired
+    private PlatformTransactionManager transactionManager; // to write a batch in one transaction
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher; // to notify flushed counters
+
+    private TransactionTemplate transactionTemplate;
+
+    private final Map<Long, Delta> pending = new ConcurrentHashMap<>(); // post id -> unflushed delta
+
+    // deltas removed after being idle, a late increment is flushed once more before they are dropped
+    private List<Delta> retired = new ArrayList<>(); // guarded by this
+
+    private final AtomicLong version = new AtomicLong(); // incremented when counters have been written
+
+    @PostConstruct
+    public void init() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Count the comments created before the counters existed, once for all the instances. Table 'comment'
+     * also has the comments counted since, so the count replaces the stored one.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        jdbcTemplate.execute(CREATE_BACKFILL);
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.update(MARK_BACKFILL, System.currentTimeMillis());
+                jdbcTemplate.update(BACKFILL);
+            });
+            version.incrementAndGet();
+            LOGGER.info("Comment counts have been backfilled from table 'comment'");
+        } catch (DuplicateKeyException e) {
+            LOGGER.debug("Comment counts have already been backfilled");
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to backfill comment counts, retried at the next startup", e);
+        }
+    }
+
+    /**
+     * Count a view of a post
+     *
+     * @param postId Post id
+     */
+    public void recordView(Long postId) {
+        delta(postId).views.increment();
+    }
+
+    /**
+     * Count a new comment of a post, after the comment has been committed
+     * (comments written behind are committed before the event is published)
+     *
+     * @param event Comment created event
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommentCreated(CommentCreatedEvent event) {
+        delta(event.getComment().getPostId()).comments.increment();
+    }
+
+    /**
+     * Count a deleted comment of a post, after the deletion has been committed
+     *
+     * @param event Comment deleted event
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onCommentDeleted(CommentDeletedEvent event) {
+        delta(event.getComment().getPostId()).comments.decrement();
+    }
+
+    /**
+     * Get the views of a post that have not been written to DB yet
+     *
+     * @param postId Post id
+     * @return Number of unflushed views
+     */
+    public long getPendingViews(Long postId) {
+        Delta delta = pending.get(postId);
+        return delta == null ? 0 : delta.views.sum();
+    }
+
+    /**
+     * Get the comments of a post that have not been written to DB yet
+     *
+     * @param postId Post id
+     * @return Number of unflushed comments (negative if more comments have been deleted)
+     */
+    public long getPendingComments(Long postId) {
+        Delta delta = pending.get(postId);
+        return delta == null ? 0 : delta.comments.sum();
+    }
+
+    /**
+     * Get the version of the stored counters. It changes when counters have been written to DB.
+     *
+     * @return Version of the stored counters
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Write the counted deltas to DB
+     */
+    @Scheduled(fixedDelayString = "${app.stats.flush-interval}")
+    public void flush() {
+        Set<Long> postIds = write();
+        if (!postIds.isEmpty()) {
+            eventPublisher.publishEvent(new PostStatsFlushedEvent(postIds));
+        }
+    }
+
+    /**
+     * Write the last deltas before the application stops
+     */
+    @PreDestroy
+    public void close() {
+        write();
+    }
+
+    /**
+     * Helper method to write the deltas in one batch
+     *
+     * @return Ids of the posts whose counters have been written
+     */
+    private synchronized Set<Long> write() {
+        List<Entry> entries = new ArrayList<>();
+        for (Delta delta : retired) {
+            addEntry(entries, delta);
+        }
+        List<Delta> idle = new ArrayList<>();
+        for (Delta delta : pending.values()) {
+            if (!addEntry(entries, delta)) {
+                if (delta.idle) {
+                    pending.remove(delta.postId, delta); // bound the map to the active posts
+                    idle.add(delta);
+                }
+                delta.idle = true;
+            } else {
+                delta.idle = false;
+            }
+        }
+        if (entries.isEmpty()) {
+            retired = idle;
+            return new LinkedHashSet<>();
+        }
+        try {
+            transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(UPSERT, entries, entries.size(),
+                    (ps, entry) -> {
+                        ps.setLong(1, entry.delta.postId);
+                        ps.setLong(2, entry.views);
+                        ps.setLong(3, entry.comments);
+                        ps.setLong(4, entry.views);
+                        ps.setLong(5, entry.comments);
+                    }));
+        } catch (RuntimeException e) {
+            // deltas are kept, so they are retried with the next flush
+            LOGGER.warn("Failed to write counters of {} post(s)", entries.size(), e);
+            idle.addAll(retired);
+            retired = idle;
+            return new LinkedHashSet<>();
+        }
+        for (Entry entry : entries) {
+            // increments counted while writing are kept for the next flush
+            entry.delta.views.add(-entry.views);
+            entry.delta.comments.add(-entry.comments);
+        }
+        retired = idle;
+        version.incrementAndGet();
+        return entries.stream().map(entry -> entry.delta.postId).collect(Collectors.toSet());
+    }
+
+    /**
+     * Helper method to add the current delta of a post to a batch
+     *
+     * @param entries Batch
+     * @param delta Delta of a post
+     * @return True if the delta is not zero. Else, return false
+     */
+    private boolean addEntry(List<Entry> entries, Delta delta) {
+        long views = delta.views.sum();
+        long comments = delta.comments.sum();
+        if (views == 0 && comments == 0) {
+            return false;
+        }
+        entries.add(new Entry(delta, views, comments));
+        return true;
+    }
+
+    private Delta delta(Long postId) {
+        return pending.computeIfAbsent(postId, Delta::new);
+    }
+
+    /**
+     * Unflushed counters of a post
+     */
+    private static class Delta {
+        private final Long postId;
+        private final LongAdder views = new LongAdder();
+        private final LongAdder comments = new LongAdder();
+        private volatile boolean idle;  // true if nothing has been counted since the previous flush
+
+        private Delta(Long postId) {
+            this.postId = postId;
+        }
+    }
+
+    /**
+     * Delta of a post in a batch
+     */
+    private static class Entry {
+        private final Delta delta;
+        private final long views;
+        private final long comments;
+
+        private Entry(Delta delta, long views, long comments) {
+            this.delta = delta;
+            this.views = views;
+            this.comments = comments;
+        }
+    }
+}
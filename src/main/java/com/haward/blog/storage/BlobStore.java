@@ -0,0 +1,39 @@
+package com.haward.blog.storage;
+
+import org.springframework.core.io.Resource;
+
+import java.io.InputStream;
+
+/**
+ * BlobStore abstracts where the binary content of an image is persisted.
+ * A blob is immutable and is located by the storage key returned when it was stored.
+ * Blobs are shared by all the images with the same content, so they are never removed by key.
+ */
+public interface BlobStore {
+
+    /**
+     * Persist binary content.
+     * The content is streamed into the store, i.e. it is never fully buffered in the heap.
+     * Identical content is stored once.
+     *
+     * @param content Binary content to be stored. Caller is responsible to close it.
+     * @return Info of the stored blob (key, hash, size)
+     */
+    StoredBlob put(InputStream content);
+
+    /**
+     * Load binary content given its storage key
+     *
+     * @param key Storage key of the blob
+     * @return Readable resource of the blob
+     */
+    Resource load(String key);
+
+    /**
+     * Check if a blob exists
+     *
+     * @param key Storage key of the blob
+     * @return True if blob exists. Else, return false
+     */
+    boolean exists(String key);
+}
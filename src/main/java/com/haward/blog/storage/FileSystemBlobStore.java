@@ -0,0 +1,173 @@
+package com.haward.blog.storage;
+
+import com.haward.blog.security.exception.ImageNotFoundException;
+import com.haward.blog.security.exception.ImageStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Blob store on the local file system.
+ * A blob is content-addressed, i.e. its key is the SHA-256 of its content,
+ * so identical content is stored only once. Content is staged in a temporary file while
+ * its hash is computed, then it is moved to its final location. Blobs are spread over two levels
+ * of sub-directories (i.e. ab/cd/abcd...) to keep directories small.
+ */
+@Component
+public class FileSystemBlobStore implements BlobStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemBlobStore.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024; // heap used per upload regardless of file size
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Value("${app.storage.root}")
+    private String root; // value is defined in application.properties file
+
+    private Path rootPath;
+
+    private Path tmpPath; // staging area before a blob is moved to its final location
+
+    @PostConstruct
+    public void init() {
+        try {
+            rootPath = Paths.get(root).toAbsolutePath();
+            tmpPath = rootPath.resolve("tmp");
+            Files.createDirectories(tmpPath);
+            LOGGER.info("Blob store root: {}", rootPath);
+        } catch (IOException e) {
+            throw new ImageStoreException("Failed to initialize blob store at " + root, e);
+        }
+    }
+
+    @Override
+    public StoredBlob put(InputStream content) {
+        Path tmp = null;
+        try {
+            // stage the content and compute its hash in a single pass
+            tmp = Files.createTempFile(tmpPath, "blob", ".part");
+            MessageDigest digest = sha256();
+            long size;
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                size = copy(new DigestInputStream(content, digest), out);
+            }
+            String hash = toHex(digest.digest());
+            Path target = resolve(hash);
+            if (Files.exists(target)) {
+                Files.delete(tmp); // same content has been stored before
+            } else {
+                Files.createDirectories(target.getParent());
+                moveIntoPlace(tmp, target);
+            }
+            return new StoredBlob(hash, hash, size);
+        } catch (IOException e) {
+            deleteQuietly(tmp);
+            throw new ImageStoreException("Failed to store blob", e);
+        }
+    }
+
+    @Override
+    public Resource load(String key) {
+        Path path = resolve(key);
+        if (!Files.isReadable(path)) {
+            throw new ImageNotFoundException("Blob " + key + " not found in blob store");
+        }
+        return new FileSystemResource(path);
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.exists(resolve(key));
+    }
+
+    /**
+     * Helper method to map a storage key to its path
+     *
+     * @param key Storage key (hex encoded hash)
+     * @return Path of the blob
+     */
+    private Path resolve(String key) {
+        if (key == null || key.length() < 4 || !key.matches("[0-9a-f]+")) {
+            throw new ImageNotFoundException("Invalid blob key " + key);
+        }
+        return rootPath.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+    }
+
+    /**
+     * Helper method to atomically publish a staged file.
+     * Readers never see a partially written blob.
+     *
+     * @param tmp Staged file
+     * @param target Final location of the blob
+     * @throws IOException IO exception
+     */
+    private void moveIntoPlace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            deleteQuietly(tmp); // another upload of the same content won the race
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Helper method to copy a stream with a fixed size buffer
+     *
+     * @param in Source stream
+     * @param out Destination stream
+     * @return Number of bytes copied
+     * @throws IOException IO exception
+     */
+    private long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    private void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete staged file {}", path, e);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
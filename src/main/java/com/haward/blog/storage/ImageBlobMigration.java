@@ -0,0 +1,56 @@
+package com.haward.blog.storage;
+
+import com.haward.blog.security.exception.ImageStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * One-off migration to move the legacy image binaries (column 'file_content' in table 'image')
+ * into the blob store. It runs at startup when app.storage.migrate-lob=true.
+ * Each row is migrated independently, so the migration can be re-run after a failure.
+ */
+@Component
+@ConditionalOnProperty(name = "app.storage.migrate-lob", havingValue = "true")
+public class ImageBlobMigration implements ApplicationRunner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageBlobMigration.class);
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate; // legacy column is not mapped by Image model anymore
+
+    @Autowired
+    private BlobStore blobStore; // destination of the image binaries
+
+    @Override
+    public void run(ApplicationArguments args) {
+        List<Long> ids = jdbcTemplate.queryForList(
+                "SELECT id FROM image WHERE storage_key IS NULL AND file_content IS NOT NULL", Long.class);
+        LOGGER.info("Migrating {} image(s) into blob store", ids.size());
+        for (Long id : ids) {
+            // stream one LOB at a time into blob store
+            StoredBlob blob = jdbcTemplate.query("SELECT file_content FROM image WHERE id = ?",
+                    (ResultSetExtractor<StoredBlob>) rs -> {
+                        rs.next();
+                        try (InputStream content = rs.getBinaryStream(1)) {
+                            return blobStore.put(content);
+                        } catch (IOException e) {
+                            throw new ImageStoreException("Failed to migrate image id " + id, e);
+                        }
+                    }, id);
+            jdbcTemplate.update("UPDATE image SET file_size = ?, file_hash = ?, storage_key = ?, file_content = NULL"
+                    + " WHERE id = ?", blob.getSize(), blob.getHash(), blob.getKey(), id);
+        }
+        LOGGER.info("Image migration completed");
+    }
+}
@@ -0,0 +1,361 @@
+package com.haward.blog.storage;
+
+import com.haward.blog.model.Image;
+import com.haward.blog.model.ImageRendition;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * ImageCache keeps the hot images in memory.
+ *
+ * Binary images are kept in direct (off-heap) buffers, so a large cache does not add GC pressure.
+ * The cache is bounded by the total number of bytes. Eviction is frequency-aware (TinyLFU):
+ * a compact frequency sketch remembers how often every key has been requested recently, and a new
+ * image only replaces the least recently used images if it is requested more often than them.
+ * So a burst of one-off downloads cannot flush the popular images out of the cache.
+ *
+ * Image metadata (a small on-heap LRU map) is cached as well, so a hit needs no DB access.
+ * Both are safe to cache without invalidation because stored images never change.
+ * The renditions of an image are cached the same way, but new renditions are added to an image,
+ * so its cached renditions are dropped once renditions have been generated for it.
+ */
+@Component
+public class ImageCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageCache.class);
+
+    @Autowired
+    private MeterRegistry meterRegistry; // to report cache metrics
+
+    @Value("${app.image.cache.max-bytes}")
+    private long maxBytes; // bound of the off-heap memory
+
+    @Value("${app.image.cache.max-entry-bytes}")
+    private long maxEntryBytes; // larger images are always streamed from blob store
+
+    @Value("${app.image.cache.max-metadata}")
+    private int maxMetadata; // bound of the cached image metadata, and of the cached rendition lists
+
+    // storage key -> read-only direct buffer, in access order (least recently used first)
+    private final LinkedHashMap<String, ByteBuffer> blobs = new LinkedHashMap<>(256, 0.75f, true);
+
+    private Map<Long, Image> metadata; // image id -> image metadata
+
+    private Map<Long, List<ImageRendition>> renditions; // image id -> its renditions, guarded by itself
+
+    private long renditionsVersion; // incremented when renditions are dropped, guarded by renditions
+
+    private FrequencySketch sketch;
+
+    private long usedBytes; // guarded by this
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        final int metadataBound = maxMetadata;
+        metadata = new LinkedHashMap<Long, Image>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Image> eldest) {
+                return size() > metadataBound;
+            }
+        };
+        renditions = new LinkedHashMap<Long, List<ImageRendition>>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<ImageRendition>> eldest) {
+                return size() > metadataBound;
+            }
+        };
+        // size the sketch for the number of small images that fit into the cache
+        sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(1024, maxBytes / (64 * 1024))));
+
+        FunctionCounter.builder("blog.image.cache.requests", hits, LongAdder::sum)
+                .tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("blog.image.cache.requests", misses, LongAdder::sum)
+                .tag("result", "miss").register(meterRegistry);
+        FunctionCounter.builder("blog.image.cache.evictions", evictions, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("blog.image.cache.rejections", rejections, LongAdder::sum).register(meterRegistry);
+        Gauge.builder("blog.image.cache.bytes", this, ImageCache::getUsedBytes)
+                .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("blog.image.cache.entries", this, ImageCache::getEntryCount).register(meterRegistry);
+    }
+
+    /**
+     * Get image metadata from cache, or load it on a miss
+     *
+     * @param id Image id
+     * @param loader Loader of the image metadata (i.e. from DB)
+     * @return Image metadata
+     */
+    public Image getMetadata(Long id, Function<Long, Image> loader) {
+        synchronized (metadata) {
+            Image image = metadata.get(id);
+            if (image != null) {
+                return image;
+            }
+        }
+        Image image = loader.apply(id);
+        synchronized (metadata) {
+            metadata.put(id, image);
+        }
+        return image;
+    }
+
+    /**
+     * Get the renditions of an image from cache, or load them on a miss
+     *
+     * @param imageId Original image id
+     * @param loader Loader of the renditions (i.e. from DB)
+     * @return Renditions of the image, must not be modified
+     */
+    public List<ImageRendition> getRenditions(Long imageId, Function<Long, List<ImageRendition>> loader) {
+        long version;
+        synchronized (renditions) {
+            List<ImageRendition> list = renditions.get(imageId);
+            if (list != null) {
+                return list;
+            }
+            version = renditionsVersion;
+        }
+        List<ImageRendition> list = Collections.unmodifiableList(loader.apply(imageId));
+        synchronized (renditions) {
+            if (version == renditionsVersion) { // else, the list may have been loaded before a new rendition
+                renditions.put(imageId, list);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Drop the cached renditions of an image, after renditions have been added to it
+     *
+     * @param imageId Original image id
+     */
+    public void evictRenditions(Long imageId) {
+        synchronized (renditions) {
+            renditions.remove(imageId);
+            renditionsVersion++;
+        }
+    }
+
+    /**
+     * Get a binary image from cache
+     *
+     * @param key Storage key of the image
+     * @return A read-only buffer of the whole image (position 0). Else, return null on a miss.
+     */
+    public ByteBuffer get(String key) {
+        sketch.increment(key);
+        synchronized (this) {
+            ByteBuffer buffer = blobs.get(key);
+            if (buffer != null) {
+                hits.increment();
+                return buffer.duplicate();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Load a binary image into cache after a miss, if it is worth caching
+     *
+     * @param key Storage key of the image
+     * @param file File of the image in blob store
+     * @param size Number of bytes of the image
+     * @return A read-only buffer of the whole image (position 0). Else, return null to stream from file.
+     */
+    public ByteBuffer admit(String key, Path file, long size) {
+        if (size > maxEntryBytes) {
+            return null;
+        }
+        if (!canAdmit(key, size)) {
+            rejections.increment();
+            return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = read(file, (int) size);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cache image {}", key, e);
+            return null;
+        }
+        synchronized (this) {
+            if (!blobs.containsKey(key) && evictFor(key, size)) {
+                blobs.put(key, buffer);
+                usedBytes += size;
+            }
+        }
+        return buffer.duplicate();
+    }
+
+    public synchronized long getUsedBytes() { return usedBytes; }
+
+    public synchronized int getEntryCount() { return blobs.size(); }
+
+    /**
+     * Helper method to check (without evicting) if an image would be admitted
+     *
+     * @param key Storage key of the image
+     * @param size Number of bytes of the image
+     * @return True if the image would be admitted. Else, return false
+     */
+    private synchronized boolean canAdmit(String key, long size) {
+        return !selectVictims(key, size).contains(null);
+    }
+
+    /**
+     * Helper method to make room for a new image. Caller must hold the lock.
+     *
+     * @param key Storage key of the new image
+     * @param size Number of bytes of the new image
+     * @return True if there is room for the new image. Else, return false (image is rejected)
+     */
+    private boolean evictFor(String key, long size) {
+        List<String> victims = selectVictims(key, size);
+        if (victims.contains(null)) {
+            rejections.increment();
+            return false;
+        }
+        for (String victim : victims) {
+            ByteBuffer buffer = blobs.remove(victim);
+            usedBytes -= buffer.capacity();
+            evictions.increment(); // off-heap memory is released when the buffer is garbage collected
+        }
+        return true;
+    }
+
+    /**
+     * Helper method to select the least recently used images to evict for a new image.
+     * A null element means that the new image is less frequent than a victim and must be rejected.
+     * Caller must hold the lock.
+     *
+     * @param key Storage key of the new image
+     * @param size Number of bytes of the new image
+     * @return Images to evict
+     */
+    private List<String> selectVictims(String key, long size) {
+        List<String> victims = new ArrayList<>();
+        long free = maxBytes - usedBytes;
+        int frequency = sketch.frequency(key);
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = blobs.entrySet().iterator();
+        while (free < size && iterator.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = iterator.next();
+            if (sketch.frequency(entry.getKey()) >= frequency) {
+                victims.add(null);
+                return victims;
+            }
+            victims.add(entry.getKey());
+            free += entry.getValue().capacity();
+        }
+        if (free < size) {
+            victims.add(null);
+        }
+        return victims;
+    }
+
+    /**
+     * Helper method to read a whole file into a direct buffer
+     *
+     * @param file File to be read
+     * @param size Number of bytes of the file
+     * @return A read-only direct buffer
+     * @throws IOException IO exception
+     */
+    private ByteBuffer read(Path file, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+            }
+        }
+        ((Buffer) buffer).flip(); // Buffer method keeps Java 8 compatibility
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Count-min sketch with small saturating counters to estimate how often a key has been requested.
+     * All counters are halved periodically, so that the estimate favors recent popularity.
+     */
+    static class FrequencySketch {
+
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+        private final int[] table;
+        private final int mask;
+        private final int sampleSize; // number of increments before the counters are halved
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+            table = new int[size];
+            mask = size - 1;
+            sampleSize = size * 10;
+        }
+
+        synchronized void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int seed : SEEDS) {
+                int index = indexOf(hash, seed);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] >>>= 1;
+                }
+                additions /= 2;
+            }
+        }
+
+        synchronized int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_COUNT;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, table[indexOf(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int seed) {
+            int h = (hash ^ seed) * 0x9E3779B1;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.haward.blog.storage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * ImageStreamer writes a stored blob to the HTTP response without loading it into the heap.
+ * It supports HEAD requests and a single byte range (i.e. Range: bytes=100-199) to resume downloads.
+ *
+ * A file blob is sent with the container's sendfile when available (zero-copy from page cache
+ * to socket). Otherwise, it is transferred with FileChannel.transferTo, so heap usage per request
+ * stays constant regardless of the file size. Hot images are served from an off-heap cache.
+ */
+@Component
+public class ImageStreamer {
+
+    @Autowired
+    private BlobStore blobStore; // to load the blob
+
+    @Autowired
+    private ImageCache imageCache; // to serve hot images from memory
+
+    // Request attributes understood by Tomcat to hand over a file to sendfile
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Below this size, sendfile setup costs more than copying (same threshold as Tomcat DefaultServlet)
+    private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
+    /**
+     * Write a blob (or the requested range of it) to the response
+     *
+     * @param request HTTP servlet request
+     * @param response HTTP servlet response
+     * @param key Storage key of the blob
+     * @param size Number of bytes of the blob
+     * @param contentType Media type of the blob
+     * @param fileName File name for the Content-Disposition header
+     * @param etag ETag of the blob, to validate If-Range
+     * @throws IOException IO exception
+     */
+    public void write(HttpServletRequest request, HttpServletResponse response, String key,
+                      long size, String contentType, String fileName, String etag) throws IOException {
+        boolean head = HttpMethod.HEAD.matches(request.getMethod());
+        ByteBuffer cached = head ? null : imageCache.get(key);
+        Resource blob = null;
+        if (cached == null) {
+            blob = blobStore.load(key);
+            if (!head && blob.isFile()) {
+                cached = imageCache.admit(key, blob.getFile().toPath(), size);
+            }
+        }
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setContentType(contentType);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"");
+
+        long start = 0;
+        long end = size - 1;
+        HttpRange range = getRange(request, etag);
+        if (range != null) {
+            start = range.getRangeStart(size);
+            end = range.getRangeEnd(size);
+            if (start >= size || start > end) {
+                // range is beyond the end of the blob
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+        }
+        long length = end - start + 1;
+        response.setContentLengthLong(length);
+
+        if (head || length <= 0) {
+            return; // headers only
+        }
+
+        if (cached != null) {
+            write(response, cached, (int) start, (int) length);
+        } else if (blob.isFile()) {
+            Path path = blob.getFile().toPath();
+            if (length >= SENDFILE_MIN_SIZE && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+                // container writes the file after this method returns
+                request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START, start);
+                request.setAttribute(SENDFILE_END, end + 1);
+                return;
+            }
+            transfer(path, start, length, response.getOutputStream());
+        } else {
+            try (InputStream in = blob.getInputStream()) {
+                StreamUtils.copyRange(in, response.getOutputStream(), start, end);
+            }
+        }
+    }
+
+    /**
+     * Helper method to get the requested range
+     *
+     * @param request HTTP servlet request
+     * @param etag ETag of the blob
+     * @return The requested range. Else, return null to send the whole blob
+     */
+    private HttpRange getRange(HttpServletRequest request, String etag) {
+        String header = request.getHeader(HttpHeaders.RANGE);
+        if (header == null) {
+            return null;
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            return null; // client has another version, send the whole blob
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(header);
+            // multiple ranges are not supported, reply with the whole blob instead
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException e) {
+            return null; // malformed Range header is ignored
+        }
+    }
+
+    /**
+     * Helper method to write a region of a cached (off-heap) image to the response.
+     * It is written through the response as given, so the filters wrapping it (i.e. security headers,
+     * compression) still apply. The container copies the bytes into its own buffer in chunks.
+     *
+     * @param response HTTP servlet response
+     * @param buffer Cached image
+     * @param start Position of the first byte
+     * @param length Number of bytes to write
+     * @throws IOException IO exception
+     */
+    private void write(HttpServletResponse response, ByteBuffer buffer, int start, int length) throws IOException {
+        // Buffer methods keep Java 8 compatibility
+        ((Buffer) buffer).position(start);
+        ((Buffer) buffer).limit(start + length);
+        WritableByteChannel channel = Channels.newChannel(response.getOutputStream());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Helper method to copy a region of a file to the response
+     *
+     * @param path File to be copied
+     * @param start Position of the first byte
+     * @param length Number of bytes to copy
+     * @param out Response output stream
+     * @throws IOException IO exception
+     */
+    private void transfer(Path path, long start, long length, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = start;
+            long remaining = length;
+            while (remaining > 0) {
+                long count = channel.transferTo(position, remaining, target);
+                if (count <= 0) {
+                    break; // file has been truncated
+                }
+                position += count;
+                remaining -= count;
+            }
+        }
+    }
+}
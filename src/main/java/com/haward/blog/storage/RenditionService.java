@@ -0,0 +1,279 @@
+package com.haward.blog.storage;
+
+import com.haward.blog.event.PostCreatedEvent;
+import com.haward.blog.model.Image;
+import com.haward.blog.model.ImageRendition;
+import com.haward.blog.repository.ImageRenditionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.annotation.PostConstruct;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RenditionService derives downscaled JPEG copies (renditions) of post images, so that
+ * clients can download a small image (i.e. a thumbnail) instead of the original.
+ *
+ * Renditions are generated in the background after a post has been committed. The configured
+ * widths are generated from a single decode of the original: the original is subsampled while
+ * it is decoded, so a large image never needs a full resolution bitmap in the heap.
+ * The size of an original is read from its header before decoding: originals with too many pixels
+ * get no rendition, and a tall image is subsampled further so that its bitmap stays bounded.
+ *
+ * The renditions of an image are found in the image cache. They are dropped from it after every generation
+ * for the image, even one that finds them already saved by another instance: the cached list may be older.
+ */
+@Component
+public class RenditionService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RenditionService.class);
+
+    private static final String RENDITION_TYPE = "image/jpeg";
+
+    private static final int MAX_ATTEMPTED = 10000; // bound of the images remembered as attempted
+
+    @Autowired
+    private BlobStore blobStore; // to load originals and save renditions
+
+    @Autowired
+    private ImageRenditionRepository imageRenditionRepository; // to save and find renditions
+
+    @Autowired
+    private ImageCache imageCache; // to find the renditions of hot images without DB access
+
+    @Value("${app.image.renditions}")
+    private String renditionSpec; // i.e. 160:0.7,480:0.8 (width in pixels:JPEG quality)
+
+    @Value("${app.image.rendition.max-pixels}")
+    private long maxPixels; // larger originals are not decoded
+
+    @Value("${app.image.rendition.max-decoded-pixels}")
+    private long maxDecodedPixels; // bound of the decoded bitmap
+
+    private final List<Spec> specs = new ArrayList<>();
+
+    // images that have been processed by this instance, to generate renditions on demand only once
+    private final Set<Long> attempted = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        for (String item : renditionSpec.split(",")) {
+            String[] parts = item.trim().split(":");
+            specs.add(new Spec(Integer.parseInt(parts[0].trim()), Float.parseFloat(parts[1].trim())));
+        }
+        specs.sort((a, b) -> Integer.compare(a.width, b.width));
+    }
+
+    /**
+     * Generate the renditions of the image of a new post, after the post has been committed
+     *
+     * @param event Post created event
+     */
+    @Async("renditionExecutor")
+    @TransactionalEventListener
+    public void onPostCreated(PostCreatedEvent event) {
+        generate(event.getImage());
+    }
+
+    /**
+     * Generate the renditions of an image in the background if it has not been attempted before.
+     * It is used for images persisted before renditions were introduced.
+     *
+     * @param image Original image
+     */
+    @Async("renditionExecutor")
+    public void generateOnDemand(Image image) {
+        if (attempted.contains(image.getId())) {
+            return;
+        }
+        generate(image);
+    }
+
+    /**
+     * Find the rendition to serve for a requested width, i.e. the smallest rendition that is at
+     * least as wide as requested
+     *
+     * @param imageId Original image id
+     * @param width Requested width in pixels
+     * @return The best rendition. Else, return empty to serve the original image
+     */
+    public Optional<ImageRendition> findRendition(Long imageId, int width) {
+        for (ImageRendition rendition : imageCache.getRenditions(imageId,
+                imageRenditionRepository::findByImageIdOrderByWidthAsc)) {
+            if (rendition.getWidth() >= width) {
+                return Optional.of(rendition);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Generate the missing renditions of an image
+     *
+     * @param image Original image
+     */
+    public void generate(Image image) {
+        if (attempted.size() >= MAX_ATTEMPTED) {
+            attempted.clear();
+        }
+        attempted.add(image.getId());
+        if (image.getStorageKey() == null) {
+            return;
+        }
+        try {
+            generateMissing(image);
+        } finally {
+            imageCache.evictRenditions(image.getId());
+        }
+    }
+
+    /**
+     * Helper method to generate the renditions of an image that are not persisted yet
+     *
+     * @param image Original image with stored content
+     */
+    private void generateMissing(Image image) {
+        try (InputStream in = blobStore.load(image.getStorageKey()).getInputStream();
+             ImageInputStream iis = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                LOGGER.info("Image id {} ({}) cannot be decoded. No rendition.", image.getId(), image.getFileType());
+                return;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int originalWidth = reader.getWidth(0);
+                int originalHeight = reader.getHeight(0);
+                long pixels = (long) originalWidth * originalHeight;
+                if (pixels > maxPixels) {
+                    LOGGER.info("Image id {} has {}x{} pixels, more than {}. No rendition.", image.getId(),
+                            originalWidth, originalHeight, maxPixels);
+                    return;
+                }
+                List<Spec> todo = new ArrayList<>();
+                for (Spec spec : specs) {
+                    // never upscale, the original is served instead
+                    if (spec.width < originalWidth
+                            && !imageRenditionRepository.existsByImageIdAndWidth(image.getId(), spec.width)) {
+                        todo.add(spec);
+                    }
+                }
+                if (todo.isEmpty()) {
+                    return;
+                }
+                // decode once, at no less than twice the largest target width, unless the bitmap would exceed
+                // its bound (i.e. a tall image), then at no less than the largest target width
+                int largest = todo.get(todo.size() - 1).width;
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, originalWidth / (largest * 2));
+                int boundedSubsampling = (int) Math.ceil(Math.sqrt((double) pixels / maxDecodedPixels));
+                subsampling = Math.max(subsampling, Math.min(boundedSubsampling, originalWidth / largest));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage source = reader.read(0, param);
+                for (Spec spec : todo) {
+                    save(image, spec, scale(source, spec.width));
+                }
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to generate renditions of image id {}", image.getId(), e);
+        }
+    }
+
+    /**
+     * Helper method to downscale an image to a given width, keeping its aspect ratio
+     *
+     * @param source Source image
+     * @param width Target width in pixels
+     * @return Downscaled RGB image
+     */
+    private BufferedImage scale(BufferedImage source, int width) {
+        int height = Math.max(1, Math.round((float) source.getHeight() * width / source.getWidth()));
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE); // JPEG has no transparency
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * Helper method to encode a rendition as JPEG and persist it
+     *
+     * @param image Original image
+     * @param spec Rendition width and quality
+     * @param rendition Downscaled image
+     * @throws IOException IO exception
+     */
+    private void save(Image image, Spec spec, BufferedImage rendition) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(spec.quality);
+            writer.write(null, new IIOImage(rendition, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        StoredBlob blob = blobStore.put(new ByteArrayInputStream(out.toByteArray()));
+
+        ImageRendition imageRendition = new ImageRendition();
+        imageRendition.setImageId(image.getId());
+        imageRendition.setWidth(rendition.getWidth());
+        imageRendition.setHeight(rendition.getHeight());
+        imageRendition.setFileType(RENDITION_TYPE);
+        imageRendition.setFileSize(blob.getSize());
+        imageRendition.setFileHash(blob.getHash());
+        imageRendition.setStorageKey(blob.getKey());
+        imageRenditionRepository.save(imageRendition);
+    }
+
+    /**
+     * Configured rendition
+     */
+    private static class Spec {
+        private final int width;      // in pixels
+        private final float quality;  // JPEG quality between 0 and 1
+
+        private Spec(int width, float quality) {
+            this.width = width;
+            this.quality = quality;
+        }
+    }
+}
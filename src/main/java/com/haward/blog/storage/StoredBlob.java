@@ -0,0 +1,13 @@
+package com.haward.blog.storage;
+
+import lombok.Data;
+
+/**
+ * Info of a blob after it has been persisted into the blob store
+ */
+@Data
+public class StoredBlob {
+    private final String key;   // key to locate the blob in the store
+    private final String hash;  // hex encoded SHA-256 of the content
+    private final long size;    // number of bytes
+}
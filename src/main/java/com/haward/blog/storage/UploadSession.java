@@ -0,0 +1,133 @@
+package com.haward.blog.storage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * State of a resumable upload.
+ * Chunks can arrive in any order. The received byte ranges are merged so that
+ * the session knows when the whole file has been received.
+ *
+ * Chunks are written to the staging file under the read lock of the session (chunks at different
+ * offsets are written concurrently). Completion and removal of the session take the write lock,
+ * so the staging file never changes while it is hashed, and no chunk is written once it is gone.
+ */
+public class UploadSession {
+
+    private final String id;
+    private final String username;  // owner of the session
+    private final String fileName;
+    private final String fileType;
+    private final long fileSize;
+    private final Path stagingFile;  // chunks are written at their offset in this file
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();  // start -> end (exclusive)
+    private long receivedBytes;
+    private volatile long lastTouched;
+    private StoredBlob blob;  // set after the upload has been staged into blob store
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean closed;  // guarded by lock, set once the staging file is gone (completed, aborted or expired)
+
+    public UploadSession(String id, String username, String fileName, String fileType,
+                         long fileSize, Path stagingFile) {
+        this.id = id;
+        this.username = username;
+        this.fileName = fileName;
+        this.fileType = fileType;
+        this.fileSize = fileSize;
+        this.stagingFile = stagingFile;
+        this.lastTouched = System.currentTimeMillis();
+    }
+
+    public String getId() { return id; }
+
+    public String getUsername() { return username; }
+
+    public String getFileName() { return fileName; }
+
+    public String getFileType() { return fileType; }
+
+    public long getFileSize() { return fileSize; }
+
+    public Path getStagingFile() { return stagingFile; }
+
+    public long getLastTouched() { return lastTouched; }
+
+    public void touch() { lastTouched = System.currentTimeMillis(); }
+
+    public ReadWriteLock getLock() { return lock; }
+
+    /**
+     * Check if the staging file is gone. Caller must hold the lock.
+     *
+     * @return True if no more chunks can be written. Else, return false
+     */
+    public boolean isClosed() { return closed; }
+
+    /**
+     * Mark the staging file as gone. Caller must hold the write lock.
+     */
+    public void close() { closed = true; }
+
+    public synchronized long getReceivedBytes() { return receivedBytes; }
+
+    public synchronized StoredBlob getBlob() { return blob; }
+
+    public synchronized void setBlob(StoredBlob blob) { this.blob = blob; }
+
+    /**
+     * Record a received byte range and merge it with the adjacent/overlapping ranges
+     *
+     * @param start Position of the first byte
+     * @param end Position after the last byte
+     */
+    public synchronized void addRange(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        Map.Entry<Long, Long> lower = ranges.floorEntry(start);
+        if (lower != null && lower.getValue() >= start) {
+            start = lower.getKey();
+            end = Math.max(end, lower.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+        receivedBytes = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            receivedBytes += range.getValue() - range.getKey();
+        }
+    }
+
+    /**
+     * Check if all the bytes of the file have been received
+     *
+     * @return True if upload is complete. Else, return false
+     */
+    public synchronized boolean isFullyReceived() {
+        return receivedBytes == fileSize;
+    }
+
+    /**
+     * Get the received byte ranges
+     *
+     * @return A list of [start, end) sorted by start
+     */
+    public synchronized List<long[]> getRanges() {
+        List<long[]> result = new ArrayList<>(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            result.add(new long[] {range.getKey(), range.getValue()});
+        }
+        return result;
+    }
+}
@@ -0,0 +1,334 @@
+package com.haward.blog.storage;
+
+import com.haward.blog.security.exception.ContentNotFoundException;
+import com.haward.blog.security.exception.ImageStoreException;
+import com.haward.blog.security.exception.InvalidUploadException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * UploadSessionService manages resumable (chunked) uploads of post images.
+ *
+ * A client opens a session with the file size, then sends chunks at any offset and in any order.
+ * Every chunk is written straight to a staging file at its offset, so a dropped connection only
+ * loses the bytes that were not written yet. Once all bytes are received, the upload is completed,
+ * i.e. the staging file is streamed into blob store, and it can be attached to a new post.
+ * Sessions that are not touched within the configured time are expired.
+ * The sessions in progress are bounded in total and per user, so one account cannot take all of them.
+ */
+@Component
+public class UploadSessionService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadSessionService.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024; // heap used per chunk regardless of chunk size
+
+    @Autowired
+    private BlobStore blobStore; // destination of a completed upload
+
+    @Value("${app.upload.staging-dir}")
+    private String stagingDir; // value is defined in application.properties file
+
+    @Value("${app.upload.max-file-size}")
+    private long maxFileSize; // in bytes
+
+    @Value("${app.upload.chunk-size}")
+    private long chunkSize; // recommended chunk size in bytes
+
+    @Value("${app.upload.max-sessions}")
+    private int maxSessions; // bound of the concurrent sessions (disk usage)
+
+    @Value("${app.upload.max-sessions-per-user}")
+    private int maxSessionsPerUser; // bound of the concurrent sessions of a user
+
+    @Value("${app.upload.session-ttl}")
+    private int sessionTtl; // in seconds
+
+    private Path stagingPath;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private final Map<String, Integer> sessionsPerUser = new ConcurrentHashMap<>(); // username -> open sessions
+
+    @PostConstruct
+    public void init() {
+        try {
+            stagingPath = Paths.get(stagingDir).toAbsolutePath();
+            Files.createDirectories(stagingPath);
+        } catch (IOException e) {
+            throw new ImageStoreException("Failed to initialize upload staging area at " + stagingDir, e);
+        }
+    }
+
+    public long getChunkSize() { return chunkSize; }
+
+    /**
+     * Open a new upload session
+     *
+     * @param username Owner of the session
+     * @param fileName Name of the file to be uploaded
+     * @param fileType Media type of the file to be uploaded
+     * @param fileSize Number of bytes to be uploaded
+     * @return New upload session
+     */
+    public UploadSession create(String username, String fileName, String fileType, long fileSize) {
+        String normalizedFileName = StringUtils.cleanPath(fileName);
+        if (normalizedFileName.contains("..")) {
+            throw new InvalidUploadException("Found an invalid path " + normalizedFileName);
+        }
+        if (fileSize <= 0 || fileSize > maxFileSize) {
+            throw new InvalidUploadException("File size must be between 1 and " + maxFileSize + " bytes");
+        }
+        if (sessions.size() >= maxSessions) {
+            throw new InvalidUploadException("Too many uploads in progress. Try again later.");
+        }
+        sessionsPerUser.compute(username, (user, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxSessionsPerUser) {
+                throw new InvalidUploadException("Too many uploads in progress. Complete or abort one of them first.");
+            }
+            return current + 1;
+        });
+        String id = UUID.randomUUID().toString();
+        Path stagingFile = stagingPath.resolve(id + ".part");
+        try (RandomAccessFile file = new RandomAccessFile(stagingFile.toFile(), "rw")) {
+            file.setLength(fileSize); // sparse file, chunks are written at their offset
+        } catch (IOException e) {
+            release(username);
+            throw new ImageStoreException("Failed to create upload session for " + normalizedFileName, e);
+        }
+        UploadSession session = new UploadSession(id, username, normalizedFileName, fileType,
+                fileSize, stagingFile);
+        sessions.put(id, session);
+        return session;
+    }
+
+    /**
+     * Get an upload session owned by a user
+     *
+     * @param uploadId Upload session id
+     * @param username Owner of the session
+     * @return Upload session
+     */
+    public UploadSession get(String uploadId, String username) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.getUsername().equals(username)) {
+            throw new ContentNotFoundException("Upload (id=" + uploadId + ") not found");
+        }
+        session.touch();
+        return session;
+    }
+
+    /**
+     * Write a chunk of the file at the given offset.
+     * If the stream ends early (i.e. client disconnected), the bytes written so far are kept.
+     *
+     * @param uploadId Upload session id
+     * @param username Owner of the session
+     * @param offset Position of the first byte of the chunk in the file
+     * @param content Chunk content
+     * @return Upload session
+     */
+    public UploadSession writeChunk(String uploadId, String username, long offset, InputStream content) {
+        UploadSession session = get(uploadId, username);
+        if (offset < 0 || offset >= session.getFileSize()) {
+            throw new InvalidUploadException("Offset " + offset + " is out of file bounds");
+        }
+        Lock lock = session.getLock().readLock();
+        lock.lock();
+        try {
+            if (session.getBlob() != null) {
+                throw new InvalidUploadException("Upload (id=" + uploadId + ") has been completed");
+            }
+            if (session.isClosed()) {
+                throw new ContentNotFoundException("Upload (id=" + uploadId + ") not found");
+            }
+            write(session, offset, content);
+        } finally {
+            lock.unlock();
+        }
+        return session;
+    }
+
+    /**
+     * Helper method to write a chunk to the staging file. Caller must hold the read lock of the session.
+     *
+     * @param session Upload session
+     * @param offset Position of the first byte of the chunk in the file
+     * @param content Chunk content
+     */
+    private void write(UploadSession session, long offset, InputStream content) {
+        long position = offset;
+        try (FileChannel channel = FileChannel.open(session.getStagingFile(), StandardOpenOption.WRITE)) {
+            byte[] array = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = content.read(array)) != -1) {
+                if (position + count > session.getFileSize()) {
+                    throw new InvalidUploadException("Chunk exceeds file size " + session.getFileSize());
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(array, 0, count);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        } catch (IOException e) {
+            throw new ImageStoreException("Failed to write chunk of upload (id=" + session.getId() + ")", e);
+        } finally {
+            session.addRange(offset, position);
+            session.touch();
+        }
+    }
+
+    /**
+     * Complete an upload, i.e. move the received file into blob store.
+     * The chunks sent during or after completion are rejected.
+     *
+     * @param uploadId Upload session id
+     * @param username Owner of the session
+     * @return Upload session with its stored blob
+     */
+    public UploadSession complete(String uploadId, String username) {
+        UploadSession session = get(uploadId, username);
+        Lock lock = session.getLock().writeLock();
+        lock.lock();
+        try {
+            if (session.getBlob() != null) {
+                return session; // completed before
+            }
+            if (session.isClosed()) {
+                throw new ContentNotFoundException("Upload (id=" + uploadId + ") not found");
+            }
+            if (!session.isFullyReceived()) {
+                throw new InvalidUploadException("Upload (id=" + uploadId + ") is incomplete: "
+                        + session.getReceivedBytes() + " of " + session.getFileSize() + " bytes received");
+            }
+            try (InputStream in = Files.newInputStream(session.getStagingFile())) {
+                session.setBlob(blobStore.put(in));
+            } catch (IOException e) {
+                throw new ImageStoreException("Failed to complete upload (id=" + uploadId + ")", e);
+            }
+            session.close();
+            deleteStagingFile(session);
+        } finally {
+            lock.unlock();
+        }
+        return session;
+    }
+
+    /**
+     * Take a completed upload to attach it to a post. The session is closed afterwards,
+     * so an upload is attached to one post only.
+     *
+     * @param uploadId Upload session id
+     * @param username Owner of the session
+     * @return Completed upload session
+     */
+    public UploadSession take(String uploadId, String username) {
+        UploadSession session = get(uploadId, username);
+        if (session.getBlob() == null) {
+            throw new InvalidUploadException("Upload (id=" + uploadId + ") has not been completed");
+        }
+        if (!remove(session)) {
+            throw new ContentNotFoundException("Upload (id=" + uploadId + ") not found");
+        }
+        return session;
+    }
+
+    /**
+     * Abort an upload
+     *
+     * @param uploadId Upload session id
+     * @param username Owner of the session
+     */
+    public void abort(String uploadId, String username) {
+        UploadSession session = get(uploadId, username);
+        if (remove(session)) {
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Expire the sessions that have not been touched within the session TTL
+     */
+    @Scheduled(fixedDelayString = "${app.upload.sweep-interval}")
+    public void expireSessions() {
+        long deadline = System.currentTimeMillis() - sessionTtl * 1000L;
+        for (UploadSession session : sessions.values()) {
+            Lock lock = session.getLock().writeLock();
+            if (session.getLastTouched() >= deadline || !lock.tryLock()) {
+                continue; // touched recently, or a chunk is being written
+            }
+            try {
+                if (session.getLastTouched() < deadline && remove(session)) {
+                    session.close();
+                    deleteStagingFile(session);
+                    LOGGER.info("Upload (id={}) expired", session.getId());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Helper method to remove a session once
+     *
+     * @param session Upload session
+     * @return True if the session has been removed by this call. Else, return false (removed before)
+     */
+    private boolean remove(UploadSession session) {
+        if (!sessions.remove(session.getId(), session)) {
+            return false;
+        }
+        release(session.getUsername());
+        return true;
+    }
+
+    private void release(String username) {
+        sessionsPerUser.computeIfPresent(username, (user, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Helper method to delete the staging file of a removed session once its chunks have been written
+     *
+     * @param session Upload session
+     */
+    private void closeSession(UploadSession session) {
+        Lock lock = session.getLock().writeLock();
+        lock.lock();
+        try {
+            session.close();
+            deleteStagingFile(session);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteStagingFile(UploadSession session) {
+        try {
+            Files.deleteIfExists(session.getStagingFile());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete staging file {}", session.getStagingFile(), e);
+        }
+    }
+}
@@ -11,4 +11,5 @@ public class Payload {
     private String title;
     private String content;
     private MultipartFile imageFile;
+    private String uploadId;  // completed chunked upload, used when imageFile is not given
 }
@@ -15,4 +15,6 @@ public class PostItem {
     private String username;
     private Instant createdOn;
     private Long imageId;
+    private long viewCount;
+    private long commentCount;
 }
@@ -0,0 +1,24 @@
+package com.haward.blog.view.request;
+
+import lombok.Data;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+
+/**
+ * Request to open a resumable upload session for a post image
+ */
+@Data
+public class UploadItem {
+
+    @NotBlank
+    private String fileName;
+
+    @NotBlank
+    private String fileType;
+
+    @NotNull
+    @Positive
+    private Long fileSize;
+}
@@ -0,0 +1,14 @@
+package com.haward.blog.view.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A page of a list read with a keyset cursor (i.e. comments of a post, oldest first)
+ */
+@Data
+public class CursorPage<T> {
+    private List<T> items;
+    private String nextCursor;  // null if there is no next item
+}
@@ -0,0 +1,15 @@
+package com.haward.blog.view.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A page of the post feed (latest first) with the cursors to move to older or newer posts
+ */
+@Data
+public class FeedPage<T> {
+    private List<T> items;
+    private String olderCursor;  // null if there is no older post
+    private String newerCursor;  // null if the page is empty
+}
@@ -0,0 +1,14 @@
+package com.haward.blog.view.response;
+
+import lombok.Data;
+
+/**
+ * Metadata of a post image. The binary image is retrieved with /content/image/{id}.
+ */
+@Data
+public class ImageItem {
+    private Long id;
+    private String fileName;
+    private String fileType;
+    private Long fileSize;   // number of bytes of the original image
+}
@@ -0,0 +1,15 @@
+package com.haward.blog.view.response;
+
+import com.haward.blog.view.request.CommentItem;
+import com.haward.blog.view.request.PostItem;
+import lombok.Data;
+
+/**
+ * A post with what is needed to render it: its first comments and its image metadata
+ */
+@Data
+public class PostBundle {
+    private PostItem post;
+    private CursorPage<CommentItem> comments;  // first page of comments, oldest first
+    private ImageItem image;                   // null if the image is not found
+}
@@ -0,0 +1,24 @@
+package com.haward.blog.view.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * Summary of a post for post listings. It has an excerpt instead of the whole content.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PostSummary {
+    private Long id;
+    private String title;
+    private String excerpt;
+    private String username;
+    private Instant createdOn;
+    private Long imageId;
+    private Long viewCount;
+    private Long commentCount;
+}
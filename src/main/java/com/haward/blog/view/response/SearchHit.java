@@ -0,0 +1,20 @@
+package com.haward.blog.view.response;
+
+import lombok.Data;
+
+import java.time.Instant;
+
+/**
+ * A post or a comment matching a search query. The fields are read from the search index, not from DB.
+ */
+@Data
+public class SearchHit {
+    private String type;        // post or comment
+    private Long id;            // post id or comment id
+    private Long postId;        // post of the hit (same as id for a post)
+    private String title;       // title of a post, null for a comment
+    private String excerpt;     // beginning of the content
+    private String username;    // creator's username
+    private Instant createdOn;
+    private float score;        // relevance, higher first
+}
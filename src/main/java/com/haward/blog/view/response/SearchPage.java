@@ -0,0 +1,15 @@
+package com.haward.blog.view.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A page of search results, most relevant first
+ */
+@Data
+public class SearchPage {
+    private List<SearchHit> items;
+    private long totalHits;         // number of matches (a lower bound if totalHitsExact is false)
+    private boolean totalHitsExact; // false if there are too many matches to be counted exactly
+}
@@ -0,0 +1,19 @@
+package com.haward.blog.view.response;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Progress of a resumable upload session
+ */
+@Data
+public class UploadStatus {
+
+    private String uploadId;
+    private long fileSize;
+    private long chunkSize;          // recommended size of a chunk
+    private long receivedBytes;
+    private List<long[]> received;   // received byte ranges [start, end), sorted by start
+    private boolean complete;        // true after the upload has been staged into blob store
+}
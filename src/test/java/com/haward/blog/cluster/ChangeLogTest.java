@@ -0,0 +1,179 @@
+package com.haward.blog.cluster;
+
+import com.haward.blog.comment.CommentStore;
+import com.haward.blog.event.RemoteChangeEvent;
+import com.haward.blog.id.SnowflakeIdGenerator;
+import com.haward.blog.model.Comment;
+import com.haward.blog.model.User;
+import com.haward.blog.repository.CommentRepository;
+import com.haward.blog.repository.UserRepository;
+import com.haward.blog.security.AuthComponent;
+import com.haward.blog.security.ContentService;
+import com.haward.blog.security.userdetails.CustomUserDetails;
+import com.haward.blog.view.request.CommentItem;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Two instances sharing the change log of an embedded H2 database (MySQL mode): the comments created and deleted
+ * on one instance are dropped from the second-level cache of the other one.
+ */
+class ChangeLogTest {
+
+    private JdbcTemplate jdbcTemplate;
+
+    private ChangeLog local; // change log of the instance serving the writes
+
+    private ChangeLog remote; // change log of another instance
+
+    private final List<RemoteChangeEvent> localEvents = new ArrayList<>();
+
+    private Cache remoteCache; // second-level cache of the other instance
+
+    private ContentService contentService; // content service of the instance serving the writes
+
+    private CommentStore commentStore;
+
+    @BeforeEach
+    void setUp() {
+        String url = "jdbc:h2:mem:cluster-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""));
+
+        local = newChangeLog(1, event -> localEvents.add((RemoteChangeEvent) event));
+
+        remoteCache = mock(Cache.class);
+        SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getCache()).thenReturn(remoteCache);
+        EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+        when(entityManagerFactory.unwrap(SessionFactory.class)).thenReturn(sessionFactory);
+        CacheInvalidator invalidator = new CacheInvalidator();
+        ReflectionTestUtils.setField(invalidator, "entityManagerFactory", entityManagerFactory);
+        remote = newChangeLog(2, event -> invalidator.onRemoteChange((RemoteChangeEvent) event));
+
+        commentStore = mock(CommentStore.class);
+        when(commentStore.save(any())).thenAnswer(invocation -> {
+            Comment comment = invocation.getArgument(0);
+            comment.setId(42L);
+            return comment;
+        });
+        CustomUserDetails user = mock(CustomUserDetails.class);
+        when(user.getUsername()).thenReturn("alice");
+        AuthComponent authComponent = mock(AuthComponent.class);
+        when(authComponent.getCurrentUser()).thenReturn(Optional.of(user));
+        contentService = new ContentService();
+        ReflectionTestUtils.setField(contentService, "commentStore", commentStore);
+        ReflectionTestUtils.setField(contentService, "authComponent", authComponent);
+        ReflectionTestUtils.setField(contentService, "changeLog", local);
+        ReflectionTestUtils.setField(contentService, "eventPublisher", (ApplicationEventPublisher) event -> { });
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void createdCommentEvictsTheCommentQueriesOfOtherInstances() {
+        CommentItem item = new CommentItem();
+        item.setPostId(7L);
+        item.setContent("first!");
+        contentService.createComment(item);
+
+        verifyNoInteractions(remoteCache); // nothing is evicted before the change log is read
+        remote.poll();
+        verify(remoteCache).evictQueryRegion(CommentRepository.COMMENT_QUERIES);
+
+        local.poll();
+        assertTrue(localEvents.isEmpty(), "an instance reads back its own writes");
+    }
+
+    @Test
+    void deletedCommentEvictsTheCommentAndTheCommentQueriesOfOtherInstances() {
+        Comment comment = new Comment();
+        comment.setId(42L);
+        comment.setPostId(7L);
+        when(commentStore.findById(42L)).thenReturn(Optional.of(comment));
+
+        contentService.deleteComment(42L);
+        remote.poll();
+
+        verify(commentStore).delete(comment);
+        verify(remoteCache).evictEntityData(Comment.class, 42L);
+        verify(remoteCache).evictQueryRegion(CommentRepository.COMMENT_QUERIES);
+    }
+
+    @Test
+    void savedUserEvictsTheUserOfOtherInstances() {
+        local.record(ChangeLog.USER_SAVED, 3L);
+        remote.poll();
+
+        verify(remoteCache).evictEntityData(User.class, 3L);
+        verify(remoteCache).evictQueryRegion(UserRepository.USER_QUERIES);
+    }
+
+    @Test
+    void everyChangeIsPublishedOnceAcrossPolls() {
+        local.recordAll(ChangeLog.COMMENT_DELETED, Arrays.asList(1L, 2L));
+        remote.poll();
+        local.record(ChangeLog.COMMENT_DELETED, 3L); // committed after the first read, still above the watermark
+        remote.poll();
+        remote.poll();
+
+        verify(remoteCache, times(1)).evictEntityData(Comment.class, 1L);
+        verify(remoteCache, times(1)).evictEntityData(Comment.class, 2L);
+        verify(remoteCache, times(1)).evictEntityData(Comment.class, 3L);
+        verify(remoteCache, times(3)).evictQueryRegion(CommentRepository.COMMENT_QUERIES);
+    }
+
+    @Test
+    void rowsOlderThanTheRetentionArePurged() {
+        local.record(ChangeLog.COMMENT_DELETED, 1L);
+        local.purge();
+        assertEquals(1, count());
+
+        ReflectionTestUtils.setField(local, "retention", -60000L); // every row is older than the retention
+        local.purge();
+        assertEquals(0, count());
+    }
+
+    private ChangeLog newChangeLog(int node, ApplicationEventPublisher eventPublisher) {
+        ChangeLog changeLog = new ChangeLog();
+        ReflectionTestUtils.setField(changeLog, "jdbcTemplate", jdbcTemplate);
+        SnowflakeIdGenerator idGenerator = new SnowflakeIdGenerator();
+        ReflectionTestUtils.setField(idGenerator, "node", (long) node);
+        ReflectionTestUtils.setField(changeLog, "idGenerator", idGenerator);
+        ReflectionTestUtils.setField(changeLog, "eventPublisher", eventPublisher);
+        ReflectionTestUtils.setField(changeLog, "node", node);
+        ReflectionTestUtils.setField(changeLog, "lag", 10000L);
+        ReflectionTestUtils.setField(changeLog, "retention", 3600000L);
+        changeLog.init();
+        return changeLog;
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM change_log", Integer.class);
+    }
+}
@@ -0,0 +1,295 @@
+package com.haward.blog.comment;
+
+import com.haward.blog.id.SnowflakeIdGenerator;
+import com.haward.blog.model.Comment;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sharding over embedded H2 databases (MySQL mode): routing of the posts, queries over the shards,
+ * lookups by comment id, and rebalancing after a shard has been appended or a DB retired.
+ */
+class ShardedCommentStoreTest {
+
+    private static final int POSTS = 30000; // posts routed in the distribution tests
+
+    private final SnowflakeIdGenerator idGenerator = new SnowflakeIdGenerator();
+
+    private final List<String> urls = new ArrayList<>(); // every DB created by a test, dropped after it
+    private final List<ShardedCommentStore> stores = new ArrayList<>();
+
+    private JdbcTemplate applicationDb; // keeps the posts of the comments
+
+    @BeforeEach
+    void setUp() {
+        String url = "jdbc:h2:mem:application-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+        urls.add(url);
+        applicationDb = new JdbcTemplate(new DriverManagerDataSource(url, "sa", ""));
+    }
+
+    @AfterEach
+    void tearDown() {
+        stores.forEach(ShardedCommentStore::close);
+        for (String url : urls) {
+            new JdbcTemplate(new DriverManagerDataSource(url, "sa", "")).execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    void routingIsStableAndBalanced() {
+        List<String> shards = newUrls(3);
+        ShardedCommentStore store = newStore(shards);
+        ShardedCommentStore restarted = newStore(shards);
+
+        int[] counts = new int[3];
+        for (long postId : postIds()) {
+            int index = store.indexOf(postId);
+            assertEquals(index, store.indexOf(postId));
+            assertEquals(index, restarted.indexOf(postId));
+            counts[index]++;
+        }
+        for (int count : counts) {
+            assertTrue(Math.abs(count - POSTS / 3) < POSTS / 30, "unbalanced shards " + Arrays.toString(counts));
+        }
+    }
+
+    @Test
+    void appendingAShardMovesOneShareOfThePostsToIt() {
+        List<String> shards = newUrls(3);
+        ShardedCommentStore before = newStore(shards.subList(0, 2));
+        ShardedCommentStore after = newStore(shards);
+
+        int moved = 0;
+        for (long postId : postIds()) {
+            int index = after.indexOf(postId);
+            if (index != before.indexOf(postId)) {
+                assertEquals(2, index, "post " + postId + " moved to an old shard");
+                moved++;
+            }
+        }
+        // 1 / (n + 1) of the posts move when the shards grow from n = 2 to 3
+        assertTrue(Math.abs(moved - POSTS / 3) < POSTS / 30, moved + " posts moved out of " + POSTS);
+    }
+
+    @Test
+    void saveAllWritesEachCommentToTheShardOfItsPost() {
+        ShardedCommentStore store = newStore(newUrls(3));
+        List<Comment> comments = newComments(20, 3);
+
+        store.saveAll(comments);
+        store.saveAll(comments); // a retried call skips the comments already written
+
+        assertEquals(comments.size(), countAll(store));
+        for (Comment comment : comments) {
+            JdbcTemplate shard = store.getJdbcTemplate(store.indexOf(comment.getPostId()));
+            assertEquals(1, shard.queryForObject("SELECT COUNT(*) FROM comment WHERE id = ?", Integer.class,
+                    comment.getId()));
+            assertEquals(comment, store.findById(comment.getId()).orElse(null));
+        }
+        for (int index = 0; index < 3; index++) {
+            assertTrue(count(store.getJdbcTemplate(index)) > 0, "shard " + index + " is empty");
+        }
+        Long postId = comments.get(0).getPostId();
+        assertEquals(comments.subList(0, 3), store.findByPostId(postId));
+    }
+
+    @Test
+    void commentIsFoundByIdInTheShardOfItsPostOnly() {
+        ShardedCommentStore store = newStore(newUrls(3));
+        List<Comment> comments = newComments(20, 1);
+        store.saveAll(comments.subList(0, 10));
+        comments.subList(10, 20).forEach(store::save);
+
+        Comment comment = comments.get(0);
+        int index = store.indexOf(comment.getPostId());
+        for (int other = 0; other < 3; other++) {
+            if (other != index) {
+                store.getJdbcTemplate(other).execute("DROP TABLE comment"); // any query would fail
+            }
+        }
+        assertEquals(comment, store.findById(comment.getId()).orElse(null));
+        assertEquals(comment.getCreatedOn(), store.findCreatedOnById(comment.getId()).orElse(null));
+
+        store.delete(comment);
+        assertFalse(store.findById(comment.getId()).isPresent());
+        assertEquals(0, applicationDb.queryForObject("SELECT COUNT(*) FROM comment_post WHERE comment_id = ?",
+                Integer.class, comment.getId()));
+        assertFalse(store.findById(idGenerator.nextId()).isPresent()); // unknown id
+    }
+
+    @Test
+    void rebalancerKeepsThePostsOfCommentsWrittenBeforeTheirTable() {
+        ShardedCommentStore store = newStore(newUrls(2));
+        List<Comment> comments = newComments(10, 2);
+        store.saveAll(comments);
+        applicationDb.execute("DELETE FROM comment_post");
+        assertFalse(store.findById(comments.get(0).getId()).isPresent());
+
+        newRebalancer(store).rebalance();
+        assertBalanced(store, comments);
+    }
+
+    @Test
+    void findAfterIdMergesTheShardsInIdOrder() {
+        ShardedCommentStore store = newStore(newUrls(3));
+        List<Comment> comments = newComments(20, 5);
+        store.saveAll(comments);
+        List<Long> expected = ids(comments);
+        Collections.sort(expected);
+
+        List<Long> found = new ArrayList<>();
+        long after = 0;
+        List<Comment> page;
+        do {
+            page = store.findAfterId(after, 7);
+            found.addAll(ids(page));
+            if (!page.isEmpty()) {
+                after = page.get(page.size() - 1).getId();
+            }
+        } while (page.size() == 7);
+        assertEquals(expected, found);
+    }
+
+    @Test
+    void rebalancerMovesCommentsToAnAppendedShard() {
+        List<String> shards = newUrls(3);
+        ShardedCommentStore before = newStore(shards.subList(0, 2));
+        List<Comment> comments = newComments(60, 2);
+        before.saveAll(comments);
+
+        ShardedCommentStore after = newStore(shards);
+        assertTrue(comments.stream().anyMatch(comment -> after.indexOf(comment.getPostId()) == 2),
+                "no post moves to the new shard");
+        assertEquals(0, count(after.getJdbcTemplate(2)));
+        newRebalancer(after).rebalance();
+        assertBalanced(after, comments);
+
+        newRebalancer(after).rebalance(); // nothing left to move
+        assertBalanced(after, comments);
+    }
+
+    @Test
+    void rebalancerEmptiesARetiredDb() {
+        List<String> retired = newUrls(1);
+        List<Comment> comments = newComments(30, 2);
+        newStore(retired).saveAll(comments);
+
+        ShardedCommentStore store = newStore(newUrls(2));
+        // a comment copied by an interrupted run is still in the retired DB
+        Comment copied = comments.get(0);
+        store.save(copied);
+
+        CommentRebalancer rebalancer = newRebalancer(store, retired.get(0));
+        rebalancer.rebalance();
+        assertBalanced(store, comments);
+        assertEquals(0, count(new JdbcTemplate(new DriverManagerDataSource(retired.get(0), "sa", ""))));
+
+        rebalancer.rebalance();
+        assertBalanced(store, comments);
+    }
+
+    /**
+     * Check that every comment is in the shard of its post, once
+     */
+    private void assertBalanced(ShardedCommentStore store, List<Comment> comments) {
+        assertEquals(comments.size(), countAll(store));
+        for (Comment comment : comments) {
+            assertEquals(comment, store.findByPostId(comment.getPostId()).stream()
+                    .filter(found -> found.getId().equals(comment.getId())).findFirst().orElse(null));
+            assertEquals(comment, store.findById(comment.getId()).orElse(null));
+        }
+    }
+
+    private ShardedCommentStore newStore(List<String> shards) {
+        ShardedCommentStore store = new ShardedCommentStore();
+        ReflectionTestUtils.setField(store, "idGenerator", idGenerator);
+        ReflectionTestUtils.setField(store, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(store, "jdbcTemplate", applicationDb);
+        ReflectionTestUtils.setField(store, "urls", new ArrayList<>(shards));
+        ReflectionTestUtils.setField(store, "username", "sa");
+        ReflectionTestUtils.setField(store, "password", "");
+        ReflectionTestUtils.setField(store, "poolSize", 2);
+        store.init();
+        stores.add(store);
+        return store;
+    }
+
+    private CommentRebalancer newRebalancer(ShardedCommentStore store, String... retiredUrls) {
+        CommentRebalancer rebalancer = new CommentRebalancer();
+        ReflectionTestUtils.setField(rebalancer, "store", store);
+        ReflectionTestUtils.setField(rebalancer, "retiredUrls", Arrays.asList(retiredUrls));
+        return rebalancer;
+    }
+
+    private List<String> newUrls(int count) {
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            created.add("jdbc:h2:mem:shard-" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1");
+        }
+        urls.addAll(created);
+        return created;
+    }
+
+    private List<Long> postIds() {
+        List<Long> postIds = new ArrayList<>();
+        for (int i = 0; i < POSTS; i++) {
+            postIds.add(idGenerator.nextId());
+        }
+        return postIds;
+    }
+
+    /**
+     * Create comments, grouped by post
+     */
+    private List<Comment> newComments(int posts, int commentsPerPost) {
+        Instant now = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+        List<Comment> comments = new ArrayList<>();
+        for (int p = 0; p < posts; p++) {
+            long postId = idGenerator.nextId();
+            for (int c = 0; c < commentsPerPost; c++) {
+                Comment comment = new Comment();
+                comment.setId(idGenerator.nextId());
+                comment.setContent("comment " + c + " of " + postId);
+                comment.setCreatedOn(now.plusMillis(c));
+                comment.setUsername("user" + c);
+                comment.setPostId(postId);
+                comments.add(comment);
+            }
+        }
+        return comments;
+    }
+
+    private static List<Long> ids(List<Comment> comments) {
+        return comments.stream().map(Comment::getId).collect(Collectors.toList());
+    }
+
+    private static int countAll(ShardedCommentStore store) {
+        int count = 0;
+        for (int index = 0; index < store.getShardCount(); index++) {
+            count += count(store.getJdbcTemplate(index));
+        }
+        return count;
+    }
+
+    private static int count(JdbcTemplate db) {
+        return db.queryForObject("SELECT COUNT(*) FROM comment", Integer.class);
+    }
+}
@@ -0,0 +1,223 @@
+package com.haward.blog.feed;
+
+import com.haward.blog.view.request.PostItem;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Window of the latest posts: merge of loads and concurrent adds, bounds, and pages and cursors at its edges.
+ */
+class LatestPostsFeedTest {
+
+    private static final Instant T0 = Instant.parse("2026-01-01T00:00:00Z");
+
+    @Test
+    void windowAnswersNothingUntilLoaded() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.add(post(1, 1));
+
+        assertFalse(feed.isLoaded());
+        assertNull(feed.readPage(0, 5));
+        assertNull(feed.read(new KeysetCursor(T0.plusSeconds(5), 5), false, 5));
+    }
+
+    @Test
+    void loadKeepsThePostsAddedWhileLoading() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.add(post(4, 4)); // committed after the load query ran
+
+        feed.load(posts(3, 2, 1), true);
+
+        assertEquals(Arrays.asList(4L, 3L, 2L, 1L), feed.getLatestIds());
+        assertTrue(feed.isLoaded());
+    }
+
+    @Test
+    void loadAndAddSkipDuplicatesAndSortLatestFirst() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.load(posts(5, 3, 1), true);
+
+        feed.add(post(3, 3)); // already in the window (i.e. loaded, then its event arrived)
+        feed.add(post(4, 4)); // committed out of order
+        feed.add(post(6, 6));
+        feed.load(posts(6, 5, 4, 3, 2), false);
+
+        assertEquals(Arrays.asList(6L, 5L, 4L, 3L, 2L, 1L), feed.getLatestIds());
+    }
+
+    @Test
+    void postsAtTheSameInstantAreOrderedById() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.load(Collections.emptyList(), true);
+        feed.add(post(7, 1));
+        feed.add(post(9, 1));
+        feed.add(post(8, 1));
+
+        assertEquals(Arrays.asList(9L, 8L, 7L), feed.getLatestIds());
+    }
+
+    @Test
+    void windowIsBoundedAndNoLongerComplete() {
+        LatestPostsFeed feed = newFeed(3);
+        feed.load(posts(3, 2, 1), true);
+        assertEquals(posts(3, 2, 1), feed.readPage(0, 5)); // complete: a short page is the whole feed
+
+        feed.add(post(4, 4));
+
+        assertEquals(Arrays.asList(4L, 3L, 2L), feed.getLatestIds());
+        assertNull(feed.readPage(0, 5)); // post 1 is only in DB
+        assertEquals(posts(4, 3), feed.readPage(0, 2));
+        assertNull(feed.readPage(1, 2));
+    }
+
+    @Test
+    void pagesBeyondACompleteWindowAreEmpty() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.load(posts(5, 4, 3, 2, 1), true);
+
+        assertEquals(posts(5, 4), feed.readPage(0, 2));
+        assertEquals(posts(1), feed.readPage(2, 2));
+        assertEquals(Collections.emptyList(), feed.readPage(3, 2));
+        assertEquals(Collections.emptyList(), feed.readPage(Integer.MAX_VALUE, 2));
+    }
+
+    @Test
+    void olderPostsAfterACursorSkipTheCursorPost() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.load(posts(5, 4, 3, 2, 1), true);
+
+        assertEquals(posts(3, 2), feed.read(cursor(4), false, 2));
+        assertEquals(posts(1), feed.read(cursor(2), false, 2));
+        assertEquals(Collections.emptyList(), feed.read(cursor(1), false, 2));
+        // a deleted cursor post: the feed goes on from its position
+        assertEquals(posts(2, 1), feed.read(new KeysetCursor(T0.plusSeconds(2).plusMillis(500), 99), false, 5));
+    }
+
+    @Test
+    void olderPostsBeyondAnIncompleteWindowAreReadFromDb() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.load(posts(5, 4, 3, 2, 1), false);
+
+        assertEquals(posts(3, 2), feed.read(cursor(4), false, 2));
+        assertNull(feed.read(cursor(2), false, 2)); // only post 1 is in the window
+        assertNull(feed.read(cursor(1), false, 2));
+    }
+
+    @Test
+    void newerPostsAfterACursorAreOldestFirst() {
+        LatestPostsFeed feed = newFeed(10);
+        feed.load(posts(5, 4, 3, 2, 1), false);
+
+        assertEquals(posts(3, 4), feed.read(cursor(2), true, 2));
+        assertEquals(posts(3, 4, 5), feed.read(cursor(2), true, 10));
+        assertEquals(Collections.emptyList(), feed.read(cursor(5), true, 10));
+        // a cursor older than an incomplete window may have newer posts in DB only
+        assertNull(feed.read(new KeysetCursor(T0, 0), true, 10));
+    }
+
+    @Test
+    void watermarkChangesWithTheIdsOfTheWindowOnly() {
+        LatestPostsFeed feed = newFeed(10);
+        LatestPostsFeed other = newFeed(10);
+        feed.load(posts(3, 2, 1), true);
+        other.add(post(1, 1));
+        other.add(post(3, 3));
+        other.load(posts(2), true);
+        assertEquals(feed.getWatermark(), other.getWatermark()); // same posts on another instance
+
+        long watermark = feed.getWatermark();
+        feed.update(item -> {
+            PostItem copy = post(item.getId(), item.getId());
+            copy.setViewCount(100);
+            return copy;
+        });
+        assertEquals(watermark, feed.getWatermark());
+        assertEquals(100, feed.readPage(0, 1).get(0).getViewCount());
+
+        feed.add(post(4, 0)); // older than every post of the window
+        assertNotEquals(watermark, feed.getWatermark());
+    }
+
+    @Test
+    void concurrentAddsAndLoadsKeepEveryPost() throws Exception {
+        int threads = 4;
+        int postsPerThread = 200;
+        LatestPostsFeed feed = newFeed(threads * postsPerThread);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int first = t * postsPerThread + 1;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int id = first; id < first + postsPerThread; id++) {
+                        feed.add(post(id, id));
+                    }
+                    return null;
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < 50; i++) {
+                    feed.load(Collections.emptyList(), true);
+                }
+                return null;
+            }));
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Long> expected = new ArrayList<>();
+        for (long id = threads * postsPerThread; id >= 1; id--) {
+            expected.add(id);
+        }
+        assertEquals(expected, feed.getLatestIds());
+    }
+
+    private static LatestPostsFeed newFeed(int window) {
+        LatestPostsFeed feed = new LatestPostsFeed();
+        ReflectionTestUtils.setField(feed, "window", window);
+        return feed;
+    }
+
+    private static KeysetCursor cursor(long id) {
+        return new KeysetCursor(T0.plusSeconds(id), id);
+    }
+
+    private static List<PostItem> posts(long... ids) {
+        return Arrays.stream(ids).mapToObj(id -> post(id, id)).collect(Collectors.toList());
+    }
+
+    /**
+     * Post created at T0 + given seconds
+     */
+    private static PostItem post(long id, long seconds) {
+        PostItem item = new PostItem();
+        item.setId(id);
+        item.setTitle("post " + id);
+        item.setCreatedOn(T0.plusSeconds(seconds));
+        return item;
+    }
+}
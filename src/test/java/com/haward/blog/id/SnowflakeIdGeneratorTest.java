@@ -0,0 +1,132 @@
+package com.haward.blog.id;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakeIdGeneratorTest {
+
+    private static final int SHIFT = SnowflakeIdGenerator.NODE_BITS + SnowflakeIdGenerator.SEQUENCE_BITS;
+
+    private final AtomicLong now = new AtomicLong(SnowflakeIdGenerator.EPOCH + 1000); // 1 s after the epoch
+
+    @Test
+    void idsAreUniqueAndIncreasing() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, System::currentTimeMillis);
+        Set<Long> ids = new HashSet<>();
+        long previous = -1;
+        for (int i = 0; i < 100000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > previous, "id " + id + " is not greater than " + previous);
+            assertTrue(ids.add(id), "id " + id + " is duplicated");
+            previous = id;
+        }
+    }
+
+    @Test
+    void idsKeepIncreasingWhenClockGoesBack() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, now::get);
+        long beforeRegression = generator.nextId();
+
+        now.addAndGet(-500);
+        long previous = beforeRegression;
+        for (int i = 0; i < 1000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > previous, "id " + id + " is not greater than " + previous);
+            previous = id;
+        }
+
+        // the clock catches up: ids use the clock again and still increase
+        now.addAndGet(10000);
+        long afterCatchUp = generator.nextId();
+        assertTrue(afterCatchUp > previous);
+        assertEquals(now.get() - SnowflakeIdGenerator.EPOCH, afterCatchUp >>> SHIFT);
+    }
+
+    @Test
+    void sequenceOverflowBorrowsNextMillisecond() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, now::get);
+        long timestamp = now.get() - SnowflakeIdGenerator.EPOCH;
+        int perMillisecond = (int) SnowflakeIdGenerator.SEQUENCE_MASK + 1;
+
+        long previous = -1;
+        for (int i = 0; i < perMillisecond; i++) {
+            long id = generator.nextId();
+            assertEquals(timestamp, id >>> SHIFT);
+            assertEquals(i, id & SnowflakeIdGenerator.SEQUENCE_MASK);
+            assertTrue(id > previous);
+            previous = id;
+        }
+
+        long overflow = generator.nextId();
+        assertEquals(timestamp + 1, overflow >>> SHIFT);
+        assertEquals(0, overflow & SnowflakeIdGenerator.SEQUENCE_MASK);
+        assertTrue(overflow > previous);
+
+        // the clock reaches the borrowed millisecond: ids go on without reuse
+        now.incrementAndGet();
+        long next = generator.nextId();
+        assertEquals(timestamp + 1, next >>> SHIFT);
+        assertEquals(1, next & SnowflakeIdGenerator.SEQUENCE_MASK);
+    }
+
+    @Test
+    void nodeIdIsInItsBits() {
+        SnowflakeIdGenerator first = new SnowflakeIdGenerator(5, now::get);
+        SnowflakeIdGenerator last = new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE, now::get);
+        Set<Long> ids = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            long a = first.nextId();
+            long b = last.nextId();
+            assertEquals(5, (a >>> SnowflakeIdGenerator.SEQUENCE_BITS) & SnowflakeIdGenerator.MAX_NODE);
+            assertEquals(SnowflakeIdGenerator.MAX_NODE,
+                    (b >>> SnowflakeIdGenerator.SEQUENCE_BITS) & SnowflakeIdGenerator.MAX_NODE);
+            assertTrue(ids.add(a) && ids.add(b), "nodes generated the same id");
+        }
+    }
+
+    @Test
+    void idsFitInJavaScriptNumbers() {
+        now.set(SnowflakeIdGenerator.EPOCH + 60L * 365 * 24 * 3600 * 1000); // 2081
+        long id = new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE, now::get).nextId();
+        assertTrue(id < (1L << 53));
+    }
+
+    @Test
+    void firstIdAtBoundsTheIdsOfATime() {
+        long time = now.get();
+        long firstId = SnowflakeIdGenerator.firstIdAt(time);
+        now.decrementAndGet();
+        long before = new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE, now::get).nextId();
+        now.incrementAndGet();
+        long at = new SnowflakeIdGenerator(0, now::get).nextId();
+        assertTrue(before < firstId);
+        assertEquals(firstId, at);
+        assertEquals(0, SnowflakeIdGenerator.firstIdAt(SnowflakeIdGenerator.EPOCH - 1));
+    }
+
+    @Test
+    void localIdsAreToldFromIdsOfOtherNodes() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(3, now::get);
+        SnowflakeIdGenerator other = new SnowflakeIdGenerator(4, now::get);
+        for (int i = 0; i < 200; i++) { // over a sequence overflow
+            assertTrue(generator.isLocal(generator.nextId()));
+            assertFalse(generator.isLocal(other.nextId()));
+        }
+        assertFalse(generator.isLocal(0));
+    }
+
+    @Test
+    void nodeIdIsChecked() {
+        assertThrows(IllegalStateException.class,
+                () -> new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE + 1, now::get));
+        assertThrows(IllegalStateException.class, () -> new SnowflakeIdGenerator(-1, now::get));
+    }
+}
@@ -0,0 +1,375 @@
+package com.haward.blog.replica;
+
+import com.haward.blog.feed.PostCache;
+import com.haward.blog.view.request.PostItem;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Routing between two embedded H2 databases: each one answers with its own name, and the heartbeat
+ * replication is done by the test. The reads and writes run in @Transactional methods, as in ContentService.
+ */
+class ReplicaRoutingDataSourceTest {
+
+    private static final int NODE = 3;
+    private static final long MAX_LAG = 100;
+
+    private JdbcTemplate primaryDb;
+    private JdbcTemplate replicaDb;
+    private FailingDataSource replica;
+    private ReplicaRoutingDataSource routing;
+    private NodeReader reader;
+    private final List<AnnotationConfigApplicationContext> contexts = new ArrayList<>();
+    private final List<JdbcTemplate> dbs = new ArrayList<>(); // every DB created by a test, dropped after it
+
+    private final ThreadLocal<String> client = new ThreadLocal<>(); // like the security context, null if unknown
+
+    @BeforeEach
+    void setUp() {
+        DataSource primary = embedded("primary");
+        replica = new FailingDataSource(embedded("replica"));
+        primaryDb = new JdbcTemplate(primary);
+        replicaDb = new JdbcTemplate(replica.getTargetDataSource());
+
+        routing = newRouting(primary, replica);
+        reader = newReader(routing);
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.remove();
+        RequestContextHolder.resetRequestAttributes();
+        contexts.forEach(AnnotationConfigApplicationContext::close);
+        dbs.forEach(db -> db.execute("DROP ALL OBJECTS"));
+    }
+
+    @Test
+    void readOnlyTransactionsGoToReplicaOnceItIsInSync() {
+        routing.checkReplicas(); // first heartbeat
+        assertEquals("primary", reader.readOnlyNode());
+
+        replicate();
+        routing.checkReplicas();
+        assertEquals("replica", reader.readOnlyNode());
+        assertEquals("primary", reader.readWriteNode());
+        assertEquals("primary", reader.nonTransactionalNode());
+    }
+
+    @Test
+    void writesGoToPrimary() {
+        syncReplica();
+        reader.write();
+        assertEquals(1, count(primaryDb));
+        assertEquals(0, count(replicaDb));
+    }
+
+    @Test
+    void laggingReplicaFallsBackToPrimary() throws InterruptedException {
+        syncReplica();
+        assertEquals("replica", reader.readOnlyNode());
+
+        // replication stops: the replica keeps an old heartbeat
+        Thread.sleep(MAX_LAG * 2);
+        routing.checkReplicas();
+        routing.checkReplicas();
+        assertEquals("primary", reader.readOnlyNode());
+
+        // replication catches up
+        replicate();
+        routing.checkReplicas();
+        assertEquals("replica", reader.readOnlyNode());
+    }
+
+    @Test
+    void failingReplicaFallsBackToPrimary() {
+        syncReplica();
+        assertEquals("replica", reader.readOnlyNode());
+
+        replica.failing = true;
+        routing.checkReplicas();
+        assertEquals("primary", reader.readOnlyNode());
+
+        replica.failing = false;
+        replicate();
+        routing.checkReplicas();
+        assertEquals("replica", reader.readOnlyNode());
+    }
+
+    @Test
+    void readsOfAClientGoToPrimaryAfterItsWrite() throws InterruptedException {
+        syncReplica();
+        client.set("alice");
+        reader.write();
+        assertEquals("primary", reader.readOnlyNode()); // the replica may not have the write yet
+        client.set("bob");
+        assertEquals("replica", reader.readOnlyNode());
+        client.set(null);
+        assertEquals("replica", reader.readOnlyNode());
+
+        // the write has reached the replica
+        Thread.sleep(MAX_LAG * 2);
+        syncReplica();
+        client.set("alice");
+        assertEquals("replica", reader.readOnlyNode());
+    }
+
+    @Test
+    void rolledBackWriteKeepsReadsOnReplica() {
+        syncReplica();
+        client.set("alice");
+        assertThrows(IllegalStateException.class, reader::failedWrite);
+        assertEquals("replica", reader.readOnlyNode());
+    }
+
+    @Test
+    void readsOfARequestStayOnOneReplica() {
+        DataSource primary = embedded("primary");
+        DataSource first = embedded("replica-0");
+        DataSource second = embedded("replica-1");
+        ReplicaRoutingDataSource twoReplicas = newRouting(primary, first, second);
+        NodeReader twoReplicasReader = newReader(twoReplicas);
+        twoReplicas.checkReplicas();
+        JdbcTemplate heartbeats = new JdbcTemplate(primary);
+        replicate(heartbeats, new JdbcTemplate(first));
+        replicate(heartbeats, new JdbcTemplate(second));
+        twoReplicas.checkReplicas();
+
+        // outside of a request, the reads are spread over the replicas
+        Set<String> nodes = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(twoReplicasReader.readOnlyNode());
+        }
+        assertEquals(new HashSet<>(Arrays.asList("replica-0", "replica-1")), nodes);
+
+        for (int request = 0; request < 4; request++) {
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+            String node = twoReplicasReader.readOnlyNode();
+            for (int i = 0; i < 4; i++) {
+                assertEquals(node, twoReplicasReader.readOnlyNode());
+            }
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    @Test
+    void requestGoesOnWithPrimaryOnceItsReplicaLags() throws InterruptedException {
+        syncReplica();
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        assertEquals("replica", reader.readOnlyNode());
+
+        Thread.sleep(MAX_LAG * 2);
+        routing.checkReplicas();
+        routing.checkReplicas();
+        assertEquals("primary", reader.readOnlyNode());
+
+        // the replica catches up, but it may be behind what the request has read from the primary
+        replicate();
+        routing.checkReplicas();
+        assertEquals("primary", reader.readOnlyNode());
+
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+        assertEquals("replica", reader.readOnlyNode());
+    }
+
+    @Test
+    void postLoadedByThePostCacheIsReadLikeTheRequest() throws InterruptedException {
+        ThreadPoolTaskExecutor postLoadExecutor = new ThreadPoolTaskExecutor(); // as in AsyncConfiguration
+        postLoadExecutor.setTaskDecorator(routing::withCurrentRoute);
+        postLoadExecutor.initialize();
+        try {
+            PostCache postCache = newPostCache(postLoadExecutor);
+            // a write stays recent for the whole test (max-lag plus one check interval), however slow the load
+            ReflectionTestUtils.setField(routing, "checkInterval", 60000L);
+            syncReplica();
+            client.set("alice");
+            reader.write();
+            assertEquals("primary", postCache.get(1L, this::loadNode).getTitle()); // read right after the write
+
+            client.set("bob");
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(new MockHttpServletRequest()));
+            assertEquals("replica", postCache.get(2L, this::loadNode).getTitle());
+            Thread.sleep(MAX_LAG * 2);
+            routing.checkReplicas();
+            routing.checkReplicas();
+            // the replica lags now, the request goes on with the primary and its next load as well
+            assertEquals("primary", reader.readOnlyNode());
+            replicate();
+            routing.checkReplicas();
+            assertEquals("primary", postCache.get(3L, this::loadNode).getTitle());
+        } finally {
+            postLoadExecutor.shutdown();
+        }
+    }
+
+    private PostItem loadNode(Long id) {
+        PostItem post = new PostItem();
+        post.setTitle(reader.readOnlyNode());
+        return post;
+    }
+
+    private static PostCache newPostCache(ThreadPoolTaskExecutor postLoadExecutor) {
+        PostCache postCache = new PostCache();
+        ReflectionTestUtils.setField(postCache, "postLoadExecutor", postLoadExecutor);
+        ReflectionTestUtils.setField(postCache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(postCache, "ttl", 30000L);
+        ReflectionTestUtils.setField(postCache, "refreshAhead", 5000L);
+        ReflectionTestUtils.setField(postCache, "staleTtl", 300000L);
+        ReflectionTestUtils.setField(postCache, "loadTimeout", 5000L);
+        ReflectionTestUtils.setField(postCache, "maxEntries", 100);
+        postCache.init();
+        return postCache;
+    }
+
+    private int count(JdbcTemplate db) {
+        return db.queryForObject("SELECT COUNT(*) FROM node WHERE name = 'written'", Integer.class);
+    }
+
+    /**
+     * Write a heartbeat, replicate it, then check the replica
+     */
+    private void syncReplica() {
+        routing.checkReplicas();
+        replicate();
+        routing.checkReplicas();
+    }
+
+    /**
+     * Copy the heartbeat of the primary to the replica, as the replication would
+     */
+    private void replicate() {
+        replicate(primaryDb, replicaDb);
+    }
+
+    private static void replicate(JdbcTemplate primaryDb, JdbcTemplate replicaDb) {
+        Long beat = primaryDb.queryForObject("SELECT beat FROM replica_heartbeat WHERE node_id = ?", Long.class, NODE);
+        replicaDb.update("MERGE INTO replica_heartbeat (node_id, beat) KEY (node_id) VALUES (?, ?)", NODE, beat);
+    }
+
+    private ReplicaRoutingDataSource newRouting(DataSource primary, DataSource... replicas) {
+        ReplicaRoutingDataSource routing = new ReplicaRoutingDataSource(primary, Arrays.asList(replicas), NODE,
+                MAX_LAG, new SimpleMeterRegistry());
+        routing.setClientKey(client::get);
+        routing.afterPropertiesSet();
+        return routing;
+    }
+
+    /**
+     * Reader over a routing data source, with the same setup as ReplicaRoutingConfiguration
+     */
+    private NodeReader newReader(ReplicaRoutingDataSource routing) {
+        DataSource dataSource = new LazyConnectionDataSourceProxy(routing);
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.registerBean(JdbcTemplate.class, () -> new JdbcTemplate(dataSource));
+        context.registerBean(PlatformTransactionManager.class, () -> new DataSourceTransactionManager(dataSource));
+        context.register(TransactionConfiguration.class, NodeReader.class);
+        context.refresh();
+        contexts.add(context);
+        return context.getBean(NodeReader.class);
+    }
+
+    /**
+     * Embedded DB answering with its name, with an empty heartbeat table
+     */
+    private DataSource embedded(String name) {
+        DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + name + "-" + UUID.randomUUID()
+                + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate db = new JdbcTemplate(dataSource);
+        db.execute("CREATE TABLE node (name VARCHAR(20))");
+        db.execute("CREATE TABLE replica_heartbeat (node_id INT NOT NULL PRIMARY KEY, beat BIGINT NOT NULL)");
+        db.update("INSERT INTO node VALUES (?)", name);
+        dbs.add(db);
+        return dataSource;
+    }
+
+    @Configuration
+    @EnableTransactionManagement
+    static class TransactionConfiguration {
+    }
+
+    /**
+     * Reads and writes in transactions, like the content service
+     */
+    static class NodeReader {
+
+        private final JdbcTemplate jdbcTemplate;
+
+        NodeReader(JdbcTemplate jdbcTemplate) {
+            this.jdbcTemplate = jdbcTemplate;
+        }
+
+        @Transactional(readOnly = true)
+        public String readOnlyNode() {
+            return nonTransactionalNode();
+        }
+
+        @Transactional
+        public String readWriteNode() {
+            return nonTransactionalNode();
+        }
+
+        @Transactional
+        public void write() {
+            jdbcTemplate.update("INSERT INTO node VALUES ('written')");
+        }
+
+        @Transactional
+        public void failedWrite() {
+            write();
+            throw new IllegalStateException("Rolled back");
+        }
+
+        public String nonTransactionalNode() {
+            return jdbcTemplate.queryForObject("SELECT name FROM node WHERE name <> 'written'", String.class);
+        }
+    }
+
+    /**
+     * Data source that can be made unreachable
+     */
+    private static class FailingDataSource extends DelegatingDataSource {
+
+        private volatile boolean failing;
+
+        FailingDataSource(DataSource target) {
+            super(target);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            if (failing) {
+                throw new SQLException("Replica is down");
+            }
+            return super.getConnection();
+        }
+    }
+}
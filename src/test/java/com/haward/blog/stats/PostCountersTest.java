@@ -0,0 +1,150 @@
+package com.haward.blog.stats;
+
+import com.haward.blog.event.CommentCreatedEvent;
+import com.haward.blog.event.CommentDeletedEvent;
+import com.haward.blog.event.PostStatsFlushedEvent;
+import com.haward.blog.model.Comment;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flush of the counted deltas to table 'post_stats' of an embedded H2 database (MySQL mode),
+ * and the backfill of the comments created before the counters existed.
+ */
+class PostCountersTest {
+
+    private JdbcTemplate jdbcTemplate;
+
+    private PostCounters counters;
+
+    private final List<PostStatsFlushedEvent> flushed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:stats-" + UUID.randomUUID()
+                + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE post_stats (post_id BIGINT NOT NULL PRIMARY KEY,"
+                + " view_count BIGINT NOT NULL, comment_count BIGINT NOT NULL)");
+        jdbcTemplate.execute("CREATE TABLE comment (id BIGINT NOT NULL PRIMARY KEY, post_id BIGINT NOT NULL)");
+
+        counters = newCounters(dataSource);
+    }
+
+    @AfterEach
+    void tearDown() {
+        jdbcTemplate.execute("DROP ALL OBJECTS");
+    }
+
+    @Test
+    void flushAddsTheCountedDeltasToTheStoredCounters() {
+        counters.recordView(1L);
+        counters.recordView(1L);
+        counters.onCommentCreated(new CommentCreatedEvent(comment(1L)));
+        counters.recordView(2L);
+        counters.flush();
+
+        assertEquals(Arrays.asList(2L, 1L), stats(1L));
+        assertEquals(Arrays.asList(1L, 0L), stats(2L));
+        assertEquals(0, counters.getPendingViews(1L));
+        assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), flushed.get(0).getPostIds());
+
+        counters.recordView(1L);
+        counters.onCommentCreated(new CommentCreatedEvent(comment(1L)));
+        long version = counters.getVersion();
+        counters.flush();
+
+        assertEquals(Arrays.asList(3L, 2L), stats(1L)); // added to the stored counters
+        assertEquals(Collections.singleton(1L), flushed.get(1).getPostIds());
+        assertTrue(counters.getVersion() > version);
+    }
+
+    @Test
+    void flushWithoutDeltaWritesNothing() {
+        counters.flush();
+
+        assertEquals(0, count());
+        assertTrue(flushed.isEmpty());
+    }
+
+    @Test
+    void deletedCommentNotCountedDoesNotMakeTheCountNegative() {
+        counters.onCommentDeleted(new CommentDeletedEvent(comment(1L))); // a post without row
+        counters.recordView(2L);
+        counters.flush();
+        counters.onCommentDeleted(new CommentDeletedEvent(comment(2L))); // a post with a row
+        counters.flush();
+
+        assertEquals(Arrays.asList(0L, 0L), stats(1L));
+        assertEquals(Arrays.asList(1L, 0L), stats(2L));
+    }
+
+    @Test
+    void backfillCountsTheExistingCommentsOnce() {
+        insertComment(1L, 7L);
+        insertComment(2L, 7L);
+        insertComment(3L, 8L);
+        jdbcTemplate.update("INSERT INTO post_stats VALUES (7, 5, 1)"); // comment 2 counted since the upgrade
+
+        counters.backfill();
+        assertEquals(Arrays.asList(5L, 2L), stats(7L)); // the views are kept
+        assertEquals(Arrays.asList(0L, 1L), stats(8L));
+
+        // the next startups, or the other instances, do not count them again
+        insertComment(4L, 8L);
+        counters.onCommentCreated(new CommentCreatedEvent(comment(8L)));
+        counters.flush();
+        newCounters(jdbcTemplate.getDataSource()).backfill();
+        counters.backfill();
+        assertEquals(Arrays.asList(0L, 2L), stats(8L));
+    }
+
+    private PostCounters newCounters(DataSource dataSource) {
+        PostCounters postCounters = new PostCounters();
+        ReflectionTestUtils.setField(postCounters, "jdbcTemplate", new JdbcTemplate(dataSource));
+        ReflectionTestUtils.setField(postCounters, "transactionManager", new DataSourceTransactionManager(dataSource));
+        ReflectionTestUtils.setField(postCounters, "eventPublisher",
+                (ApplicationEventPublisher) event -> flushed.add((PostStatsFlushedEvent) event));
+        postCounters.init();
+        return postCounters;
+    }
+
+    private static Comment comment(Long postId) {
+        Comment comment = new Comment();
+        comment.setPostId(postId);
+        return comment;
+    }
+
+    private void insertComment(Long id, Long postId) {
+        jdbcTemplate.update("INSERT INTO comment (id, post_id) VALUES (?, ?)", id, postId);
+    }
+
+    /**
+     * @return View count and comment count of a post
+     */
+    private List<Long> stats(Long postId) {
+        return jdbcTemplate.queryForObject("SELECT view_count, comment_count FROM post_stats WHERE post_id = ?",
+                (rs, row) -> Arrays.asList(rs.getLong(1), rs.getLong(2)), postId);
+    }
+
+    private int count() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM post_stats", Integer.class);
+    }
+}
@@ -0,0 +1,163 @@
+package com.haward.blog.storage;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Range, If-Range and HEAD handling of image responses, from file and from the off-heap cache.
+ */
+class ImageStreamerTest {
+
+    private static final String ETAG = "\"img-1\"";
+
+    @TempDir
+    Path root;
+
+    private final byte[] content = new byte[1000];
+
+    private ImageStreamer streamer;
+
+    private String key;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        FileSystemBlobStore blobStore = new FileSystemBlobStore();
+        ReflectionTestUtils.setField(blobStore, "root", root.toString());
+        blobStore.init();
+        key = blobStore.put(new ByteArrayInputStream(content)).getKey();
+
+        streamer = new ImageStreamer();
+        ReflectionTestUtils.setField(streamer, "blobStore", blobStore);
+        ReflectionTestUtils.setField(streamer, "imageCache", newCache(0)); // every image is streamed from file
+    }
+
+    @Test
+    void noRangeSendsTheWholeImage() throws Exception {
+        MockHttpServletResponse response = get(new MockHttpServletRequest("GET", "/"));
+
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals(content.length, response.getContentLengthLong());
+        assertEquals("bytes", response.getHeader(HttpHeaders.ACCEPT_RANGES));
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void singleRangeSendsPartialContent() throws Exception {
+        MockHttpServletResponse response = get(range("bytes=100-199"));
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(100, response.getContentLengthLong());
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getContentAsByteArray());
+    }
+
+    @Test
+    void openAndSuffixRangesAreClampedToTheImage() throws Exception {
+        MockHttpServletResponse open = get(range("bytes=900-"));
+        assertEquals("bytes 900-999/1000", open.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 900, 1000), open.getContentAsByteArray());
+
+        MockHttpServletResponse suffix = get(range("bytes=-10"));
+        assertEquals("bytes 990-999/1000", suffix.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertArrayEquals(Arrays.copyOfRange(content, 990, 1000), suffix.getContentAsByteArray());
+
+        MockHttpServletResponse beyondEnd = get(range("bytes=500-5000"));
+        assertEquals("bytes 500-999/1000", beyondEnd.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(500, beyondEnd.getContentAsByteArray().length);
+    }
+
+    @Test
+    void rangeStartingAfterTheImageIsNotSatisfiable() throws Exception {
+        MockHttpServletResponse response = get(range("bytes=1000-1100"));
+
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void multipleOrMalformedRangesSendTheWholeImage() throws Exception {
+        for (String header : new String[] {"bytes=0-9,20-29", "bytes=abc", "items=0-9"}) {
+            MockHttpServletResponse response = get(range(header));
+            assertEquals(HttpServletResponse.SC_OK, response.getStatus(), header);
+            assertNull(response.getHeader(HttpHeaders.CONTENT_RANGE), header);
+            assertArrayEquals(content, response.getContentAsByteArray(), header);
+        }
+    }
+
+    @Test
+    void ifRangeHonoursTheRangeOnlyForTheCurrentVersion() throws Exception {
+        MockHttpServletRequest current = range("bytes=0-9");
+        current.addHeader(HttpHeaders.IF_RANGE, ETAG);
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, get(current).getStatus());
+
+        MockHttpServletRequest other = range("bytes=0-9");
+        other.addHeader(HttpHeaders.IF_RANGE, "\"img-2\"");
+        MockHttpServletResponse response = get(other);
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    void headSendsTheHeadersOnly() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("HEAD", "/");
+        request.addHeader(HttpHeaders.RANGE, "bytes=10-19");
+        MockHttpServletResponse response = get(request);
+
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 10-19/1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(10, response.getContentLengthLong());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    void cachedImageServesTheSameRanges() throws Exception {
+        ReflectionTestUtils.setField(streamer, "imageCache", newCache(1 << 20));
+        get(new MockHttpServletRequest("GET", "/")); // miss, image is admitted
+
+        MockHttpServletResponse response = get(range("bytes=100-199"));
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.getContentAsByteArray());
+        assertArrayEquals(content, get(new MockHttpServletRequest("GET", "/")).getContentAsByteArray());
+    }
+
+    private MockHttpServletResponse get(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        streamer.write(request, response, key, content.length, "image/png", "image.png", ETAG);
+        return response;
+    }
+
+    private static MockHttpServletRequest range(String header) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader(HttpHeaders.RANGE, header);
+        return request;
+    }
+
+    private static ImageCache newCache(long maxBytes) {
+        ImageCache cache = new ImageCache();
+        ReflectionTestUtils.setField(cache, "meterRegistry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cache, "maxBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxEntryBytes", maxBytes);
+        ReflectionTestUtils.setField(cache, "maxMetadata", 10);
+        cache.init();
+        return cache;
+    }
+}
@@ -0,0 +1,220 @@
+package com.haward.blog.storage;
+
+import com.haward.blog.security.exception.ContentNotFoundException;
+import com.haward.blog.security.exception.InvalidUploadException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Upload sessions over a temp staging area and blob store: limits, completion against concurrent chunks,
+ * and single use of a completed upload.
+ */
+class UploadSessionServiceTest {
+
+    @TempDir
+    Path root;
+
+    private FileSystemBlobStore blobStore;
+
+    private UploadSessionService service;
+
+    @BeforeEach
+    void setUp() {
+        blobStore = new FileSystemBlobStore();
+        ReflectionTestUtils.setField(blobStore, "root", root.resolve("blobs").toString());
+        blobStore.init();
+
+        service = new UploadSessionService();
+        ReflectionTestUtils.setField(service, "blobStore", blobStore);
+        ReflectionTestUtils.setField(service, "stagingDir", root.resolve("uploads").toString());
+        ReflectionTestUtils.setField(service, "maxFileSize", 1000L);
+        ReflectionTestUtils.setField(service, "chunkSize", 100L);
+        ReflectionTestUtils.setField(service, "maxSessions", 5);
+        ReflectionTestUtils.setField(service, "maxSessionsPerUser", 2);
+        ReflectionTestUtils.setField(service, "sessionTtl", 3600);
+        service.init();
+    }
+
+    @Test
+    void chunksAreStagedThenStoredOnCompletion() throws IOException {
+        byte[] content = content(250);
+        UploadSession session = service.create("alice", "image.png", "image/png", content.length);
+        service.writeChunk(session.getId(), "alice", 200, chunk(content, 200, 250));
+        service.writeChunk(session.getId(), "alice", 0, chunk(content, 0, 200));
+
+        UploadSession completed = service.complete(session.getId(), "alice");
+        assertFalse(Files.exists(session.getStagingFile()));
+        try (InputStream in = blobStore.load(completed.getBlob().getKey()).getInputStream()) {
+            assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+        }
+        assertSame(completed, service.complete(session.getId(), "alice")); // retried completion
+    }
+
+    @Test
+    void incompleteUploadCannotBeCompleted() {
+        UploadSession session = service.create("alice", "image.png", "image/png", 200);
+        service.writeChunk(session.getId(), "alice", 0, new ByteArrayInputStream(content(100)));
+
+        assertThrows(InvalidUploadException.class, () -> service.complete(session.getId(), "alice"));
+        assertTrue(Files.exists(session.getStagingFile()));
+    }
+
+    @Test
+    void sessionsAreBoundedPerUser() {
+        UploadSession first = service.create("alice", "a.png", "image/png", 10);
+        service.create("alice", "b.png", "image/png", 10);
+        assertThrows(InvalidUploadException.class, () -> service.create("alice", "c.png", "image/png", 10));
+
+        service.create("bob", "a.png", "image/png", 10); // others are not blocked
+
+        service.abort(first.getId(), "alice");
+        // aborted once, frees one session only
+        assertThrows(ContentNotFoundException.class, () -> service.abort(first.getId(), "alice"));
+        service.create("alice", "c.png", "image/png", 10);
+        assertThrows(InvalidUploadException.class, () -> service.create("alice", "d.png", "image/png", 10));
+    }
+
+    @Test
+    void completedUploadIsTakenOnce() {
+        UploadSession session = completedSession("alice", 10);
+
+        assertSame(session, service.take(session.getId(), "alice"));
+        assertThrows(ContentNotFoundException.class, () -> service.take(session.getId(), "alice"));
+        // a taken upload frees its slot
+        service.create("alice", "a.png", "image/png", 10);
+        service.create("alice", "b.png", "image/png", 10);
+    }
+
+    @Test
+    void completedUploadIsTakenOnceByConcurrentPosts() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            UploadSession session = completedSession("alice", 10);
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            CountDownLatch start = new CountDownLatch(1);
+            try {
+                Future<Boolean> first = executor.submit(() -> take(start, session.getId()));
+                Future<Boolean> second = executor.submit(() -> take(start, session.getId()));
+                start.countDown();
+                assertTrue(first.get() ^ second.get(), "upload has been taken " + (first.get() ? 2 : 0) + " times");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void chunkIsRejectedOnceCompleted() {
+        UploadSession session = completedSession("alice", 10);
+
+        assertThrows(InvalidUploadException.class, () ->
+                service.writeChunk(session.getId(), "alice", 0, new ByteArrayInputStream(content(10))));
+        assertFalse(Files.exists(session.getStagingFile()));
+    }
+
+    @Test
+    void completionWaitsForTheChunkBeingWritten() throws Exception {
+        byte[] content = content(200);
+        UploadSession session = service.create("alice", "image.png", "image/png", content.length);
+        service.writeChunk(session.getId(), "alice", 0, chunk(content, 0, 200));
+
+        // a retried chunk is still being received when the client completes the upload
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        InputStream slowChunk = new InputStream() {
+            private int position = 100;
+
+            @Override
+            public int read() throws IOException {
+                if (position == 150) {
+                    reading.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                return position < 200 ? content[position++] & 0xff : -1;
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> write = executor.submit(() -> service.writeChunk(session.getId(), "alice", 100, slowChunk));
+            assertTrue(reading.await(5, TimeUnit.SECONDS));
+            Future<UploadSession> complete = executor.submit(() -> service.complete(session.getId(), "alice"));
+            Thread.sleep(100);
+            assertFalse(complete.isDone(), "upload has been completed during a chunk write");
+
+            release.countDown();
+            write.get(5, TimeUnit.SECONDS);
+            StoredBlob blob = complete.get(5, TimeUnit.SECONDS).getBlob();
+            try (InputStream in = blobStore.load(blob.getKey()).getInputStream()) {
+                assertArrayEquals(content, StreamUtils.copyToByteArray(in));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertFalse(Files.exists(session.getStagingFile()));
+    }
+
+    @Test
+    void expiredSessionsAreRemoved() {
+        UploadSession session = service.create("alice", "image.png", "image/png", 10);
+        ReflectionTestUtils.setField(service, "sessionTtl", -1);
+
+        service.expireSessions();
+
+        assertFalse(Files.exists(session.getStagingFile()));
+        assertThrows(ContentNotFoundException.class, () -> service.get(session.getId(), "alice"));
+        service.create("alice", "a.png", "image/png", 10);
+        service.create("alice", "b.png", "image/png", 10);
+    }
+
+    private UploadSession completedSession(String username, int size) {
+        UploadSession session = service.create(username, "image.png", "image/png", size);
+        service.writeChunk(session.getId(), username, 0, new ByteArrayInputStream(content(size)));
+        return service.complete(session.getId(), username);
+    }
+
+    private boolean take(CountDownLatch start, String uploadId) throws InterruptedException {
+        start.await();
+        try {
+            service.take(uploadId, "alice");
+            return true;
+        } catch (ContentNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    private static InputStream chunk(byte[] content, int start, int end) {
+        return new ByteArrayInputStream(Arrays.copyOfRange(content, start, end));
+    }
+}
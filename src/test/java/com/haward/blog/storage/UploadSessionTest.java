@@ -0,0 +1,106 @@
+package com.haward.blog.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Merge of the byte ranges received in any order, with retried and overlapping chunks.
+ */
+class UploadSessionTest {
+
+    @Test
+    void adjacentRangesAreMerged() {
+        UploadSession session = newSession(300);
+        session.addRange(0, 100);
+        session.addRange(100, 200);
+
+        assertRanges(session, new long[] {0, 200});
+        assertEquals(200, session.getReceivedBytes());
+        assertFalse(session.isFullyReceived());
+
+        session.addRange(200, 300);
+        assertRanges(session, new long[] {0, 300});
+        assertTrue(session.isFullyReceived());
+    }
+
+    @Test
+    void outOfOrderRangesAreMergedOnceTheGapIsFilled() {
+        UploadSession session = newSession(500);
+        session.addRange(400, 500);
+        session.addRange(0, 100);
+        session.addRange(200, 300);
+
+        assertRanges(session, new long[] {0, 100}, new long[] {200, 300}, new long[] {400, 500});
+        assertEquals(300, session.getReceivedBytes());
+
+        session.addRange(100, 400); // covers both gaps, joins the three ranges
+        assertRanges(session, new long[] {0, 500});
+        assertTrue(session.isFullyReceived());
+    }
+
+    @Test
+    void retriedAndOverlappingRangesAreCountedOnce() {
+        UploadSession session = newSession(300);
+        session.addRange(0, 100);
+        session.addRange(0, 100); // retried chunk
+        session.addRange(50, 150); // overlaps the end
+        session.addRange(20, 30); // inside
+
+        assertRanges(session, new long[] {0, 150});
+        assertEquals(150, session.getReceivedBytes());
+
+        session.addRange(250, 300);
+        session.addRange(140, 260); // overlaps both ranges
+        assertRanges(session, new long[] {0, 300});
+        assertTrue(session.isFullyReceived());
+    }
+
+    @Test
+    void emptyRangesAreIgnored() {
+        UploadSession session = newSession(100);
+        session.addRange(10, 10); // chunk dropped before its first byte
+        session.addRange(20, 10);
+
+        assertTrue(session.getRanges().isEmpty());
+        assertEquals(0, session.getReceivedBytes());
+    }
+
+    @Test
+    void chunksInRandomOrderCompleteTheFile() {
+        List<long[]> chunks = new ArrayList<>();
+        for (long start = 0; start < 10000; start += 100) {
+            chunks.add(new long[] {start, start + 100});
+        }
+        Collections.shuffle(chunks, new Random(42));
+        UploadSession session = newSession(10000);
+        for (int i = 0; i < chunks.size(); i++) {
+            assertFalse(session.isFullyReceived());
+            session.addRange(chunks.get(i)[0], chunks.get(i)[1]);
+            assertEquals((i + 1) * 100L, session.getReceivedBytes());
+        }
+        assertRanges(session, new long[] {0, 10000});
+        assertTrue(session.isFullyReceived());
+    }
+
+    private static UploadSession newSession(long fileSize) {
+        return new UploadSession("upload-1", "user", "image.png", "image/png", fileSize, Paths.get("upload-1.part"));
+    }
+
+    private static void assertRanges(UploadSession session, long[]... expected) {
+        List<long[]> ranges = session.getRanges();
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i));
+        }
+    }
+}